@@ -0,0 +1,750 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.Atmosphere;
+import Earth.AtmosphereCursor;
+import Earth.AtmosphereLayer;
+import Earth.AtmosphereModel;
+import Earth.AtmosphereProperties;
+import Earth.AtmosphereProvider;
+import Earth.AtmosphereState;
+import Earth.AtmosphereTier;
+import Earth.Gravity;
+import Earth.GravityCache;
+import Earth.GravityGrid;
+import Earth.GravityKernel;
+import Earth.GravityModel;
+import Earth.SphericalHarmonicGravity;
+import Earth.StandardAtmosphere;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks every evaluator against reference values and records its speed next to its
+ * accuracy, exiting with status 1 if any of them is outside its declared error budget.
+ *
+ * The exact models are first checked against golden values: rows of the published 1976
+ * standard atmosphere tables, and J2 accelerations worked out to 40 digits from the closed
+ * form with the constants of {@link GravityKernel}. Every atmosphere evaluator is then
+ * swept every 10m from 0 to 1000km against {@link StandardAtmosphere}, and every gravity
+ * evaluator over shells of positions from the surface to 50000km against the closed form
+ * J2 field. Maximum absolute and relative errors are reported per layer, or per orbit
+ * regime for gravity, for the quantity closest to its budget.
+ *
+ * Budgets come from what each evaluator declares: its getMaxError, tolerance or documented
+ * single precision error, times {@link #DECLARED_MARGIN} where the declared value was
+ * itself found by sampling. The exact model is held to the precision of the tables,
+ * with two documented exceptions above 86km. The density there is found with the sea
+ * level molar mass M0, so it is compared after scaling by the model's molecular weight
+ * over M0, within the precision the tables give the weight and density to. Between the
+ * pressure nodes the model interpolates pressure rather than integrating it, so the rows
+ * at 90, 100 and 150km are reported as known deviations and only fail if not finite.
+ * @author eib15ns
+ */
+public class ConformanceBenchmark {
+
+    private static final int SAMPLES = 1024; // heights or positions per timed batch
+    private static final double SWEEP_STEP = 0.01; // km
+    private static final String[] QUANTITIES = {"temperature", "pressure", "density", "speed of sound"};
+    private static final String[] ACCELERATION = {"acceleration"};
+    private static final String[] REGIMES = {"LEO", "MEO", "GEO+"};
+    private static final double MEO_RADIUS = 8378e3; // m, bottom of the MEO regime
+    private static final double GEO_RADIUS = 42000e3; // m, bottom of the GEO regime
+
+    // Constants of GravityKernel
+    private static final double MU = 6.67408e-11*5.9722e24; // m^3/s^2
+    private static final double RADIUS = 6378135; // equatorial radius (m)
+    private static final double J2 = 1.08263e-3;
+
+    // U.S. Standard Atmosphere 1976, table I: geometric height (km), temperature (K),
+    // pressure (Pa), density (kg/m^3) and speed of sound (m/s), which is not tabulated above 86km
+    private static final double[][] NASA_1976 = {
+        {0, 288.150, 1.01325e5, 1.2250, 340.294},
+        {1, 281.651, 8.98763e4, 1.11166, 336.435},
+        {2, 275.154, 7.95014e4, 1.00655, 332.532},
+        {3, 268.659, 7.01211e4, 9.09254e-1, 328.584},
+        {4, 262.166, 6.16604e4, 8.19347e-1, 324.589},
+        {5, 255.676, 5.40482e4, 7.36429e-1, 320.545},
+        {6, 249.187, 4.72176e4, 6.60111e-1, 316.452},
+        {7, 242.700, 4.11052e4, 5.90018e-1, 312.306},
+        {8, 236.215, 3.56516e4, 5.25786e-1, 308.105},
+        {9, 229.733, 3.08007e4, 4.67063e-1, 303.848},
+        {10, 223.252, 2.64999e4, 4.13510e-1, 299.532},
+        {11, 216.774, 2.26999e4, 3.64801e-1, 295.154},
+        {12, 216.650, 1.93994e4, 3.11937e-1, 295.069},
+        {15, 216.650, 1.21118e4, 1.94755e-1, 295.069},
+        {20, 216.650, 5.52929e3, 8.89097e-2, 295.069},
+        {25, 221.552, 2.54921e3, 4.00837e-2, 298.389},
+        {30, 226.509, 1.19703e3, 1.84101e-2, 301.709},
+        {35, 236.513, 5.74592e2, 8.46334e-3, 308.300},
+        {40, 250.350, 2.87143e2, 3.99566e-3, 317.189},
+        {45, 264.164, 1.49101e2, 1.96626e-3, 325.820},
+        {60, 247.021, 2.19587e1, 3.09676e-4, 315.070},
+        {70, 219.585, 5.22088, 8.28283e-5, 297.059},
+        {80, 198.639, 1.05247, 1.84580e-5, 282.543},
+        {86, 186.87, 3.7338e-1, 6.958e-6, Double.NaN},
+        {90, 186.87, 1.8359e-1, 3.416e-6, Double.NaN},
+        {100, 195.08, 3.2011e-2, 5.604e-7, Double.NaN},
+        {110, 240.00, 7.1042e-3, 9.708e-8, Double.NaN},
+        {120, 360.00, 2.5382e-3, 2.222e-8, Double.NaN},
+        {150, 634.39, 4.5422e-4, 2.076e-9, Double.NaN},
+        {200, 854.56, 8.4736e-5, 2.541e-10, Double.NaN},
+        {300, 976.01, 8.7704e-6, 1.916e-11, Double.NaN},
+        {400, 995.83, 1.4518e-6, 2.803e-12, Double.NaN},
+        {500, 999.24, 3.0236e-7, 5.215e-13, Double.NaN},
+        {600, 999.85, 8.2130e-8, 1.137e-13, Double.NaN},
+        {700, 999.97, 3.1908e-8, 3.070e-14, Double.NaN},
+        {800, 999.99, 1.7036e-8, 1.136e-14, Double.NaN},
+        {900, 1000.0, 1.0873e-8, 5.759e-15, Double.NaN},
+        {1000, 1000.0, 7.5138e-9, 3.561e-15, Double.NaN}
+    };
+
+    // The tables give at least 5 significant figures below 86km and for temperature and
+    // pressure above, so a tabulated value is within half a unit of the 5th figure
+    private static final double TABLE_PRECISION = 5e-5; // relative
+    // Above 86km the tables give density to 4 figures and molecular weight to 2 decimals (kg/kmol)
+    private static final int DENSITY_FIGURES = 4;
+    private static final double WEIGHT_PRECISION = 0.005; // kg/kmol
+    private static final double M0 = 28.9644; // sea level molar mass (kg/kmol)
+    // Rows between the pressure nodes StandardAtmosphere interpolates between above 86km (km)
+    private static final double[] BETWEEN_NODES = {90, 100, 150};
+
+    // Position (m) and J2 acceleration (m/s^2)
+    private static final double[][] J2_VECTORS = {
+        {6378135, 0, 0, -9.8139317852060053e+00, 0, 0},
+        {0, 0, 6356766, 0, 0, -9.8317524455901406e+00},
+        {7e6, 0, 0, -8.1454447816716051e+00, 0, 0},
+        {4949747.468305833, 0, 4949747.468305833, -5.7403119407926315e+00, 0, -5.7558217808789811e+00},
+        {-3e6, 5e6, 4e6, 3.3794620435887408e+00, -5.6324367393145680e+00, -4.5178659117867976e+00},
+        {42164e3, 0, 0, -2.2421170435668691e-01, 0, 0},
+        {1e7, -2e7, 3e7, -7.6083120574319707e-02, 1.5216624114863941e-01, -2.2827090519232413e-01},
+        {6.5e6, 1.2e6, -2.5e6, -7.3448216747025885e+00, -1.3559670784066318e+00, 2.8324016290381393e+00}
+    };
+    private static final double J2_VECTOR_BUDGET = 1e-14; // relative to |g|
+
+    // Declared errors found by sampling a model every 50m or at cell edges can be exceeded
+    // between the samples by a denser sweep, so they are allowed a tenth more. An evaluator
+    // that is really worse than it declares is still caught.
+    private static final double DECLARED_MARGIN = 1.1;
+    // Rounding of the exact double paths, relative to the result
+    private static final double DOUBLE_ROUNDING = 1e-14;
+    private static final double HARMONIC_ROUNDING = 1e-13; // sums of Legendre terms
+    // Half an ulp of a float, the rounding Atmosphere.evaluate(float[]...) declares
+    private static final double FLOAT_ROUNDING = Math.ulp(1.0f)/2;
+    // Error GravityKernel.accelerate(float[]...) declares, relative to |g|
+    private static final double FLOAT_KERNEL_ERROR = 5e-7;
+
+    /**
+     * Evaluates every height in an array into arrays of temperature, pressure, density and speed of sound
+     */
+    private interface AtmosphereSweep {
+        void evaluate(double[] heights, double[][] out);
+    }
+
+    /**
+     * Evaluates every position in arrays into arrays of acceleration
+     */
+    private interface GravitySweep {
+        void evaluate(double[] x, double[] y, double[] z, double[][] out);
+    }
+
+    /**
+     * Largest absolute and relative errors per group and quantity
+     */
+    private static final class Errors {
+        final double[][] absolute;
+        final double[][] relative;
+        final int[][] count;
+
+        Errors(int groups, int quantities){
+            this.absolute = new double[groups][quantities];
+            this.relative = new double[groups][quantities];
+            this.count = new int[groups][quantities];
+        }
+
+        void add(int group, int quantity, double value, double reference){
+            double error = Math.abs(value - reference);
+            // A NaN value must fail however large the budget
+            if (Double.isNaN(error)) error = Double.POSITIVE_INFINITY;
+            this.absolute[group][quantity] = Math.max(this.absolute[group][quantity], error);
+            this.relative[group][quantity] = Math.max(this.relative[group][quantity], error/Math.abs(reference));
+            this.count[group][quantity]++;
+        }
+    }
+
+    /**
+     * Worst error of an evaluator against its budget, and the case timing it
+     */
+    private static final class Result {
+        final String name;
+        final double error;
+        final double budget;
+        final boolean absolute;
+        final boolean pass;
+        final Harness.Case timed; // evaluates SAMPLES heights or positions per operation
+        final String unit;
+        double time = Double.NaN; // ns per height or position
+
+        Result(String name, double error, double budget, boolean absolute, boolean pass, Harness.Case timed, String unit){
+            this.name = name;
+            this.error = error;
+            this.budget = budget;
+            this.absolute = absolute;
+            this.pass = pass;
+            this.timed = timed;
+            this.unit = unit;
+        }
+    }
+
+    private static final List<Result> RESULTS = new ArrayList<>();
+
+    public static void main(String[] args){
+        System.out.println("Golden values");
+        printHeader();
+        golden();
+
+        System.out.println();
+        System.out.println("Atmosphere evaluators against StandardAtmosphere every "+SWEEP_STEP*1000+"m");
+        printHeader();
+        atmosphere();
+
+        System.out.println();
+        System.out.println("Gravity evaluators against the closed form J2 field, budgets marked a are in m/s^2");
+        printHeader();
+        gravity();
+
+        // Timed once every sweep is done, so compiling the sweeps does not compete with the timing
+        System.out.println();
+        Harness harness = new Harness();
+        harness.printHeader();
+        for (Result result : RESULTS){
+            if (result.timed == null) continue;
+            System.gc(); // so the sweep arrays are not collected while timing
+            result.time = harness.measure(result.name+" ("+SAMPLES+" "+result.unit+")", result.timed)/SAMPLES;
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-40s %12s %12s %13s %5s", "Evaluator", "ns/point", "max error", "budget", ""));
+        boolean pass = true;
+        for (Result result : RESULTS){
+            String time = Double.isNaN(result.time) ? "-" : String.format(Locale.ROOT, "%.2f", result.time);
+            System.out.println(String.format(Locale.ROOT, "%-40s %12s %12.3e %12.3e%1s %5s", result.name, time,
+                    result.error, result.budget, result.absolute ? "a" : "", result.pass ? "ok" : "FAIL"));
+            pass &= result.pass;
+        }
+        if (!pass){
+            System.out.println("FAILED: an evaluator is outside its error budget");
+            System.exit(1);
+        }
+        System.out.println("PASSED");
+    }
+
+    // GOLDEN VALUES
+
+    private static void golden(){
+        Errors nasa = new Errors(AtmosphereLayer.values().length, QUANTITIES.length);
+        List<double[]> weighted = new ArrayList<>(); // height, scaled density, tabulated density, weight
+        List<double[]> between = new ArrayList<>(); // row, pressure, density
+        AtmosphereProperties properties = new AtmosphereProperties();
+        for (double[] row : NASA_1976){
+            StandardAtmosphere.INSTANCE.evaluate(row[0], AtmosphereProperties.ALL, properties);
+            int layer = layer(row[0]);
+            nasa.add(layer, 0, properties.getTemperature(), row[1]);
+            if (!Double.isNaN(row[4])) nasa.add(layer, 3, properties.getSpeedSound(), row[4]);
+            if (Arrays.binarySearch(BETWEEN_NODES, row[0]) >= 0){
+                between.add(new double[]{row[0], properties.getPressure(), row[2], properties.getDensity(), row[3]});
+                continue;
+            }
+            nasa.add(layer, 1, properties.getPressure(), row[2]);
+            if (row[0] < 86) nasa.add(layer, 2, properties.getDensity(), row[3]);
+            else weighted.add(new double[]{row[0], properties.getDensity()*properties.getMolecularWeight()/M0,
+                row[3], properties.getMolecularWeight()});
+        }
+        check("StandardAtmosphere vs 1976 tables", nasa, layerNames(), QUANTITIES,
+                uniform(AtmosphereLayer.values().length, QUANTITIES.length, TABLE_PRECISION), false, null, null);
+
+        // Exception: the density above 86km is scaled from M0 to the molecular weight, and each
+        // row is allowed the rounding of its tabulated density and weight
+        Errors density = new Errors(weighted.size(), 1);
+        String[] heights = new String[weighted.size()];
+        double[][] budgets = new double[weighted.size()][1];
+        for (int i = 0; i < weighted.size(); i++){
+            double[] row = weighted.get(i);
+            density.add(i, 0, row[1], row[2]);
+            heights[i] = (int)row[0]+"km";
+            double unit = Math.pow(10, Math.floor(Math.log10(row[2])) - DENSITY_FIGURES + 1);
+            budgets[i][0] = 0.5*unit/row[2] + WEIGHT_PRECISION/row[3];
+        }
+        check("StandardAtmosphere density x M/M0", density, heights, new String[]{"density"}, budgets, false, null, null);
+
+        // Exception: pressure is interpolated between the nodes, so these rows are only reported
+        boolean finite = true;
+        for (double[] row : between){
+            for (int q = 0; q < 2; q++){
+                double value = row[1 + 2*q];
+                double reference = row[2 + 2*q];
+                finite &= Double.isFinite(value);
+                System.out.println(String.format(Locale.ROOT, "%-40s %-10s %-15s %12.3e %12.3e %12s  %5s",
+                        "StandardAtmosphere between nodes", (int)row[0]+"km", QUANTITIES[1 + q],
+                        Math.abs(value - reference), Math.abs(value/reference - 1), "-", finite ? "known" : "FAIL"));
+            }
+        }
+        if (!finite) RESULTS.add(new Result("StandardAtmosphere between nodes", Double.POSITIVE_INFINITY, 0, false, false, null, null));
+
+        Errors vectors = new Errors(1, 1);
+        double[] out = new double[3];
+        for (double[] vector : J2_VECTORS){
+            GravityKernel.accelerate(vector[0], vector[1], vector[2], out, 0);
+            double g = Math.sqrt(vector[3]*vector[3] + vector[4]*vector[4] + vector[5]*vector[5]);
+            double dx = out[0] - vector[3];
+            double dy = out[1] - vector[4];
+            double dz = out[2] - vector[5];
+            vectors.add(0, 0, g + Math.sqrt(dx*dx + dy*dy + dz*dz), g);
+        }
+        check("GravityKernel vs J2 vectors", vectors, new String[]{"all"}, ACCELERATION, new double[][]{{J2_VECTOR_BUDGET}}, false, null, null);
+    }
+
+    // ATMOSPHERE
+
+    private static void atmosphere(){
+        int count = (int)Math.round(1000/SWEEP_STEP) + 1;
+        double[] heights = new double[count];
+        for (int i = 0; i < count; i++) heights[i] = Math.min(i*SWEEP_STEP, 1000);
+        double[] rounded = new double[count];
+        for (int i = 0; i < count; i++) rounded[i] = (float)heights[i];
+
+        double[] timed = new double[SAMPLES];
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) timed[i] = 1000*random.nextDouble();
+
+        AtmosphereState state = new AtmosphereState();
+        AtmosphereSweep reference = (h, out) -> {
+            for (int i = 0; i < h.length; i++){
+                StandardAtmosphere.INSTANCE.evaluate(h[i], state);
+                out[0][i] = state.getTemperature();
+                out[1][i] = state.getPressure();
+                out[2][i] = state.getDensity();
+                out[3][i] = state.getSpeedSound();
+            }
+        };
+        double[][] exact = sweep(reference, heights);
+        double[][] exactRounded = sweep(reference, rounded);
+
+        measure("StandardAtmosphere.evaluate", reference, heights, exact, timed, 0);
+        measure("StandardAtmosphere batch",
+                (h, out) -> StandardAtmosphere.INSTANCE.evaluate(h, out[0], out[1], out[2], out[3]), heights, exact, timed, 0);
+
+        DoubleBuffer in = ByteBuffer.allocateDirect(8*count).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        DoubleBuffer records = ByteBuffer.allocateDirect(32*count).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        measure("StandardAtmosphere direct buffer", (h, out) -> {
+            for (int i = 0; i < h.length; i++) in.put(i, h[i]);
+            StandardAtmosphere.INSTANCE.evaluate(in, 0, 1, records, 0, 4, h.length);
+            for (int i = 0; i < h.length; i++){
+                for (int q = 0; q < 4; q++) out[q][i] = records.get(4*i + q);
+            }
+        }, heights, exact, n -> {
+            for (int i = 0; i < SAMPLES; i++) in.put(i, timed[i]);
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                StandardAtmosphere.INSTANCE.evaluate(in, 0, 1, records, 0, 4, SAMPLES);
+                sum += records.get(4*(i & (SAMPLES - 1)) + 2);
+            }
+            return(sum);
+        }, 0);
+
+        AtmosphereProperties properties = new AtmosphereProperties();
+        measure("StandardAtmosphere properties BASIC", (h, out) -> {
+            for (int i = 0; i < h.length; i++){
+                StandardAtmosphere.INSTANCE.evaluate(h[i], AtmosphereProperties.BASIC, properties);
+                out[0][i] = properties.getTemperature();
+                out[1][i] = properties.getPressure();
+                out[2][i] = properties.getDensity();
+                out[3][i] = properties.getSpeedSound();
+            }
+        }, heights, exact, timed, 0);
+
+        // A cursor follows a trajectory, so it is timed climbing through the same heights
+        double[] climb = timed.clone();
+        Arrays.sort(climb);
+        AtmosphereCursor cursor = new AtmosphereCursor();
+        measure("AtmosphereCursor climbing", (h, out) -> {
+            for (int i = 0; i < h.length; i++){
+                cursor.evaluate(h[i], state);
+                out[0][i] = state.getTemperature();
+                out[1][i] = state.getPressure();
+                out[2][i] = state.getDensity();
+                out[3][i] = state.getSpeedSound();
+            }
+        }, heights, exact, climb, 0);
+
+        Atmosphere atmosphere = new Atmosphere(0.0);
+        measure("Atmosphere.setHeight", (h, out) -> {
+            for (int i = 0; i < h.length; i++){
+                atmosphere.setHeight(h[i]);
+                out[0][i] = atmosphere.getTemperature();
+                out[1][i] = atmosphere.getPressure();
+                out[2][i] = atmosphere.getDensity();
+                out[3][i] = atmosphere.getSpeedSound();
+            }
+        }, heights, exact, timed, 0);
+
+        // Checked at heights that are exact in single precision, so only the rounding of the results is measured
+        measure("Atmosphere.evaluate float", (h, out) -> {
+            float[] heightsF = new float[h.length];
+            float[][] outF = new float[4][h.length];
+            for (int i = 0; i < h.length; i++) heightsF[i] = (float)h[i];
+            Atmosphere.evaluate(heightsF, outF[0], outF[1], outF[2], outF[3]);
+            for (int q = 0; q < 4; q++){
+                for (int i = 0; i < h.length; i++) out[q][i] = outF[q][i];
+            }
+        }, rounded, exactRounded, n -> {
+            float[] heightsF = new float[SAMPLES];
+            float[][] outF = new float[4][SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) heightsF[i] = (float)timed[i];
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                Atmosphere.evaluate(heightsF, outF[0], outF[1], outF[2], outF[3]);
+                sum += outF[2][i & (SAMPLES - 1)];
+            }
+            return(sum);
+        }, FLOAT_ROUNDING);
+
+        for (AtmosphereProvider tier : AtmosphereTier.providers()){
+            AtmosphereModel model = tier.getModel();
+            measure("AtmosphereTier "+tier.getName(),
+                    (h, out) -> model.evaluate(h, out[0], out[1], out[2], out[3]), heights, exact, timed,
+                    DECLARED_MARGIN*tier.getMaxError());
+        }
+    }
+
+    private static double[][] sweep(AtmosphereSweep evaluator, double[] heights){
+        double[][] out = new double[QUANTITIES.length][heights.length];
+        evaluator.evaluate(heights, out);
+        return(out);
+    }
+
+    private static void measure(String name, AtmosphereSweep evaluator, double[] heights,
+            double[][] exact, double[] timed, double budget){
+        double[][] batch = new double[QUANTITIES.length][SAMPLES];
+        measure(name, evaluator, heights, exact, n -> {
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                evaluator.evaluate(timed, batch);
+                sum += batch[2][i & (SAMPLES - 1)];
+            }
+            return(sum);
+        }, budget);
+    }
+
+    /**
+     * Sweeps an evaluator and records a case that evaluates SAMPLES heights per operation to time later
+     */
+    private static void measure(String name, AtmosphereSweep evaluator, double[] heights,
+            double[][] exact, Harness.Case timed, double budget){
+        double[][] out = sweep(evaluator, heights);
+        Errors errors = new Errors(AtmosphereLayer.values().length, QUANTITIES.length);
+        for (int i = 0; i < heights.length; i++){
+            int layer = layer(heights[i]);
+            for (int q = 0; q < QUANTITIES.length; q++) errors.add(layer, q, out[q][i], exact[q][i]);
+        }
+        check(name, errors, layerNames(), QUANTITIES, uniform(AtmosphereLayer.values().length, QUANTITIES.length, budget), false, timed, "heights");
+    }
+
+    private static int layer(double height){
+        AtmosphereLayer[] layers = AtmosphereLayer.values();
+        for (int i = 0; i < layers.length - 1; i++){
+            if (height <= layers[i].getTop()) return(i);
+        }
+        return(layers.length - 1);
+    }
+
+    private static String[] layerNames(){
+        AtmosphereLayer[] layers = AtmosphereLayer.values();
+        String[] names = new String[layers.length];
+        for (int i = 0; i < layers.length; i++) names[i] = layers[i].name();
+        return(names);
+    }
+
+    // GRAVITY
+
+    private static void gravity(){
+        // Shells spaced evenly in the log of the radius, with nodes every 5 degrees
+        int shells = 100;
+        int latitudes = 37;
+        int longitudes = 72;
+        int count = shells*latitudes*longitudes;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        double[] z = new double[count];
+        int index = 0;
+        for (int i = 0; i < shells; i++){
+            double r = 6356766*Math.pow(50e6/6356766, i/(shells - 1.0));
+            for (int j = 0; j < latitudes; j++){
+                double lat = Math.toRadians(-90 + 5*j);
+                for (int k = 0; k < longitudes; k++){
+                    double lon = Math.toRadians(5*k + 0.5*j);
+                    x[index] = r*Math.cos(lat)*Math.cos(lon);
+                    y[index] = r*Math.cos(lat)*Math.sin(lon);
+                    z[index] = r*Math.sin(lat);
+                    index++;
+                }
+            }
+        }
+
+        // Positions a little above LEO that the grid and cache cover
+        int local = 20000;
+        double[] lx = new double[local];
+        double[] ly = new double[local];
+        double[] lz = new double[local];
+        Random random = new Random(7);
+        for (int i = 0; i < local; i++){
+            double u = random.nextGaussian();
+            double v = random.nextGaussian();
+            double w = random.nextGaussian();
+            double scale = (6578e3 + 600e3*random.nextDouble())/Math.sqrt(u*u + v*v + w*w);
+            lx[i] = scale*u;
+            ly[i] = scale*v;
+            lz[i] = scale*w;
+        }
+
+        // Positions exact in single precision for the float kernel
+        double[] fx = new double[count];
+        double[] fy = new double[count];
+        double[] fz = new double[count];
+        for (int i = 0; i < count; i++){
+            fx[i] = (float)x[i];
+            fy[i] = (float)y[i];
+            fz[i] = (float)z[i];
+        }
+
+        GravitySweep reference = (px, py, pz, out) -> {
+            for (int i = 0; i < px.length; i++){
+                double r2 = px[i]*px[i] + py[i]*py[i] + pz[i]*pz[i];
+                double r = Math.sqrt(r2);
+                double k = 1.5*J2*RADIUS*RADIUS/r2;
+                double f = 5*pz[i]*pz[i]/r2;
+                double c = -MU/(r2*r);
+                out[0][i] = c*px[i]*(1 + k*(1 - f));
+                out[1][i] = c*py[i]*(1 + k*(1 - f));
+                out[2][i] = c*pz[i]*(1 + k*(3 - f));
+            }
+        };
+
+        double[] tx = new double[SAMPLES];
+        double[] ty = new double[SAMPLES];
+        double[] tz = new double[SAMPLES];
+        System.arraycopy(lx, 0, tx, 0, SAMPLES);
+        System.arraycopy(ly, 0, ty, 0, SAMPLES);
+        System.arraycopy(lz, 0, tz, 0, SAMPLES);
+        double[][] timed = {tx, ty, tz};
+
+        double[][] exact = sweep(reference, x, y, z);
+        double[][] exactLocal = sweep(reference, lx, ly, lz);
+        double[][] exactRounded = sweep(reference, fx, fy, fz);
+        double[][] all = {x, y, z};
+        double[][] leo = {lx, ly, lz};
+
+        measure("Gravity", (px, py, pz, out) -> {
+            for (int i = 0; i < px.length; i++){
+                Gravity gravity = new Gravity(px[i], py[i], pz[i]);
+                out[0][i] = gravity.getAccX();
+                out[1][i] = gravity.getAccY();
+                out[2][i] = gravity.getAccZ();
+            }
+        }, all, exact, timed, DOUBLE_ROUNDING, false);
+
+        double[] acc = new double[3];
+        measure("GravityKernel.accelerate", (px, py, pz, out) -> {
+            for (int i = 0; i < px.length; i++){
+                GravityKernel.accelerate(px[i], py[i], pz[i], acc, 0);
+                out[0][i] = acc[0];
+                out[1][i] = acc[1];
+                out[2][i] = acc[2];
+            }
+        }, all, exact, timed, DOUBLE_ROUNDING, false);
+        measure("GravityKernel batch",
+                (px, py, pz, out) -> GravityKernel.accelerate(px, py, pz, out[0], out[1], out[2]), all, exact, timed, DOUBLE_ROUNDING, false);
+
+        DoubleBuffer positions = ByteBuffer.allocateDirect(24*count).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        DoubleBuffer accelerations = ByteBuffer.allocateDirect(24*count).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        measure("GravityKernel direct buffer", (px, py, pz, out) -> {
+            for (int i = 0; i < px.length; i++){
+                positions.put(3*i, px[i]);
+                positions.put(3*i + 1, py[i]);
+                positions.put(3*i + 2, pz[i]);
+            }
+            GravityKernel.accelerate(positions, 0, 3, accelerations, 0, 3, px.length);
+            for (int i = 0; i < px.length; i++){
+                for (int c = 0; c < 3; c++) out[c][i] = accelerations.get(3*i + c);
+            }
+        }, all, exact, n -> {
+            for (int i = 0; i < SAMPLES; i++){
+                positions.put(3*i, tx[i]);
+                positions.put(3*i + 1, ty[i]);
+                positions.put(3*i + 2, tz[i]);
+            }
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                GravityKernel.accelerate(positions, 0, 3, accelerations, 0, 3, SAMPLES);
+                sum += accelerations.get(3*(i & (SAMPLES - 1)) + 2);
+            }
+            return(sum);
+        }, DOUBLE_ROUNDING, false);
+
+        measure("GravityKernel float", (px, py, pz, out) -> {
+            float[][] in = new float[3][px.length];
+            float[][] outF = new float[3][px.length];
+            for (int i = 0; i < px.length; i++){
+                in[0][i] = (float)px[i];
+                in[1][i] = (float)py[i];
+                in[2][i] = (float)pz[i];
+            }
+            GravityKernel.accelerate(in[0], in[1], in[2], outF[0], outF[1], outF[2]);
+            for (int c = 0; c < 3; c++){
+                for (int i = 0; i < px.length; i++) out[c][i] = outF[c][i];
+            }
+        }, new double[][]{fx, fy, fz}, exactRounded, n -> {
+            float[][] in = new float[3][SAMPLES];
+            float[][] outF = new float[3][SAMPLES];
+            for (int i = 0; i < SAMPLES; i++){
+                in[0][i] = (float)tx[i];
+                in[1][i] = (float)ty[i];
+                in[2][i] = (float)tz[i];
+            }
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                GravityKernel.accelerate(in[0], in[1], in[2], outF[0], outF[1], outF[2]);
+                sum += outF[2][i & (SAMPLES - 1)];
+            }
+            return(sum);
+        }, FLOAT_KERNEL_ERROR, false);
+
+        SphericalHarmonicGravity harmonic = SphericalHarmonicGravity.j2(MU, RADIUS, J2);
+        measure("SphericalHarmonicGravity J2", model(harmonic), all, exact, timed, HARMONIC_ROUNDING, false);
+
+        GravityGrid grid = new GravityGrid(GravityModel.J2, MU, 6478e3, 7278e3, 20e3, 0.5);
+        measure("GravityGrid J2 20km 0.5deg", model(grid), leo, exactLocal, timed, DECLARED_MARGIN*grid.getMaxError(), true);
+
+        GravityCache cache = new GravityCache(GravityModel.J2, MU, 6478e3, 7278e3, 100e3, 1e-6, 256L << 20);
+        measure("GravityCache J2 1e-6", model(cache), leo, exactLocal, timed, DECLARED_MARGIN*cache.getTolerance(), true);
+    }
+
+    private static GravitySweep model(GravityModel model){
+        return((px, py, pz, out) -> model.accelerate(px, py, pz, 0, out[0], out[1], out[2], 0, px.length));
+    }
+
+    private static double[][] sweep(GravitySweep evaluator, double[] x, double[] y, double[] z){
+        double[][] out = new double[3][x.length];
+        evaluator.evaluate(x, y, z, out);
+        return(out);
+    }
+
+    private static void measure(String name, GravitySweep evaluator, double[][] positions,
+            double[][] exact, double[][] timed, double budget, boolean absolute){
+        double[][] batch = new double[3][SAMPLES];
+        measure(name, evaluator, positions, exact, n -> {
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                evaluator.evaluate(timed[0], timed[1], timed[2], batch);
+                sum += batch[2][i & (SAMPLES - 1)];
+            }
+            return(sum);
+        }, budget, absolute);
+    }
+
+    /**
+     * Sweeps an evaluator and records a case that evaluates SAMPLES positions per operation to time later.
+     * The error is the length of the difference in the acceleration vectors, and is checked
+     * in m/s^2 if the budget is absolute or relative to the magnitude of the field if not.
+     */
+    private static void measure(String name, GravitySweep evaluator, double[][] positions,
+            double[][] exact, Harness.Case timed, double budget, boolean absolute){
+        double[][] out = sweep(evaluator, positions[0], positions[1], positions[2]);
+        Errors errors = new Errors(REGIMES.length, 1);
+        for (int i = 0; i < out[0].length; i++){
+            double x = positions[0][i];
+            double y = positions[1][i];
+            double z = positions[2][i];
+            double r = Math.sqrt(x*x + y*y + z*z);
+            int regime = r < MEO_RADIUS ? 0 : r < GEO_RADIUS ? 1 : 2;
+            double g = Math.sqrt(exact[0][i]*exact[0][i] + exact[1][i]*exact[1][i] + exact[2][i]*exact[2][i]);
+            double dx = out[0][i] - exact[0][i];
+            double dy = out[1][i] - exact[1][i];
+            double dz = out[2][i] - exact[2][i];
+            errors.add(regime, 0, g + Math.sqrt(dx*dx + dy*dy + dz*dz), g);
+        }
+        check(name, errors, REGIMES, ACCELERATION, uniform(REGIMES.length, 1, budget), absolute, timed, "points");
+    }
+
+    // REPORTING
+
+    private static double[][] uniform(int groups, int quantities, double budget){
+        double[][] budgets = new double[groups][quantities];
+        for (double[] row : budgets) Arrays.fill(row, budget);
+        return(budgets);
+    }
+
+    private static void printHeader(){
+        System.out.println(String.format(Locale.ROOT, "%-40s %-10s %-15s %12s %12s %12s %6s",
+                "Evaluator", "Layer", "Quantity", "max abs", "max rel", "budget", ""));
+    }
+
+    /**
+     * Prints a line per group for the quantity closest to its budget and records the
+     * evaluator in the summary. Groups and quantities with nothing checked are skipped.
+     */
+    private static void check(String name, Errors errors, String[] groups, String[] quantities,
+            double[][] budgets, boolean absolute, Harness.Case timed, String unit){
+        double[][] found = absolute ? errors.absolute : errors.relative;
+        boolean pass = true;
+        double worst = -1;
+        double worstError = 0;
+        double worstBudget = 0;
+        for (int g = 0; g < groups.length; g++){
+            int closest = -1;
+            double ratio = -1;
+            for (int q = 0; q < quantities.length; q++){
+                if (errors.count[g][q] == 0) continue;
+                double error = found[g][q];
+                double r = budgets[g][q] > 0 ? error/budgets[g][q] : error > 0 ? Double.POSITIVE_INFINITY : 0;
+                if (r > ratio){
+                    ratio = r;
+                    closest = q;
+                }
+            }
+            if (closest < 0) continue;
+            boolean ok = ratio <= 1;
+            pass &= ok;
+            if (ratio > worst){
+                worst = ratio;
+                worstError = found[g][closest];
+                worstBudget = budgets[g][closest];
+            }
+            System.out.println(String.format(Locale.ROOT, "%-40s %-10s %-15s %12.3e %12.3e %12.3e%1s %5s",
+                    name, groups[g], quantities[closest], errors.absolute[g][closest], errors.relative[g][closest],
+                    budgets[g][closest], absolute ? "a" : "", ok ? "ok" : "FAIL"));
+        }
+        RESULTS.add(new Result(name, worstError, worstBudget, absolute, pass, timed, unit));
+    }
+}
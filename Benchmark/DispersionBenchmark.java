@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.DispersionRunner;
+import Earth.DispersionStatistics;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures how a dispersion of reentry cases scales with the number of worker threads,
+ * from one thread up to the number of available processors. The statistics are printed
+ * for every pool size to show they do not depend on it.
+ * @author eib15ns
+ */
+public class DispersionBenchmark {
+
+    private static final double MU = 3.986004418e14; // m^3/s^2
+    private static final double RADIUS = 6378137 + 150e3; // m
+    private static final int CASES = 2000;
+
+    public static void main(String[] args){
+        double speed = 0.97*Math.sqrt(MU/RADIUS);
+        DispersionRunner runner = new DispersionRunner(new double[]{RADIUS, 0, 0, 0, speed, 0}, 500, 1.0, 2.2);
+        runner.setStateSigma(100.0, 1.0);
+        runner.setVehicleSigma(0.02, 0.05, 0.05);
+
+        // Warm up the JIT before timing
+        runner.run(CASES/4, ForkJoinPool.commonPool());
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        double single = 0;
+        // Doubling threads, with the last step clamped to the processor count
+        for (int threads = 1; threads <= processors; threads = threads == processors ? processors + 1 : Math.min(2*threads, processors)){
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long start = System.nanoTime();
+            DispersionStatistics stats = runner.run(CASES, pool);
+            double seconds = (System.nanoTime() - start)/1e9;
+            pool.shutdown();
+            if (threads == 1) single = seconds;
+            System.out.println(String.format(Locale.ROOT, "%3d threads: %8.3fs %10.1f cases/s speedup %5.2f mean impact latitude %.9f",
+                    threads, seconds, CASES/seconds, single/seconds, stats.getImpactLatitude().getMean()));
+        }
+    }
+}
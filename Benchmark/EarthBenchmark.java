@@ -0,0 +1,635 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.Atmosphere;
+import Earth.AtmosphereCursor;
+import Earth.AtmosphereDerivatives;
+import Earth.AtmosphereModel;
+import Earth.AtmosphereProperties;
+import Earth.AtmosphereState;
+import Earth.AtmosphereTable;
+import Earth.AtmosphereTier;
+import Earth.Environment;
+import Earth.EnvironmentState;
+import Earth.Gravity;
+import Earth.GravityKernel;
+import Earth.GridFile;
+import Earth.Instrumentation;
+import Earth.StandardAtmosphere;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the atmosphere and gravity models. Every benchmark works through
+ * {@value #SAMPLES} heights or positions per call, so scores are per height or per point.
+ * Run with the GC profiler to see the allocation per height:
+ * <pre>
+ *  mvn package
+ *  java -jar jmh/target/benchmarks.jar EarthBenchmark -prof gc
+ * </pre>
+ * Baseline results are kept in the README so later changes can be compared against them.
+ * @author eib15ns
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(EarthBenchmark.SAMPLES)
+public class EarthBenchmark {
+
+    static final int SAMPLES = 1024; // must be a power of 2
+    static final int BULK_SAMPLES = 1 << 21; // must be a power of 2, 96MB of double positions and results
+    static final double LEO_RADIUS = 6778137; // m
+    static final double GEO_RADIUS = 42164137; // m
+
+    /**
+     * Heights within one layer of the atmosphere
+     */
+    @State(Scope.Thread)
+    public static class Layer {
+        @Param({"troposphere", "transition", "thermosphere"})
+        public String layer;
+
+        double[] heights;
+        Atmosphere atmosphere;
+        AtmosphereState state;
+
+        @Setup
+        public void setup(){
+            switch (layer){
+                case "troposphere": heights = heights(0, 11); break;
+                case "transition": heights = heights(86, 91); break;
+                case "thermosphere": heights = heights(120, 1000); break;
+                default: throw new RuntimeException("Unknown layer "+layer);
+            }
+            atmosphere = new Atmosphere(0.0);
+            state = new AtmosphereState();
+        }
+    }
+
+    /**
+     * Heights over the whole atmosphere, with the values and outputs the queries over them need
+     */
+    @State(Scope.Thread)
+    public static class Heights {
+        double[] full;
+        float[] fullF;
+        double[] sweep; // sorted, as seen by an ascent or reentry
+        double[] pressures;
+        double[] densities;
+        double[] found;
+        double[] outT, outP, outRho, outA;
+        float[] outTF, outPF, outRhoF, outAF;
+        AtmosphereState state;
+        AtmosphereProperties properties;
+        AtmosphereDerivatives derivatives;
+        AtmosphereCursor cursor;
+        AtmosphereTable table;
+        AtmosphereTable mapped;
+
+        @Setup
+        public void setup() throws IOException {
+            full = heights(0, 1000);
+            fullF = toFloat(full);
+            sweep = full.clone();
+            Arrays.sort(sweep);
+            pressures = new double[SAMPLES];
+            densities = new double[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++){
+                Atmosphere atmosphere = new Atmosphere(full[i]);
+                pressures[i] = atmosphere.getPressure();
+                densities[i] = atmosphere.getDensity();
+            }
+            found = new double[SAMPLES];
+            outT = new double[SAMPLES];
+            outP = new double[SAMPLES];
+            outRho = new double[SAMPLES];
+            outA = new double[SAMPLES];
+            outTF = new float[SAMPLES];
+            outPF = new float[SAMPLES];
+            outRhoF = new float[SAMPLES];
+            outAF = new float[SAMPLES];
+            state = new AtmosphereState();
+            properties = new AtmosphereProperties();
+            derivatives = new AtmosphereDerivatives();
+            cursor = new AtmosphereCursor();
+            table = new AtmosphereTable();
+            Path file = Files.createTempFile("atmosphere", ".grid");
+            GridFile.write(file, table);
+            mapped = GridFile.readAtmosphere(file);
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * An atmosphere table at one of the steps listed in its documentation
+     */
+    @State(Scope.Thread)
+    public static class TableStep {
+        @Param({"1.0", "0.1", "0.01"})
+        public double step;
+
+        AtmosphereTable table;
+
+        @Setup
+        public void setup(){
+            table = new AtmosphereTable(step);
+        }
+    }
+
+    /**
+     * One of the atmosphere tiers
+     */
+    @State(Scope.Thread)
+    public static class Tier {
+        @Param({"exponential", "table", "standard1976"})
+        public String tier;
+
+        AtmosphereModel model;
+
+        @Setup
+        public void setup(){
+            model = AtmosphereTier.get(tier).getModel();
+        }
+    }
+
+    /**
+     * Positions on a sphere at orbital radius, in double and single precision
+     */
+    @State(Scope.Thread)
+    public static class Orbit {
+        @Param({"LEO", "GEO"})
+        public String orbit;
+
+        double[] x, y, z;
+        double[] ax, ay, az;
+        float[] xf, yf, zf;
+        float[] axf, ayf, azf;
+        double[] interleaved;
+        double[] records;
+        EnvironmentState environment;
+
+        @Setup
+        public void setup(){
+            double[][] position = positions(orbit.equals("LEO") ? LEO_RADIUS : GEO_RADIUS);
+            x = position[0];
+            y = position[1];
+            z = position[2];
+            ax = new double[SAMPLES];
+            ay = new double[SAMPLES];
+            az = new double[SAMPLES];
+            xf = toFloat(x);
+            yf = toFloat(y);
+            zf = toFloat(z);
+            axf = new float[SAMPLES];
+            ayf = new float[SAMPLES];
+            azf = new float[SAMPLES];
+            interleaved = new double[3*SAMPLES];
+            for (int i = 0; i < SAMPLES; i++){
+                interleaved[3*i] = x[i];
+                interleaved[3*i + 1] = y[i];
+                interleaved[3*i + 2] = z[i];
+            }
+            records = new double[Environment.RECORD_SIZE*SAMPLES];
+            environment = new EnvironmentState();
+        }
+    }
+
+    /**
+     * Positions over arrays far larger than the caches, where the loop is bound by memory
+     * bandwidth rather than arithmetic. Each call moves on to the next block.
+     */
+    @State(Scope.Thread)
+    public static class Bulk {
+        double[] x, y, z;
+        double[] ax, ay, az;
+        float[] xf, yf, zf;
+        float[] axf, ayf, azf;
+        int offset;
+
+        @Setup
+        public void setup(){
+            double[][] position = positions(LEO_RADIUS);
+            x = new double[BULK_SAMPLES];
+            y = new double[BULK_SAMPLES];
+            z = new double[BULK_SAMPLES];
+            for (int i = 0; i < BULK_SAMPLES; i++){
+                x[i] = position[0][i & (SAMPLES - 1)];
+                y[i] = position[1][i & (SAMPLES - 1)];
+                z[i] = position[2][i & (SAMPLES - 1)];
+            }
+            ax = new double[BULK_SAMPLES];
+            ay = new double[BULK_SAMPLES];
+            az = new double[BULK_SAMPLES];
+            xf = toFloat(x);
+            yf = toFloat(y);
+            zf = toFloat(z);
+            axf = new float[BULK_SAMPLES];
+            ayf = new float[BULK_SAMPLES];
+            azf = new float[BULK_SAMPLES];
+        }
+
+        int next(){
+            offset = (offset + SAMPLES) & (BULK_SAMPLES - 1);
+            return(offset);
+        }
+    }
+
+    /**
+     * Switches the instrumentation on for the benchmarks that use it
+     */
+    @State(Scope.Thread)
+    public static class Instrumented {
+        @Setup(Level.Trial)
+        public void setup(){
+            Instrumentation.reset();
+            Instrumentation.setEnabled(true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown(){
+            Instrumentation.setEnabled(false);
+        }
+    }
+
+    // ATMOSPHERE BY LAYER
+
+    @Benchmark
+    public double atmosphereNew(Layer layer){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += new Atmosphere(layer.heights[i]).getDensity();
+        return(sum);
+    }
+
+    @Benchmark
+    public double atmosphereSetHeight(Layer layer){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            layer.atmosphere.setHeight(layer.heights[i]);
+            sum += layer.atmosphere.getDensity();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double atmosphereEvaluate(Layer layer){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluate(layer.heights[i], layer.state);
+            sum += layer.state.getDensity();
+        }
+        return(sum);
+    }
+
+    // ATMOSPHERE OVER ALL HEIGHTS
+
+    @Benchmark
+    public double tableDensity(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += heights.table.getDensity(heights.full[i]);
+        return(sum);
+    }
+
+    @Benchmark
+    public double tableDensityMapped(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += heights.mapped.getDensity(heights.full[i]);
+        return(sum);
+    }
+
+    @Benchmark
+    public double sweepEvaluate(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluate(heights.sweep[i], heights.state);
+            sum += heights.state.getDensity();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double sweepCursor(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            heights.cursor.evaluate(heights.sweep[i], heights.state);
+            sum += heights.state.getDensity();
+        }
+        return(sum);
+    }
+
+    /**
+     * Density slope from one analytic evaluation, compare with {@link #derivativesCentralDifference}
+     */
+    @Benchmark
+    public double derivatives(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluateDerivatives(heights.sweep[i], heights.derivatives);
+            sum += heights.derivatives.getDensityDerivative();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double derivativesCentralDifference(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            double height = Math.min(Math.max(heights.sweep[i], 1e-3), 1000 - 1e-3);
+            StandardAtmosphere.INSTANCE.evaluate(height, heights.state);
+            double density = heights.state.getDensity();
+            StandardAtmosphere.INSTANCE.evaluate(height + 1e-3, heights.state);
+            double above = heights.state.getDensity();
+            StandardAtmosphere.INSTANCE.evaluate(height - 1e-3, heights.state);
+            sum += density + (above - heights.state.getDensity())/2e-3;
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double propertiesPressure(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluate(heights.full[i], AtmosphereProperties.PRESSURE, heights.properties);
+            sum += heights.properties.getPressure();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double propertiesBasic(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluate(heights.full[i], AtmosphereProperties.BASIC, heights.properties);
+            sum += heights.properties.getDensity();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double propertiesAll(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluate(heights.full[i], AtmosphereProperties.ALL, heights.properties);
+            sum += heights.properties.getMeanFreePath();
+        }
+        return(sum);
+    }
+
+    // INVERSE FUNCTIONS
+
+    @Benchmark
+    public double heightAtPressure(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += StandardAtmosphere.INSTANCE.heightAtPressure(heights.pressures[i]);
+        return(sum);
+    }
+
+    @Benchmark
+    public double heightAtDensity(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += StandardAtmosphere.INSTANCE.heightAtDensity(heights.densities[i]);
+        return(sum);
+    }
+
+    @Benchmark
+    public double heightsAtDensity(Heights heights){
+        StandardAtmosphere.INSTANCE.heightsAtDensity(heights.densities, 0, heights.found, 0, SAMPLES);
+        return(heights.found[SAMPLES - 1]);
+    }
+
+    /**
+     * Height from pressure by bisection over new Atmosphere(h), the way callers did without
+     * the inverse functions
+     */
+    @Benchmark
+    public double bisectionPressure(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += bisect(heights.pressures[i], false);
+        return(sum);
+    }
+
+    @Benchmark
+    public double bisectionDensity(Heights heights){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += bisect(heights.densities[i], true);
+        return(sum);
+    }
+
+    // BATCHES
+
+    @Benchmark
+    public double batch(Heights heights){
+        Atmosphere.evaluate(heights.full, heights.outT, heights.outP, heights.outRho, heights.outA);
+        return(heights.outRho[SAMPLES - 1]);
+    }
+
+    @Benchmark
+    public double batchFloat(Heights heights){
+        Atmosphere.evaluate(heights.fullF, heights.outTF, heights.outPF, heights.outRhoF, heights.outAF);
+        return(heights.outRhoF[SAMPLES - 1]);
+    }
+
+    @Benchmark
+    public double tableBatch(Heights heights, TableStep table){
+        table.table.evaluate(heights.full, heights.outT, heights.outP, heights.outRho, heights.outA);
+        return(heights.outRho[SAMPLES - 1]);
+    }
+
+    @Benchmark
+    public double tierBatch(Heights heights, Tier tier){
+        tier.model.evaluate(heights.full, heights.outT, heights.outP, heights.outRho, heights.outA);
+        return(heights.outRho[SAMPLES - 1]);
+    }
+
+    // GRAVITY
+
+    @Benchmark
+    public double gravityNew(Orbit orbit){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++) sum += new Gravity(orbit.x[i], orbit.y[i], orbit.z[i]).getAccZ();
+        return(sum);
+    }
+
+    @Benchmark
+    public double gravityKernel(Orbit orbit){
+        GravityKernel.accelerate(orbit.x, orbit.y, orbit.z, orbit.ax, orbit.ay, orbit.az);
+        return(orbit.az[SAMPLES - 1]);
+    }
+
+    /**
+     * The same batch in a fork where jdk.incubator.vector is present, so it runs the Vector
+     * API loop instead of the scalar one
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+    public double gravityKernelVector(Orbit orbit){
+        if (!GravityKernel.isVectorised()) throw new RuntimeException("The Vector API kernel was not loaded.");
+        GravityKernel.accelerate(orbit.x, orbit.y, orbit.z, orbit.ax, orbit.ay, orbit.az);
+        return(orbit.az[SAMPLES - 1]);
+    }
+
+    @Benchmark
+    public double gravityKernelFloat(Orbit orbit){
+        GravityKernel.accelerate(orbit.xf, orbit.yf, orbit.zf, orbit.axf, orbit.ayf, orbit.azf);
+        return(orbit.azf[SAMPLES - 1]);
+    }
+
+    @Benchmark
+    public double bulkKernel(Bulk bulk){
+        int offset = bulk.next();
+        GravityKernel.accelerate(bulk.x, bulk.y, bulk.z, offset, bulk.ax, bulk.ay, bulk.az, offset, SAMPLES);
+        return(bulk.az[offset]);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+    public double bulkKernelVector(Bulk bulk){
+        if (!GravityKernel.isVectorised()) throw new RuntimeException("The Vector API kernel was not loaded.");
+        int offset = bulk.next();
+        GravityKernel.accelerate(bulk.x, bulk.y, bulk.z, offset, bulk.ax, bulk.ay, bulk.az, offset, SAMPLES);
+        return(bulk.az[offset]);
+    }
+
+    @Benchmark
+    public double bulkKernelFloat(Bulk bulk){
+        int offset = bulk.next();
+        GravityKernel.accelerate(bulk.xf, bulk.yf, bulk.zf, offset, bulk.axf, bulk.ayf, bulk.azf, offset, SAMPLES);
+        return(bulk.azf[offset]);
+    }
+
+    // GRAVITY AND ATMOSPHERE TOGETHER
+
+    /**
+     * Gravity, altitude and atmosphere as separate objects, compare with {@link #environmentAt}.
+     * Above 1000km the density is 0, as it is in {@link Environment}.
+     */
+    @Benchmark
+    public double environmentSeparate(Orbit orbit){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            Gravity gravity = new Gravity(orbit.x[i], orbit.y[i], orbit.z[i]);
+            double height = Environment.altitude(orbit.x[i], orbit.y[i], orbit.z[i]);
+            double density = height > 1000 ? 0 : new Atmosphere(height).getDensity();
+            sum += gravity.getAccZ() + density;
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double environmentAt(Orbit orbit){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            Environment.at(orbit.x[i], orbit.y[i], orbit.z[i], orbit.environment);
+            sum += orbit.environment.getAccZ() + orbit.environment.getDensity();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double environmentBatch(Orbit orbit){
+        Environment.at(orbit.interleaved, 0, orbit.records, 0, SAMPLES);
+        return(orbit.records[Environment.DENSITY]);
+    }
+
+    // INSTRUMENTED
+
+    @Benchmark
+    public double instrumentedEvaluate(Heights heights, Instrumented instrumented){
+        double sum = 0;
+        for (int i = 0; i < SAMPLES; i++){
+            StandardAtmosphere.INSTANCE.evaluate(heights.full[i], heights.state);
+            sum += heights.state.getDensity();
+        }
+        return(sum);
+    }
+
+    @Benchmark
+    public double instrumentedBatch(Heights heights, Instrumented instrumented){
+        Atmosphere.evaluate(heights.full, heights.outT, heights.outP, heights.outRho, heights.outA);
+        return(heights.outRho[SAMPLES - 1]);
+    }
+
+    /**
+     * Finds a height to 1e-9km by bisection
+     */
+    private static double bisect(double value, boolean density){
+        double low = 0;
+        double high = 1000;
+        while (high - low > 1e-9){
+            double middle = 0.5*(low + high);
+            Atmosphere atmosphere = new Atmosphere(middle);
+            double found = density ? atmosphere.getDensity() : atmosphere.getPressure();
+            if (found > value) low = middle;
+            else high = middle;
+        }
+        return(0.5*(low + high));
+    }
+
+    private static float[] toFloat(double[] values){
+        float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) result[i] = (float)values[i];
+        return(result);
+    }
+
+    /**
+     * Random heights spread over a range
+     */
+    private static double[] heights(double min, double max){
+        Random random = new Random(42);
+        double[] heights = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) heights[i] = min + (max - min)*random.nextDouble();
+        return(heights);
+    }
+
+    /**
+     * Random positions spread over a sphere
+     */
+    private static double[][] positions(double radius){
+        Random random = new Random(42);
+        double[][] position = new double[3][SAMPLES];
+        for (int i = 0; i < SAMPLES; i++){
+            double u = random.nextGaussian();
+            double v = random.nextGaussian();
+            double w = random.nextGaussian();
+            double norm = Math.sqrt(u*u + v*v + w*w);
+            position[0][i] = radius*u/norm;
+            position[1][i] = radius*v/norm;
+            position[2][i] = radius*w/norm;
+        }
+        return(position);
+    }
+}
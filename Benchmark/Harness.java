@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * A small timing harness for the benchmarks. Each case is warmed up so the JIT has
+ * compiled it, then timed over several measurement rounds. Allocation is measured
+ * with the per thread allocation counter of the HotSpot management bean.
+ * @author eib15ns
+ */
+public class Harness {
+
+    /**
+     * A benchmark case that performs a number of operations and returns a value
+     * depending on every result, so the JIT can not remove the work.
+     */
+    public interface Case {
+        double run(int operations);
+    }
+
+    //Instance Variables
+    private final int warmupRounds;
+    private final int measureRounds;
+    private final long roundNanos; // target length of a round
+    private final com.sun.management.ThreadMXBean threads;
+    private volatile double sink; // keeps results alive
+
+    /**
+     * Creates a harness with the default settings of 5 warmup and 10 measurement rounds
+     * of about 100ms each.
+     */
+    public Harness(){
+        this(5, 10, 100_000_000L);
+    }
+
+    /**
+     * Creates a harness
+     * @param warmupRounds Number of untimed rounds run before measuring
+     * @param measureRounds Number of timed rounds
+     * @param roundNanos Target length of a round in nanoseconds
+     */
+    public Harness(int warmupRounds, int measureRounds, long roundNanos){
+        this.warmupRounds = warmupRounds;
+        this.measureRounds = measureRounds;
+        this.roundNanos = roundNanos;
+        this.threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * Prints the header for the result lines
+     */
+    public void printHeader(){
+        System.out.println(String.format(Locale.ROOT, "%-48s %12s %10s %12s", "Benchmark", "ns/op", "+-", "B/op"));
+    }
+
+    /**
+     * Measures a case and prints a result line
+     * @param name Name printed for the case
+     * @param benchmark The case to measure
+     * @return The mean time per operation (ns)
+     */
+    public double measure(String name, Case benchmark){
+        // Size a round so it lasts roughly roundNanos
+        int operations = 1;
+        long elapsed = 0;
+        while (elapsed < this.roundNanos/10 && operations < (1 << 30)){
+            operations *= 2;
+            long start = System.nanoTime();
+            this.sink += benchmark.run(operations);
+            elapsed = System.nanoTime() - start;
+        }
+        operations = (int)Math.max(1, Math.min(Integer.MAX_VALUE, (double)operations*this.roundNanos/Math.max(1, elapsed)));
+
+        for (int i = 0; i < this.warmupRounds; i++){
+            this.sink += benchmark.run(operations);
+        }
+
+        double[] perOp = new double[this.measureRounds];
+        long threadId = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int i = 0; i < this.measureRounds; i++){
+            long bytesBefore = this.threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            this.sink += benchmark.run(operations);
+            long end = System.nanoTime();
+            allocated += this.threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+            perOp[i] = (double)(end - start)/operations;
+        }
+
+        double mean = 0;
+        for (double value : perOp) mean += value;
+        mean /= perOp.length;
+        double variance = 0;
+        for (double value : perOp) variance += (value - mean)*(value - mean);
+        double error = perOp.length > 1 ? Math.sqrt(variance/(perOp.length - 1)) : 0;
+        double bytesPerOp = (double)allocated/((double)operations*this.measureRounds);
+
+        System.out.println(String.format(Locale.ROOT, "%-48s %12.2f %10.2f %12.2f", name, mean, error, bytesPerOp));
+        return(mean);
+    }
+
+    /**
+     * Get the accumulated results of every case run so far
+     * @return The sum of the case results
+     */
+    public double getSink(){return(this.sink);}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.Propagator;
+
+/**
+ * Compares the fixed step and adaptive integrators of {@link Propagator} on a reentry
+ * from a decaying 150km orbit, reporting function evaluations and time per run.
+ * The fixed step is chosen small enough that both runs land within about 100m of each other.
+ * @author eib15ns
+ */
+public class PropagatorBenchmark {
+
+    private static final double MU = 3.986004418e14; // m^3/s^2
+    private static final double RADIUS = 6378137 + 150e3; // m
+
+    public static void main(String[] args){
+        Harness harness = new Harness();
+        harness.printHeader();
+
+        double speed = 0.97*Math.sqrt(MU/RADIUS);
+        double[] initial = {RADIUS, 0, 0, 0, speed, 0};
+
+        Propagator rk4 = new Propagator(Propagator.Method.RK4, 500, 1.0, 2.2);
+        rk4.setStepSize(0.05);
+        harness.measure("RK4 reentry (per run)", n -> reentry(rk4, initial, n));
+
+        Propagator dopri = new Propagator(Propagator.Method.DORMAND_PRINCE, 500, 1.0, 2.2);
+        harness.measure("Dormand-Prince reentry (per run)", n -> reentry(dopri, initial, n));
+
+        System.out.println("RK4 evaluations: "+rk4.getEvaluations()+", impact at "+rk4.getTime()+"s");
+        System.out.println("Dormand-Prince evaluations: "+dopri.getEvaluations()+", impact at "+dopri.getTime()+"s");
+    }
+
+    private static double reentry(Propagator propagator, double[] initial, int runs){
+        double sum = 0;
+        for (int i = 0; i < runs; i++){
+            propagator.initialise(0.0, initial);
+            sum += propagator.propagate(1e5);
+        }
+        return(sum);
+    }
+}
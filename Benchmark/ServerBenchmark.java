@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.EarthServer;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures {@link EarthServer} against localhost: concurrent single point requests, which
+ * the server coalesces into batches, and binary batch requests of increasing size.
+ * @author eib15ns
+ */
+public class ServerBenchmark {
+
+    private static final int SINGLE_REQUESTS = 20000;
+    private static final int IN_FLIGHT = 64;
+    private static final int BATCH_POINTS = 1 << 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        ExecutorService clientThreads = Executors.newFixedThreadPool(4);
+        // Sends the body of each response straight away, see EarthServer.start
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        try (EarthServer server = new EarthServer()){
+            server.start(0);
+            HttpClient client = HttpClient.newBuilder().executor(clientThreads).build();
+            String base = "http://localhost:"+server.getPort();
+
+            // Warm up the JIT on both sides before timing
+            singles(client, base, SINGLE_REQUESTS/4);
+            batches(client, base, 1 << 16);
+
+            long start = System.nanoTime();
+            singles(client, base, SINGLE_REQUESTS);
+            double seconds = (System.nanoTime() - start)/1e9;
+            System.out.println(String.format(Locale.ROOT, "single points, %d in flight: %10.0f requests/s",
+                    IN_FLIGHT, SINGLE_REQUESTS/seconds));
+
+            for (int size = 1 << 10; size <= BATCH_POINTS; size <<= 5){
+                start = System.nanoTime();
+                int rounds = Math.max(1, BATCH_POINTS/size);
+                for (int i = 0; i < rounds; i++) batches(client, base, size);
+                seconds = (System.nanoTime() - start)/1e9;
+                System.out.println(String.format(Locale.ROOT, "binary batches of %7d: %12.0f heights/s",
+                        size, (double)rounds*size/seconds));
+            }
+            System.out.print(server.report());
+        }
+        finally {
+            clientThreads.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends single height requests keeping a fixed number in flight
+     */
+    private static void singles(HttpClient client, String base, int count){
+        Random random = new Random(42);
+        CompletableFuture<?>[] inFlight = new CompletableFuture<?>[IN_FLIGHT];
+        for (int i = 0; i < count; i++){
+            int slot = i % IN_FLIGHT;
+            if (inFlight[slot] != null) inFlight[slot].join();
+            URI uri = URI.create(base+"/atmosphere?height="+1000*random.nextDouble());
+            inFlight[slot] = client.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding());
+        }
+        for (CompletableFuture<?> request : inFlight){
+            if (request != null) request.join();
+        }
+    }
+
+    /**
+     * Sends one binary batch of random heights
+     */
+    private static void batches(HttpClient client, String base, int size) throws IOException, InterruptedException {
+        Random random = new Random(42);
+        ByteBuffer body = ByteBuffer.allocate(8*size).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < size; i++) body.putDouble(1000*random.nextDouble());
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base+"/atmosphere/batch"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.array())).build();
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) throw new RuntimeException("Batch request failed with status "+response.statusCode());
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.GravityCache;
+import Earth.GravityKernel;
+import Earth.SphericalHarmonicGravity;
+import java.util.Random;
+
+/**
+ * Compares the cost of the spherical harmonic gravity model at several truncation
+ * degrees with the J2 kernel. Coefficients are random with magnitudes following
+ * Kaula's rule, which costs the same to evaluate as a published field of that degree.
+ * The full field is also read through a {@link GravityCache} along two orbits of a
+ * 400km track, after the cache has been filled by a first pass.
+ * @author eib15ns
+ */
+public class SphericalHarmonicBenchmark {
+
+    private static final int SAMPLES = 1024; // must be a power of 2
+    private static final double GM = 3.986004415e14; // m^3/s^2
+    private static final double RADIUS = 6378136.3; // m
+    private static final int MAX_DEGREE = 70;
+    private static final int TRACK = 1111; // 10s steps over two orbits at 400km
+
+    public static void main(String[] args){
+        Harness harness = new Harness();
+        harness.printHeader();
+
+        Random random = new Random(42);
+        double[][] cbar = new double[MAX_DEGREE + 1][];
+        double[][] sbar = new double[MAX_DEGREE + 1][];
+        for (int n = 0; n <= MAX_DEGREE; n++){
+            cbar[n] = new double[n + 1];
+            sbar[n] = new double[n + 1];
+            for (int m = 0; m <= n && n >= 2; m++){
+                cbar[n][m] = 1e-5/(n*n)*random.nextGaussian();
+                if (m > 0) sbar[n][m] = 1e-5/(n*n)*random.nextGaussian();
+            }
+        }
+        cbar[0][0] = 1.0;
+        SphericalHarmonicGravity field = new SphericalHarmonicGravity(GM, RADIUS, cbar, sbar, MAX_DEGREE);
+
+        double[] x = new double[SAMPLES];
+        double[] y = new double[SAMPLES];
+        double[] z = new double[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++){
+            double u = random.nextGaussian();
+            double v = random.nextGaussian();
+            double w = random.nextGaussian();
+            double scale = (RADIUS + 400e3)/Math.sqrt(u*u + v*v + w*w);
+            x[i] = scale*u;
+            y[i] = scale*v;
+            z[i] = scale*w;
+        }
+
+        double[] out = new double[3];
+        harness.measure("GravityKernel J2", n -> {
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                int k = i & (SAMPLES - 1);
+                GravityKernel.accelerate(x[k], y[k], z[k], out, 0);
+                sum += out[2];
+            }
+            return(sum);
+        });
+        for (int degree : new int[]{2, 8, 20, 40, MAX_DEGREE}){
+            harness.measure("SphericalHarmonicGravity degree "+degree, n -> {
+                double sum = 0;
+                for (int i = 0; i < n; i++){
+                    int k = i & (SAMPLES - 1);
+                    field.accelerate(x[k], y[k], z[k], degree, out, 0);
+                    sum += out[2];
+                }
+                return(sum);
+            });
+        }
+
+        // Inclined circular orbit with the Earth turning underneath
+        double[] tx = new double[TRACK];
+        double[] ty = new double[TRACK];
+        double[] tz = new double[TRACK];
+        double r = RADIUS + 400e3;
+        double meanMotion = Math.sqrt(GM/(r*r*r));
+        double inclination = Math.toRadians(51.6);
+        for (int i = 0; i < TRACK; i++){
+            double u = meanMotion*10.0*i;
+            double spin = 7.292115e-5*10.0*i;
+            double x0 = r*Math.cos(u);
+            double y0 = r*Math.sin(u)*Math.cos(inclination);
+            tx[i] = x0*Math.cos(spin) + y0*Math.sin(spin);
+            ty[i] = y0*Math.cos(spin) - x0*Math.sin(spin);
+            tz[i] = r*Math.sin(u)*Math.sin(inclination);
+        }
+
+        GravityCache cache = new GravityCache(field, GM, RADIUS, RADIUS + 1000e3, 200e3, 1e-5, 256L << 20);
+        long start = System.nanoTime();
+        for (int i = 0; i < TRACK; i++) cache.accelerate(tx[i], ty[i], tz[i], out, 0);
+        System.out.println("GravityCache filled "+cache.getBuilds()+" blocks in "+(System.nanoTime() - start)/1000000+"ms, "+cache.getMemoryUsed()/1024+"kB");
+        harness.measure("GravityCache degree "+MAX_DEGREE+" orbit track", n -> {
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                int k = i%TRACK;
+                cache.accelerate(tx[k], ty[k], tz[k], out, 0);
+                sum += out[2];
+            }
+            return(sum);
+        });
+        harness.measure("SphericalHarmonicGravity degree "+MAX_DEGREE+" orbit track", n -> {
+            double sum = 0;
+            for (int i = 0; i < n; i++){
+                int k = i%TRACK;
+                field.accelerate(tx[k], ty[k], tz[k], out, 0);
+                sum += out[2];
+            }
+            return(sum);
+        });
+    }
+}
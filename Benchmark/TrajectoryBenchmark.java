@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Benchmark;
+
+import Earth.TrajectoryAnnotator;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link TrajectoryAnnotator} on generated CSV and binary
+ * trajectories, from one worker thread up to the number of available processors.
+ * The files are written to the temporary directory and deleted afterwards.
+ * @author eib15ns
+ */
+public class TrajectoryBenchmark {
+
+    private static final int RECORDS = 1000000;
+
+    public static void main(String[] args) throws IOException {
+        Path csv = Files.createTempFile("trajectory", ".csv");
+        Path binary = Files.createTempFile("trajectory", ".bin");
+        Path output = Files.createTempFile("trajectory", ".out");
+        try {
+            generate(csv, binary);
+            TrajectoryAnnotator annotator = new TrajectoryAnnotator();
+
+            // Warm up the JIT before timing
+            annotator.annotate(csv, output, TrajectoryAnnotator.Format.CSV);
+            annotator.annotate(binary, output, TrajectoryAnnotator.Format.BINARY);
+
+            int processors = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads <= processors; threads *= 2){
+                annotator.setThreads(threads, 2*threads);
+                measure(annotator, "CSV", csv, output, TrajectoryAnnotator.Format.CSV, threads);
+                measure(annotator, "binary", binary, output, TrajectoryAnnotator.Format.BINARY, threads);
+                if (threads < processors && threads*2 > processors) threads = processors/2;
+            }
+        }
+        finally {
+            Files.deleteIfExists(csv);
+            Files.deleteIfExists(binary);
+            Files.deleteIfExists(output);
+        }
+    }
+
+    private static void measure(TrajectoryAnnotator annotator, String name, Path input, Path output,
+            TrajectoryAnnotator.Format format, int threads) throws IOException {
+        long start = System.nanoTime();
+        long records = annotator.annotate(input, output, format);
+        double seconds = (System.nanoTime() - start)/1e9;
+        System.out.println(String.format(Locale.ROOT, "%-6s %3d threads: %8.3fs %12.0f records/s %8.1f MB/s in",
+                name, threads, seconds, records/seconds, Files.size(input)/seconds/1e6));
+    }
+
+    /**
+     * Writes the same random descent trajectory in both formats
+     */
+    private static void generate(Path csv, Path binary) throws IOException {
+        Random random = new Random(42);
+        ByteBuffer record = ByteBuffer.allocate(8*TrajectoryAnnotator.INPUT_FIELDS).order(ByteOrder.LITTLE_ENDIAN);
+        try (BufferedWriter text = Files.newBufferedWriter(csv);
+                FileChannel data = FileChannel.open(binary, StandardOpenOption.WRITE)){
+            text.write("time,altitude,x,y,z\n");
+            for (int i = 0; i < RECORDS; i++){
+                double time = 0.01*i;
+                double height = 1000.0*(1 - (double)i/RECORDS);
+                double radius = 6378137 + 1000*height;
+                double angle = 2*Math.PI*random.nextDouble();
+                double x = radius*Math.cos(angle);
+                double y = radius*Math.sin(angle);
+                double z = 1000*random.nextGaussian();
+                text.write(time+","+height+","+x+","+y+","+z+"\n");
+                record.clear();
+                record.putDouble(time).putDouble(height).putDouble(x).putDouble(y).putDouble(z).flip();
+                while (record.hasRemaining()) data.write(record);
+            }
+        }
+    }
+}
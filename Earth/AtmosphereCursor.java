@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Evaluates the 1976 standard atmosphere along a trajectory, remembering the interval of
+ * the model the previous height fell in. Ascent and reentry move through height almost
+ * monotonically, so the next height is nearly always in the same interval or the one next
+ * to it. The cursor checks the bounds of the current interval first, which it keeps in
+ * fields, then its two neighbours, and only searches every interval after a jump.
+ * A sweep therefore costs one or two comparisons per height to find its interval instead
+ * of walking the layer boundaries from the bottom.
+ *
+ * The temperature and pressure are worked out by the same code as {@link StandardAtmosphere},
+ * so results are bit-identical to it for every height.
+ *
+ * A {@link Listener} can be told whenever the height moves into another
+ * {@link AtmosphereLayer}, for example to switch aerodynamic models or log the crossing.
+ * A cursor holds state, so each thread needs its own.
+ * @author eib15ns
+ */
+public class AtmosphereCursor {
+
+    /**
+     * Receives the layer crossings of a cursor
+     */
+    public interface Listener {
+
+        /**
+         * Called after a height in a different layer from the previous one is evaluated
+         * @param from The layer of the previous height
+         * @param to The layer of the new height
+         * @param height Geometric height in km
+         */
+        void crossed(AtmosphereLayer from, AtmosphereLayer to, double height);
+    }
+
+    //Instance Variables
+    private int interval = -1; // interval of the previous height, -1 before the first
+    private double bandLow; // km
+    private double bandHigh; // km
+    private double lower; // km
+    private double upper; // km
+    private boolean geoPotBounds; // lower and upper are geopotential heights
+    private Listener listener;
+    private long searches; // evaluations that needed more than the current interval
+
+    /**
+     * Creates a cursor that will search every interval for the first height
+     */
+    public AtmosphereCursor(){
+    }
+
+    /**
+     * Creates a cursor that reports layer crossings
+     * @param listener Told of every layer crossing
+     */
+    public AtmosphereCursor(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the listener told of layer crossings
+     * @param listener The listener, or null for none
+     */
+    public void setListener(Listener listener){this.listener = listener;}
+
+    /**
+     * Evaluates the model at a height
+     * @param height Geometric height in km
+     * @param out Holder the results are written to
+     */
+    public void evaluate(double height, AtmosphereState out){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            if (height > 1000.0 || height < 0.0) Instrumentation.outOfRange(Instrumentation.Model.STANDARD_ATMOSPHERE, height);
+            Instrumentation.layer(locate(height, out));
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, 1);
+        }
+        else {
+            locate(height, out);
+        }
+    }
+
+    /**
+     * Evaluates the model and its derivatives with respect to geometric height, as
+     * {@link StandardAtmosphere#evaluateDerivatives} does
+     * @param height Geometric height in km
+     * @param out Holder the values and derivatives are written to
+     */
+    public void evaluateDerivatives(double height, AtmosphereDerivatives out){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            if (height > 1000.0 || height < 0.0) Instrumentation.outOfRange(Instrumentation.Model.STANDARD_ATMOSPHERE, height);
+            int current = locate(height, out);
+            StandardAtmosphere.setDerivatives(current, StandardAtmosphere.getGeoPotHeight(height), out);
+            Instrumentation.layer(current);
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, 1);
+        }
+        else {
+            int current = locate(height, out);
+            StandardAtmosphere.setDerivatives(current, StandardAtmosphere.getGeoPotHeight(height), out);
+        }
+    }
+
+    /**
+     * Finds the interval of a height and evaluates the model in it
+     * @return The interval index
+     */
+    private int locate(double height, AtmosphereState out){
+        StandardAtmosphere.checkHeight(height);
+        double geoPot = StandardAtmosphere.getGeoPotHeight(height);
+        int current = this.interval;
+
+        if (!inCurrent(height, geoPot)){
+            this.searches++;
+            int next;
+            if (current >= 0 && current + 1 < StandardAtmosphere.INTERVALS && StandardAtmosphere.contains(current + 1, height, geoPot)){
+                next = current + 1;
+            }
+            else if (current > 0 && StandardAtmosphere.contains(current - 1, height, geoPot)){
+                next = current - 1;
+            }
+            else {
+                next = StandardAtmosphere.interval(height, geoPot);
+            }
+            moveTo(next);
+
+            if (this.listener != null && current >= 0){
+                AtmosphereLayer from = AtmosphereLayer.of(current);
+                AtmosphereLayer to = AtmosphereLayer.of(next);
+                if (from != to) this.listener.crossed(from, to, height);
+            }
+            current = next;
+        }
+
+        double temp = StandardAtmosphere.temperature(current, height, geoPot);
+        double pres = StandardAtmosphere.pressure(current, height, geoPot);
+        out.set(height, temp, pres, StandardAtmosphere.calcDensity(pres, temp), StandardAtmosphere.calcSpeedSound(temp));
+        return(current);
+    }
+
+    /**
+     * Checks a height against the cached bounds of the current interval
+     */
+    private boolean inCurrent(double height, double geoPot){
+        if (!(height > this.bandLow && height <= this.bandHigh)) return(false);
+        if (this.geoPotBounds) return(geoPot >= this.lower && geoPot < this.upper);
+        return(height > this.lower && height <= this.upper);
+    }
+
+    /**
+     * Makes an interval current and caches its bounds
+     */
+    private void moveTo(int next){
+        this.interval = next;
+        this.bandLow = StandardAtmosphere.BAND_LOW[next];
+        this.bandHigh = StandardAtmosphere.BAND_HIGH[next];
+        this.lower = StandardAtmosphere.LOWER[next];
+        this.upper = StandardAtmosphere.UPPER[next];
+        this.geoPotBounds = next < StandardAtmosphere.FIRST_NODE;
+    }
+
+    /**
+     * Forgets the current interval, so the next height is searched for from scratch and
+     * does not report a crossing. Used when starting a new trajectory.
+     */
+    public void reset(){
+        this.interval = -1;
+        this.bandLow = 0;
+        this.bandHigh = 0;
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the layer of the last height evaluated
+     * @return The layer, or null before the first evaluation
+     */
+    public AtmosphereLayer getLayer(){return(this.interval < 0 ? null : AtmosphereLayer.of(this.interval));}
+    /**
+     * Get the number of evaluations that fell outside the interval of the previous height
+     * @return The number of interval changes, including the first evaluation
+     */
+    public long getSearches(){return(this.searches);}
+}
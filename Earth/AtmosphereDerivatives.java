@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Holds the atmospheric values at one height together with their derivatives with respect
+ * to geometric height, as written by {@link StandardAtmosphere#evaluateDerivatives}.
+ * Derivatives are per km because heights are given in km.
+ * A holder is meant to be reused by a single thread, so an evaluation loop needs no
+ * allocation.
+ * @author eib15ns
+ */
+public class AtmosphereDerivatives extends AtmosphereState {
+
+    //Instance Variables
+    private double temperatureDerivative; // K/km
+    private double pressureDerivative; // Pa/km
+    private double densityDerivative; // kg/m^3/km
+    private double speedSoundDerivative; // m/s/km
+
+    /**
+     * Sets every derivative of the holder
+     * @param temperature Derivative of the temperature (K/km)
+     * @param pressure Derivative of the pressure (Pa/km)
+     * @param density Derivative of the density (kg/m^3/km)
+     * @param speedSound Derivative of the speed of sound (m/s/km)
+     */
+    public void setDerivatives(double temperature, double pressure, double density, double speedSound){
+        this.temperatureDerivative = temperature;
+        this.pressureDerivative = pressure;
+        this.densityDerivative = density;
+        this.speedSoundDerivative = speedSound;
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the derivative of the temperature with respect to geometric height
+     * @return dT/dh (K/km)
+     */
+    public double getTemperatureDerivative(){return(this.temperatureDerivative);}
+    /**
+     * Get the derivative of the pressure with respect to geometric height
+     * @return dP/dh (Pa/km)
+     */
+    public double getPressureDerivative(){return(this.pressureDerivative);}
+    /**
+     * Get the derivative of the density with respect to geometric height
+     * @return d(rho)/dh (kg/m^3/km)
+     */
+    public double getDensityDerivative(){return(this.densityDerivative);}
+    /**
+     * Get the derivative of the speed of sound with respect to geometric height
+     * @return da/dh (m/s/km)
+     */
+    public double getSpeedSoundDerivative(){return(this.speedSoundDerivative);}
+
+    @Override
+    public String toString() {
+        String result = super.toString()
+                +"dDensity/dh(kg/m^3/km): "+densityDerivative+"\n"
+                +"dPressure/dh(Pa/km): "+pressureDerivative+"\n"
+                +"dTemperature/dh(K/km): "+temperatureDerivative+"\n"
+                +"dSpeed of Sound/dh(m/s/km): "+speedSoundDerivative+"\n";
+        return(result);
+    }
+}
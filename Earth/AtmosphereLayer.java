@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * The layers of the 1976 standard atmosphere, named after the geometric height in km
+ * they reach. Each layer has its own temperature profile:
+ * <ul>
+ *  <li>LAYER80, the seven gradient layers with linear temperature in geopotential height</li>
+ *  <li>LAYER86, the transition where the molecular weight starts to fall</li>
+ *  <li>LAYER91, isothermal</li>
+ *  <li>LAYER110, elliptical temperature</li>
+ *  <li>LAYER120, linear temperature</li>
+ *  <li>LAYER1000, exponential approach to the exospheric temperature</li>
+ * </ul>
+ * @author eib15ns
+ */
+public enum AtmosphereLayer {
+    LAYER80(80),
+    LAYER86(86),
+    LAYER91(91),
+    LAYER110(110),
+    LAYER120(120),
+    LAYER1000(1000);
+
+    private static final AtmosphereLayer[] OF_INTERVAL = new AtmosphereLayer[StandardAtmosphere.INTERVALS];
+
+    static {
+        // Intervals 0-6 are the gradient layers, 7-19 the transition to 86km and 20-33
+        // the pressure nodes above it
+        for (int i = 0; i < StandardAtmosphere.INTERVALS; i++){
+            if (i < StandardAtmosphere.FIRST_TRANSITION) OF_INTERVAL[i] = LAYER80;
+            else if (i < StandardAtmosphere.FIRST_NODE) OF_INTERVAL[i] = LAYER86;
+            else if (i == StandardAtmosphere.FIRST_NODE) OF_INTERVAL[i] = LAYER91;
+            else if (i < StandardAtmosphere.FIRST_NODE + 4) OF_INTERVAL[i] = LAYER110;
+            else if (i == StandardAtmosphere.FIRST_NODE + 4) OF_INTERVAL[i] = LAYER120;
+            else OF_INTERVAL[i] = LAYER1000;
+        }
+    }
+
+    private final double top; // km
+
+    AtmosphereLayer(double top){
+        this.top = top;
+    }
+
+    /**
+     * Get the layer an interval of {@link StandardAtmosphere} belongs to
+     * @param interval The interval index
+     * @return The layer
+     */
+    static AtmosphereLayer of(int interval){return(OF_INTERVAL[interval]);}
+
+    /**
+     * Get the geometric height at the top of the layer
+     * @return The height (km)
+     */
+    public double getTop(){return(this.top);}
+}
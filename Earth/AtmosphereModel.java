@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.nio.DoubleBuffer;
+import java.util.Objects;
+
+/**
+ * A model of the atmosphere as a pure function of geometric height.
+ * Implementations hold no mutable state, so one instance can be evaluated from many
+ * threads at once without locking. Results are written into a caller supplied
+ * {@link AtmosphereState}, which each thread keeps for itself.
+ * The default batch functions have nowhere to keep a holder between calls, so each call
+ * allocates one AtmosphereState and reuses it for every height in the batch. Models that
+ * must not allocate override them.
+ * @author eib15ns
+ */
+public interface AtmosphereModel {
+
+    /**
+     * Evaluates the model at a single height
+     * @param height Geometric height in km
+     * @param out Holder the results are written to
+     */
+    void evaluate(double height, AtmosphereState out);
+
+    /**
+     * Evaluates the model at a single height into a new holder
+     * @param height Geometric height in km
+     * @return The atmospheric values at the height
+     */
+    default AtmosphereState evaluate(double height){
+        AtmosphereState state = new AtmosphereState();
+        evaluate(height, state);
+        return(state);
+    }
+
+    /**
+     * Evaluates the model for every height in an array.
+     * @param heightsKm Geometric heights in km
+     * @param outT Array the temperatures are written to (K)
+     * @param outP Array the pressures are written to (Pa)
+     * @param outRho Array the densities are written to (kg/m^3)
+     * @param outA Array the speeds of sound are written to (m/s)
+     */
+    default void evaluate(double[] heightsKm, double[] outT, double[] outP, double[] outRho, double[] outA){
+        evaluate(heightsKm, 0, outT, outP, outRho, outA, 0, heightsKm.length);
+    }
+
+    /**
+     * Evaluates the model for a range of heights in an array. The default allocates one
+     * AtmosphereState per call; every built in model overrides it without allocating.
+     * @param heightsKm Geometric heights in km
+     * @param offset Index of the first height to evaluate
+     * @param outT Array the temperatures are written to (K)
+     * @param outP Array the pressures are written to (Pa)
+     * @param outRho Array the densities are written to (kg/m^3)
+     * @param outA Array the speeds of sound are written to (m/s)
+     * @param outOffset Index the first result is written to in every output array
+     * @param length Number of heights to evaluate
+     */
+    default void evaluate(double[] heightsKm, int offset, double[] outT, double[] outP,
+            double[] outRho, double[] outA, int outOffset, int length){
+
+        Objects.checkFromIndexSize(offset, length, heightsKm.length);
+        Objects.checkFromIndexSize(outOffset, length, outT.length);
+        Objects.checkFromIndexSize(outOffset, length, outP.length);
+        Objects.checkFromIndexSize(outOffset, length, outRho.length);
+        Objects.checkFromIndexSize(outOffset, length, outA.length);
+
+        AtmosphereState state = new AtmosphereState();
+        for (int i = 0; i < length; i++){
+            evaluate(heightsKm[offset + i], state);
+            outT[outOffset + i] = state.getTemperature();
+            outP[outOffset + i] = state.getPressure();
+            outRho[outOffset + i] = state.getDensity();
+            outA[outOffset + i] = state.getSpeedSound();
+        }
+    }
+
+    /**
+     * Evaluates the model for heights held in a buffer. Heights are heightStride doubles
+     * apart so they can sit inside a larger state vector. Each result record holds the
+     * temperature, pressure, density and speed of sound next to each other in that order,
+     * and records are outStride doubles apart. Buffer positions and limits are not changed.
+     * The default allocates one AtmosphereState per call; {@link StandardAtmosphere}
+     * overrides it without allocating.
+     * @param heights Buffer holding the geometric heights (km)
+     * @param heightIndex Index of the first height
+     * @param heightStride Number of doubles from one height to the next
+     * @param out Buffer the results are written to (K, Pa, kg/m^3, m/s)
+     * @param outIndex Index of the temperature in the first result record
+     * @param outStride Number of doubles from one result record to the next
+     * @param count Number of heights to evaluate
+     */
+    default void evaluate(DoubleBuffer heights, int heightIndex, int heightStride,
+            DoubleBuffer out, int outIndex, int outStride, int count){
+
+        Buffers.checkRecords(heights, heightIndex, heightStride, 1, count);
+        Buffers.checkRecords(out, outIndex, outStride, 4, count);
+
+        AtmosphereState state = new AtmosphereState();
+        for (int i = 0; i < count; i++){
+            evaluate(heights.get(heightIndex + i*heightStride), state);
+            int record = outIndex + i*outStride;
+            out.put(record, state.getTemperature());
+            out.put(record + 1, state.getPressure());
+            out.put(record + 2, state.getDensity());
+            out.put(record + 3, state.getSpeedSound());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Selects which atmospheric properties {@link StandardAtmosphere#evaluate(double, int, AtmosphereProperties)}
+ * works out, and holds the results. Properties are requested as a bitmask built from the
+ * constants of this class, for example {@code PRESSURE | VISCOSITY}, and only the requested
+ * properties and the values they depend on are calculated, so a pressure only query costs
+ * no more than the pressure.
+ *
+ * Requested properties are stored as a record in the order of their bits, which is also
+ * the layout of the batch evaluation. Getters of properties that were not requested
+ * return NaN.
+ * A holder is meant to be reused by a single thread, so an evaluation loop needs no
+ * allocation.
+ * @author eib15ns
+ */
+public class AtmosphereProperties {
+
+    /** Temperature (K) */
+    public static final int TEMPERATURE = 1;
+    /** Pressure (Pa) */
+    public static final int PRESSURE = 1 << 1;
+    /** Density from the sea level molar mass, as returned by every other evaluation (kg/m^3) */
+    public static final int DENSITY = 1 << 2;
+    /** Speed of sound (m/s) */
+    public static final int SPEED_SOUND = 1 << 3;
+    /** Dynamic viscosity from Sutherland's law (kg/(m s)) */
+    public static final int VISCOSITY = 1 << 4;
+    /** Thermal conductivity (W/(m K)) */
+    public static final int THERMAL_CONDUCTIVITY = 1 << 5;
+    /** Mean free path of the air molecules (m) */
+    public static final int MEAN_FREE_PATH = 1 << 6;
+    /** Number of molecules per cubic metre (1/m^3) */
+    public static final int NUMBER_DENSITY = 1 << 7;
+    /** Mean molecular weight (kg/kmol) */
+    public static final int MOLECULAR_WEIGHT = 1 << 8;
+    /** Pressure scale height (km) */
+    public static final int SCALE_HEIGHT = 1 << 9;
+
+    /** The four values held by {@link AtmosphereState} */
+    public static final int BASIC = TEMPERATURE | PRESSURE | DENSITY | SPEED_SOUND;
+    /** Every property */
+    public static final int ALL = (1 << 10) - 1;
+
+    // Properties needing each intermediate value
+    static final int NEEDS_TEMPERATURE = ALL & ~(PRESSURE | MOLECULAR_WEIGHT);
+    static final int NEEDS_PRESSURE = PRESSURE | DENSITY | MEAN_FREE_PATH | NUMBER_DENSITY;
+    static final int NEEDS_WEIGHT = MOLECULAR_WEIGHT | SCALE_HEIGHT;
+
+    //Instance Variables
+    private final double[] record = new double[Integer.bitCount(ALL)];
+    private double height; // km
+    private int properties;
+
+    /**
+     * Gets the number of values a set of properties writes, which is the record size of
+     * the batch evaluation
+     * @param properties Bitmask of requested properties
+     * @return The number of properties in the mask
+     */
+    public static int count(int properties){
+        check(properties);
+        return(Integer.bitCount(properties));
+    }
+
+    /**
+     * Gets the index of a property within the record of a set of properties
+     * @param properties Bitmask of requested properties
+     * @param property A single property
+     * @return Index of the property in the record, or -1 if it is not in the mask
+     */
+    public static int index(int properties, int property){
+        if ((properties & property) == 0) return(-1);
+        return(Integer.bitCount(properties & (property - 1)));
+    }
+
+    /**
+     * Throws if a bitmask is empty or holds unknown bits
+     * @param properties Bitmask of requested properties
+     */
+    static void check(int properties){
+        if (properties == 0 || (properties & ~ALL) != 0) throw new RuntimeException("Unknown atmosphere properties requested: "+Integer.toBinaryString(properties));
+    }
+
+    /**
+     * Starts a new evaluation, returning the record to write the values to
+     * @param height Geometric height (km)
+     * @param properties Bitmask of requested properties
+     * @return The record of the holder
+     */
+    double[] begin(double height, int properties){
+        this.height = height;
+        this.properties = properties;
+        return(this.record);
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the value of one property
+     * @param property A single property constant
+     * @return The value, or NaN if it was not requested
+     */
+    public double get(int property){
+        int index = index(this.properties, property);
+        return(index < 0 ? Double.NaN : this.record[index]);
+    }
+    /**
+     * Get the properties the holder was last evaluated for
+     * @return Bitmask of the evaluated properties
+     */
+    public int getProperties(){return(this.properties);}
+    /**
+     * Get the height the values were evaluated at
+     * @return The geometric height (km)
+     */
+    public double getHeight(){return(this.height);}
+    /**
+     * Get the temperature
+     * @return The temperature (K)
+     */
+    public double getTemperature(){return(get(TEMPERATURE));}
+    /**
+     * Get the pressure
+     * @return The pressure (Pa)
+     */
+    public double getPressure(){return(get(PRESSURE));}
+    /**
+     * Get the density
+     * @return The density (kg/m^3)
+     */
+    public double getDensity(){return(get(DENSITY));}
+    /**
+     * Get the speed of sound
+     * @return The speed of sound (m/s)
+     */
+    public double getSpeedSound(){return(get(SPEED_SOUND));}
+    /**
+     * Get the dynamic viscosity
+     * @return The dynamic viscosity (kg/(m s))
+     */
+    public double getViscosity(){return(get(VISCOSITY));}
+    /**
+     * Get the thermal conductivity
+     * @return The thermal conductivity (W/(m K))
+     */
+    public double getThermalConductivity(){return(get(THERMAL_CONDUCTIVITY));}
+    /**
+     * Get the mean free path
+     * @return The mean free path (m)
+     */
+    public double getMeanFreePath(){return(get(MEAN_FREE_PATH));}
+    /**
+     * Get the number density
+     * @return The number of molecules per cubic metre (1/m^3)
+     */
+    public double getNumberDensity(){return(get(NUMBER_DENSITY));}
+    /**
+     * Get the mean molecular weight
+     * @return The mean molecular weight (kg/kmol)
+     */
+    public double getMolecularWeight(){return(get(MOLECULAR_WEIGHT));}
+    /**
+     * Get the pressure scale height
+     * @return The scale height (km)
+     */
+    public double getScaleHeight(){return(get(SCALE_HEIGHT));}
+
+    @Override
+    public String toString() {
+        String result = "At Height(km): "+height+"\n";
+        if ((properties & DENSITY) != 0) result += "Density(kg/m^3): "+getDensity()+"\n";
+        if ((properties & PRESSURE) != 0) result += "Pressure(Pa): "+getPressure()+"\n";
+        if ((properties & TEMPERATURE) != 0) result += "Temperature(K): "+getTemperature()+"\n";
+        if ((properties & SPEED_SOUND) != 0) result += "Speed of Sound(m/s): "+getSpeedSound()+"\n";
+        if ((properties & VISCOSITY) != 0) result += "Viscosity(kg/(m s)): "+getViscosity()+"\n";
+        if ((properties & THERMAL_CONDUCTIVITY) != 0) result += "Thermal Conductivity(W/(m K)): "+getThermalConductivity()+"\n";
+        if ((properties & MEAN_FREE_PATH) != 0) result += "Mean Free Path(m): "+getMeanFreePath()+"\n";
+        if ((properties & NUMBER_DENSITY) != 0) result += "Number Density(1/m^3): "+getNumberDensity()+"\n";
+        if ((properties & MOLECULAR_WEIGHT) != 0) result += "Molecular Weight(kg/kmol): "+getMolecularWeight()+"\n";
+        if ((properties & SCALE_HEIGHT) != 0) result += "Scale Height(km): "+getScaleHeight()+"\n";
+        return(result);
+    }
+}
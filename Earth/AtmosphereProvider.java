@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * A service provider offering an {@link AtmosphereModel} at one tier of fidelity, so a
+ * pipeline can screen with a cheap model and refine with an exact one. Each provider
+ * reports a nominal cost and its largest error against the 1976 standard atmosphere,
+ * which {@link AtmosphereTier#select(double)} uses to pick the cheapest model meeting an
+ * accuracy budget.
+ *
+ * Providers are found with {@link java.util.ServiceLoader}, so other jars can add tiers by
+ * listing their implementation in META-INF/services/Earth.AtmosphereProvider. The built in
+ * tiers are in {@link AtmosphereTier}.
+ * @author eib15ns
+ */
+public interface AtmosphereProvider {
+
+    /**
+     * Get the name the tier is known by
+     * @return The name of the tier
+     */
+    String getName();
+
+    /**
+     * Get the model of this tier, which may be built the first time it is asked for
+     * @return The atmosphere model
+     */
+    AtmosphereModel getModel();
+
+    /**
+     * Get the nominal cost of evaluating one height in a batch. Only the ratios between
+     * tiers are meaningful, as the times depend on the machine.
+     * @return The cost per height (ns)
+     */
+    double getCost();
+
+    /**
+     * Get the largest relative error in temperature, pressure, density or speed of sound
+     * against the 1976 standard atmosphere over the heights the model covers
+     * @return The maximum relative error
+     */
+    double getMaxError();
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Holds the atmospheric values at one height as written by an {@link AtmosphereModel}.
+ * A holder is meant to be reused by a single thread, so an evaluation loop needs no
+ * allocation.
+ * @author eib15ns
+ */
+public class AtmosphereState {
+
+    //Instance Variables
+    private double height; // km
+    private double temperature; // K
+    private double pressure; // Pa
+    private double density; // kg/m^3
+    private double speedSound; // m/s
+
+    /**
+     * Sets every value of the holder
+     * @param height Geometric height (km)
+     * @param temperature The temperature (K)
+     * @param pressure The pressure (Pa)
+     * @param density The density (kg/m^3)
+     * @param speedSound The speed of sound (m/s)
+     */
+    public void set(double height, double temperature, double pressure, double density, double speedSound){
+        this.height = height;
+        this.temperature = temperature;
+        this.pressure = pressure;
+        this.density = density;
+        this.speedSound = speedSound;
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the height the values were evaluated at
+     * @return The geometric height (km)
+     */
+    public double getHeight(){return(this.height);}
+    /**
+     * Get the temperature
+     * @return The temperature (K)
+     */
+    public double getTemperature(){return(this.temperature);}
+    /**
+     * Get the pressure
+     * @return The pressure (Pa)
+     */
+    public double getPressure(){return(this.pressure);}
+    /**
+     * Get the density
+     * @return The density (kg/m^3)
+     */
+    public double getDensity(){return(this.density);}
+    /**
+     * Get the speed of sound
+     * @return The speed of sound (m/s)
+     */
+    public double getSpeedSound(){return(this.speedSound);}
+
+    @Override
+    public String toString() {
+        String result = "At Height(km): "+height+"\n"
+                +"Density(kg/m^3): "+density+"\n"
+                +"Pressure(Pa): "+pressure+"\n"
+                +"Temperature(K): "+temperature+"\n"
+                +"Speed of Sound(m/s): "+speedSound+"\n";
+        return(result);
+    }
+}
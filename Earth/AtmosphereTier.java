@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * The built in atmosphere tiers and the functions for choosing between every tier found.
+ * <pre>
+ *  name           model                    max error   cost (ns/height)
+ *  table          AtmosphereTable 0.1km    5.0e-3      11
+ *  exponential    ExponentialAtmosphere    1.0e-2      15
+ *  standard1976   StandardAtmosphere       0           21
+ * </pre>
+ * Costs are batches of 1024 random heights from 0 to 1000km, from the EarthBenchmark
+ * tierBatch rows of the baseline in the README. Only their ratios
+ * carry over to other machines. The table evaluates one cubic per property with no
+ * exponentials, so it is the cheapest tier whenever its error is acceptable.
+ * @author eib15ns
+ */
+public final class AtmosphereTier {
+
+    private AtmosphereTier(){
+    }
+
+    /**
+     * The piecewise exponential fit of {@link ExponentialAtmosphere}
+     */
+    public static final class Exponential implements AtmosphereProvider {
+        @Override
+        public String getName(){return("exponential");}
+        @Override
+        public AtmosphereModel getModel(){return(ExponentialAtmosphere.INSTANCE);}
+        @Override
+        public double getCost(){return(15);}
+        @Override
+        public double getMaxError(){
+            ExponentialAtmosphere model = ExponentialAtmosphere.INSTANCE;
+            return(Math.max(Math.max(model.getMaxErrorTemperature(), model.getMaxErrorPressure()),
+                    Math.max(model.getMaxErrorDensity(), model.getMaxErrorSpeedSound())));
+        }
+    }
+
+    /**
+     * An {@link AtmosphereTable} of the full model at the default step, built on first use
+     */
+    public static final class Table implements AtmosphereProvider {
+        private static final class Holder {
+            static final AtmosphereTable TABLE = new AtmosphereTable();
+        }
+
+        @Override
+        public String getName(){return("table");}
+        @Override
+        public AtmosphereModel getModel(){return(Holder.TABLE);}
+        @Override
+        public double getCost(){return(11);}
+        @Override
+        public double getMaxError(){
+            AtmosphereTable table = Holder.TABLE;
+            return(Math.max(Math.max(table.getMaxErrorTemperature(), table.getMaxErrorPressure()),
+                    Math.max(table.getMaxErrorDensity(), table.getMaxErrorSpeedSound())));
+        }
+    }
+
+    /**
+     * The exact 1976 layer model of {@link StandardAtmosphere}
+     */
+    public static final class Standard implements AtmosphereProvider {
+        @Override
+        public String getName(){return("standard1976");}
+        @Override
+        public AtmosphereModel getModel(){return(StandardAtmosphere.INSTANCE);}
+        @Override
+        public double getCost(){return(21);}
+        @Override
+        public double getMaxError(){return(0.0);}
+    }
+
+    private static final class Providers {
+        static final List<AtmosphereProvider> ALL = load();
+    }
+
+    /**
+     * Finds every provider on the class path together with the built in tiers, which are
+     * added even if the service file is not on the class path
+     */
+    private static List<AtmosphereProvider> load(){
+        List<AtmosphereProvider> providers = new ArrayList<>();
+        for (AtmosphereProvider provider : ServiceLoader.load(AtmosphereProvider.class, AtmosphereTier.class.getClassLoader())){
+            providers.add(provider);
+        }
+        for (AtmosphereProvider builtIn : new AtmosphereProvider[]{new Exponential(), new Table(), new Standard()}){
+            boolean found = false;
+            for (AtmosphereProvider provider : providers){
+                if (provider.getClass() == builtIn.getClass()) found = true;
+            }
+            if (!found) providers.add(builtIn);
+        }
+        providers.sort(Comparator.comparingDouble(AtmosphereProvider::getCost));
+        return(Collections.unmodifiableList(providers));
+    }
+
+    /**
+     * Get every tier found, from the cheapest to the most expensive
+     * @return The providers of every tier
+     */
+    public static List<AtmosphereProvider> providers(){
+        return(Providers.ALL);
+    }
+
+    /**
+     * Get a tier by name
+     * @param name The name of the tier
+     * @return The provider of the tier
+     */
+    public static AtmosphereProvider get(String name){
+        for (AtmosphereProvider provider : Providers.ALL){
+            if (provider.getName().equals(name)) return(provider);
+        }
+        throw new RuntimeException("No atmosphere tier is called "+name+".");
+    }
+
+    /**
+     * Picks the cheapest tier whose error is within a budget
+     * @param maxError The largest relative error the caller accepts
+     * @return The provider of the cheapest tier meeting the budget
+     */
+    public static AtmosphereProvider select(double maxError){
+        for (AtmosphereProvider provider : Providers.ALL){
+            if (provider.getMaxError() <= maxError) return(provider);
+        }
+        throw new RuntimeException("No atmosphere tier is within a relative error of "+maxError+".");
+    }
+}
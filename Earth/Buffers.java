@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.nio.DoubleBuffer;
+import java.util.Objects;
+
+/**
+ * Checks shared by the evaluators that read and write strided records in buffers.
+ * @author eib15ns
+ */
+final class Buffers {
+
+    private Buffers(){
+    }
+
+    /**
+     * Throws if a run of strided records does not fit inside a buffer
+     * @param buffer The buffer holding the records
+     * @param index Index of the first value of the first record
+     * @param stride Number of doubles from one record to the next
+     * @param size Number of doubles in a record
+     * @param count Number of records
+     */
+    static void checkRecords(DoubleBuffer buffer, int index, int stride, int size, int count){
+        if (stride < size) throw new RuntimeException("The stride of "+stride+" is shorter than a record of "+size+" values.");
+        if (count < 0) throw new RuntimeException("The number of records can not be negative.");
+        if (count > 0) Objects.checkFromIndexSize((long)index, (long)(count - 1)*stride + size, (long)buffer.limit());
+    }
+}
@@ -29,5 +29,9 @@ class Constants {
     public static final double GAMMA = 1.4; //Ratio of specific heats for air
     public static final double EARTH_MASS = 5.9722*Math.pow(10,24);
     public static final double RADIUS_EQUATOR = 6378135; // radius of earth at the equator
+    public static final double FLATTENING = 1/298.26; // flattening of the WGS-72 ellipsoid with RADIUS_EQUATOR as its semi-major axis
+    public static final double ELLIPSOID_POLE = RADIUS_EQUATOR*(1 - FLATTENING); // semi-minor axis of the WGS-72 ellipsoid, 6356750.52m
     public static final double JEFFERY_2 = 1.08263*Math.pow(10, -3);
+    public static final double EARTH_ROTATION = 7.2921159*Math.pow(10, -5); // Rotation rate of the earth (rad/s)
+    public static final double AVOGADRO = 6.022169*Math.pow(10, 23); // Avogadro constant used by the 1976 standard (1/mol)
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Runs a Monte Carlo dispersion of trajectories around a nominal initial state and vehicle.
+ * Cases are split across a fork/join pool in fixed size blocks, and idle workers steal
+ * blocks from busy ones. Each worker thread keeps its own {@link Propagator} and scratch
+ * arrays, so a case allocates nothing.
+ *
+ * Every case draws its dispersions from its own random stream seeded from the runner seed
+ * and the case number, and partial statistics are merged in a fixed order. Results are
+ * therefore the same for a given seed whatever the number of threads.
+ *
+ * Each run first propagates the nominal case once. Impact longitudes are unwrapped to
+ * within 180 degrees of its final longitude, so a dispersion across the antimeridian keeps
+ * a mean and standard deviation around the impact point rather than around 0 degrees.
+ *
+ * The settings must not be changed while a run is in progress.
+ * @author eib15ns
+ */
+public class DispersionRunner {
+
+    private static final int BLOCK_CASES = 16; // cases run by a task without splitting
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    //Instance Variables
+    private final double[] nominalState = new double[Propagator.STATE_SIZE];
+    private final double mass; // kg
+    private final double dragArea; // m^2
+    private final double dragCoefficient;
+    private final Propagator.Method method;
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+    private long seed = 1;
+    private double endTime = 86400.0; // s
+    private double positionSigma; // m
+    private double velocitySigma; // m/s
+    private double massSigma; // fraction of nominal
+    private double dragAreaSigma; // fraction of nominal
+    private double dragCoefficientSigma; // fraction of nominal
+
+    /**
+     * Creates a runner around a nominal trajectory, propagated with Dormand-Prince
+     * @param nominalState Position (m) and velocity (m/s) in ECI at time zero
+     * @param mass Nominal mass of the vehicle (kg)
+     * @param dragArea Nominal reference area for drag (m^2)
+     * @param dragCoefficient Nominal drag coefficient
+     */
+    public DispersionRunner(double[] nominalState, double mass, double dragArea, double dragCoefficient){
+        this(nominalState, mass, dragArea, dragCoefficient, Propagator.Method.DORMAND_PRINCE);
+    }
+
+    /**
+     * Creates a runner around a nominal trajectory
+     * @param nominalState Position (m) and velocity (m/s) in ECI at time zero
+     * @param mass Nominal mass of the vehicle (kg)
+     * @param dragArea Nominal reference area for drag (m^2)
+     * @param dragCoefficient Nominal drag coefficient
+     * @param method The integration method
+     */
+    public DispersionRunner(double[] nominalState, double mass, double dragArea, double dragCoefficient, Propagator.Method method){
+        System.arraycopy(nominalState, 0, this.nominalState, 0, Propagator.STATE_SIZE);
+        this.mass = mass;
+        this.dragArea = dragArea;
+        this.dragCoefficient = dragCoefficient;
+        this.method = method;
+    }
+
+    /**
+     * Sets the standard deviations of the initial state, applied to each axis
+     * @param position Standard deviation of the position (m)
+     * @param velocity Standard deviation of the velocity (m/s)
+     */
+    public void setStateSigma(double position, double velocity){
+        this.positionSigma = position;
+        this.velocitySigma = velocity;
+    }
+
+    /**
+     * Sets the standard deviations of the vehicle as fractions of the nominal values
+     * @param mass Standard deviation of the mass
+     * @param dragArea Standard deviation of the drag area
+     * @param dragCoefficient Standard deviation of the drag coefficient
+     */
+    public void setVehicleSigma(double mass, double dragArea, double dragCoefficient){
+        this.massSigma = mass;
+        this.dragAreaSigma = dragArea;
+        this.dragCoefficientSigma = dragCoefficient;
+    }
+
+    /**
+     * Sets the seed every case stream is derived from
+     * @param seed The seed
+     */
+    public void setSeed(long seed){this.seed = seed;}
+
+    /**
+     * Sets the time at which cases that have not reached the ground are stopped
+     * @param endTime The end time (s)
+     */
+    public void setEndTime(double endTime){this.endTime = endTime;}
+
+    /**
+     * Runs cases on the common fork/join pool
+     * @param cases Number of cases
+     * @return The statistics of every case
+     */
+    public DispersionStatistics run(int cases){
+        return(run(cases, ForkJoinPool.commonPool()));
+    }
+
+    /**
+     * Runs cases on a fork/join pool
+     * @param cases Number of cases
+     * @param pool The pool to run on
+     * @return The statistics of every case
+     */
+    public DispersionStatistics run(int cases, ForkJoinPool pool){
+        if (cases < 0) throw new RuntimeException("The number of cases can not be negative.");
+        Worker worker = this.workers.get();
+        System.arraycopy(this.nominalState, 0, worker.state, 0, Propagator.STATE_SIZE);
+        Propagator propagator = fly(worker, this.mass, this.dragArea, this.dragCoefficient);
+        double nominal = longitude(worker.state, propagator.getTime());
+        return(pool.invoke(new Block(0, cases, nominal)));
+    }
+
+    /**
+     * Runs a single case
+     * @param index The case number, which selects its random stream
+     * @param nominal Final longitude of the nominal case the impact longitude is unwrapped around (deg)
+     * @param stats Statistics the result is added to
+     */
+    private void runCase(long index, double nominal, DispersionStatistics stats){
+        Worker worker = this.workers.get();
+        worker.random = Worker.mix(this.seed*GOLDEN_GAMMA + index); // scatter case streams over the period
+
+        for (int i = 0; i < 3; i++){
+            worker.state[i] = this.nominalState[i] + this.positionSigma*worker.nextGaussian();
+            worker.state[i + 3] = this.nominalState[i + 3] + this.velocitySigma*worker.nextGaussian();
+        }
+        double caseMass = this.mass*Math.max(1e-3, 1 + this.massSigma*worker.nextGaussian());
+        double caseArea = this.dragArea*Math.max(0.0, 1 + this.dragAreaSigma*worker.nextGaussian());
+        double caseDrag = this.dragCoefficient*Math.max(0.0, 1 + this.dragCoefficientSigma*worker.nextGaussian());
+        Propagator propagator = fly(worker, caseMass, caseArea, caseDrag);
+
+        double[] s = worker.state;
+        double r = Math.sqrt(s[0]*s[0] + s[1]*s[1] + s[2]*s[2]);
+        double latitude = Math.toDegrees(Math.asin(s[2]/r));
+        double longitude = nominal + Math.IEEEremainder(longitude(s, propagator.getTime()) - nominal, 360.0);
+        stats.add(propagator.hasImpacted(), latitude, longitude, propagator.getTime(), worker.peakHeating, worker.maxDynamicPressure);
+    }
+
+    /**
+     * Propagates the worker state to impact or the end time, tracking the peak heating and
+     * dynamic pressure, and leaves the final state in the worker state
+     * @return The propagator, holding the final time and whether the case impacted
+     */
+    private Propagator fly(Worker worker, double caseMass, double caseArea, double caseDrag){
+        Propagator propagator = worker.getPropagator(this.method);
+        propagator.setVehicle(caseMass, caseArea, caseDrag);
+        propagator.initialise(0.0, worker.state);
+
+        worker.peakHeating = 0.0;
+        worker.maxDynamicPressure = 0.0;
+        worker.sample(worker.state);
+        double start = propagator.getTime();
+        while (propagator.step(this.endTime)){
+            // Sample the middle of the step as well as the end so short peaks are not missed
+            propagator.interpolate(0.5*(start + propagator.getTime()), worker.scratch);
+            worker.sample(worker.scratch);
+            propagator.getState(worker.scratch);
+            worker.sample(worker.scratch);
+            start = propagator.getTime();
+        }
+        propagator.getState(worker.state);
+        worker.sample(worker.state);
+        return(propagator);
+    }
+
+    /**
+     * Earth fixed longitude of an ECI state
+     * @param s The state
+     * @param time Time since the Earth fixed and ECI frames were aligned (s)
+     * @return The longitude in (-180, 180] (deg)
+     */
+    private static double longitude(double[] s, double time){
+        return(Math.toDegrees(Math.IEEEremainder(Math.atan2(s[1], s[0]) - Constants.EARTH_ROTATION*time, 2*Math.PI)));
+    }
+
+    /**
+     * A range of cases that splits in half until it is small enough to run directly
+     */
+    private class Block extends RecursiveTask<DispersionStatistics> {
+
+        private static final long serialVersionUID = 1L;
+        private final int first;
+        private final int end;
+        private final double nominal; // deg
+
+        Block(int first, int end, double nominal){
+            this.first = first;
+            this.end = end;
+            this.nominal = nominal;
+        }
+
+        @Override
+        protected DispersionStatistics compute(){
+            if (this.end - this.first <= BLOCK_CASES){
+                DispersionStatistics stats = new DispersionStatistics();
+                for (int i = this.first; i < this.end; i++) runCase(i, this.nominal, stats);
+                return(stats);
+            }
+            int middle = (this.first + this.end) >>> 1;
+            Block upper = new Block(middle, this.end, this.nominal);
+            upper.fork();
+            DispersionStatistics stats = new Block(this.first, middle, this.nominal).compute();
+            stats.merge(upper.join());
+            return(stats);
+        }
+    }
+
+    /**
+     * Scratch state kept by each worker thread
+     */
+    private static class Worker {
+
+        private Propagator propagator;
+        private final AtmosphereState atmosphere = new AtmosphereState();
+        private final double[] state = new double[Propagator.STATE_SIZE];
+        private final double[] scratch = new double[Propagator.STATE_SIZE];
+        private long random; // SplitMix64 state
+        private double peakHeating;
+        private double maxDynamicPressure;
+
+        private Propagator getPropagator(Propagator.Method method){
+            if (this.propagator == null || this.propagator.getMethod() != method){
+                this.propagator = new Propagator(method, 1.0, 0.0, 0.0);
+            }
+            return(this.propagator);
+        }
+
+        /**
+         * Updates the peak heating and dynamic pressure with a state along the trajectory
+         */
+        private void sample(double[] s){
+            double height = Propagator.altitude(s[0], s[1], s[2]);
+            if (height >= 1000.0) return;
+            StandardAtmosphere.INSTANCE.evaluate(Math.max(height, 0.0), this.atmosphere);
+            double vx = s[3] + Constants.EARTH_ROTATION*s[1];
+            double vy = s[4] - Constants.EARTH_ROTATION*s[0];
+            double vz = s[5];
+            double v2 = vx*vx + vy*vy + vz*vz;
+            double density = this.atmosphere.getDensity();
+            double dynamicPressure = 0.5*density*v2;
+            double heating = Math.sqrt(density)*v2*Math.sqrt(v2);
+            if (dynamicPressure > this.maxDynamicPressure) this.maxDynamicPressure = dynamicPressure;
+            if (heating > this.peakHeating) this.peakHeating = heating;
+        }
+
+        private long nextLong(){
+            return(mix(this.random += GOLDEN_GAMMA));
+        }
+
+        private static long mix(long z){
+            z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+            return(z ^ (z >>> 31));
+        }
+
+        private double nextDouble(){
+            return((nextLong() >>> 11)*0x1.0p-53);
+        }
+
+        /**
+         * Draws a standard normal value with the Box-Muller transform
+         */
+        private double nextGaussian(){
+            double u = 1.0 - nextDouble(); // in (0, 1]
+            double v = nextDouble();
+            return(Math.sqrt(-2*Math.log(u))*Math.cos(2*Math.PI*v));
+        }
+    }
+}
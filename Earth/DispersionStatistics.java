@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Summary statistics of a set of dispersed trajectories from {@link DispersionRunner}.
+ * Impact statistics only include the cases that reached the ground.
+ * @author eib15ns
+ */
+public class DispersionStatistics {
+
+    //Instance Variables
+    private long cases;
+    private final RunningStatistics impactLatitude = new RunningStatistics(); // deg
+    private final RunningStatistics impactLongitude = new RunningStatistics(); // deg
+    private final RunningStatistics impactTime = new RunningStatistics(); // s
+    private final RunningStatistics peakHeating = new RunningStatistics(); // sqrt(kg/m^3)*(m/s)^3
+    private final RunningStatistics maxDynamicPressure = new RunningStatistics(); // Pa
+
+    /**
+     * Adds the result of one case
+     * @param impacted True if the case reached the ground
+     * @param latitude Geocentric latitude of the impact (deg)
+     * @param longitude Longitude of the impact, unwrapped to within 180 degrees of the nominal impact (deg)
+     * @param time Time of the impact (s)
+     * @param heating Peak heating proxy of the case
+     * @param dynamicPressure Maximum dynamic pressure of the case (Pa)
+     */
+    void add(boolean impacted, double latitude, double longitude, double time, double heating, double dynamicPressure){
+        this.cases++;
+        if (impacted){
+            this.impactLatitude.add(latitude);
+            this.impactLongitude.add(longitude);
+            this.impactTime.add(time);
+        }
+        this.peakHeating.add(heating);
+        this.maxDynamicPressure.add(dynamicPressure);
+    }
+
+    /**
+     * Adds every case seen by another set of statistics
+     * @param other The statistics to merge into these
+     */
+    void merge(DispersionStatistics other){
+        this.cases += other.cases;
+        this.impactLatitude.merge(other.impactLatitude);
+        this.impactLongitude.merge(other.impactLongitude);
+        this.impactTime.merge(other.impactTime);
+        this.peakHeating.merge(other.peakHeating);
+        this.maxDynamicPressure.merge(other.maxDynamicPressure);
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the number of cases run
+     * @return The number of cases
+     */
+    public long getCases(){return(this.cases);}
+    /**
+     * Get the number of cases that reached the ground
+     * @return The number of impacts
+     */
+    public long getImpacts(){return(this.impactLatitude.getCount());}
+    /**
+     * Get the statistics of the geocentric latitude of the impact points
+     * @return Impact latitude statistics (deg)
+     */
+    public RunningStatistics getImpactLatitude(){return(this.impactLatitude);}
+    /**
+     * Get the statistics of the Earth fixed longitude of the impact points. Longitudes are
+     * unwrapped around the nominal impact, so across the antimeridian they can run past 180
+     * degrees and the mean and standard deviation stay those of the impact points.
+     * @return Impact longitude statistics (deg)
+     */
+    public RunningStatistics getImpactLongitude(){return(this.impactLongitude);}
+    /**
+     * Get the statistics of the time of impact
+     * @return Impact time statistics (s)
+     */
+    public RunningStatistics getImpactTime(){return(this.impactTime);}
+    /**
+     * Get the statistics of the peak heating proxy sqrt(density)*speed^3, which is
+     * proportional to the Sutton-Graves stagnation point heat flux for a fixed nose radius
+     * @return Peak heating statistics (sqrt(kg/m^3)*(m/s)^3)
+     */
+    public RunningStatistics getPeakHeating(){return(this.peakHeating);}
+    /**
+     * Get the statistics of the maximum dynamic pressure
+     * @return Maximum dynamic pressure statistics (Pa)
+     */
+    public RunningStatistics getMaxDynamicPressure(){return(this.maxDynamicPressure);}
+
+    @Override
+    public String toString() {
+        String result = "Cases: "+cases+"\n"
+                +"Impacts: "+getImpacts()+"\n"
+                +"Impact Latitude(deg): "+impactLatitude+"\n"
+                +"Impact Longitude(deg): "+impactLongitude+"\n"
+                +"Impact Time(s): "+impactTime+"\n"
+                +"Peak Heating: "+peakHeating+"\n"
+                +"Max Dynamic Pressure(Pa): "+maxDynamicPressure+"\n";
+        return(result);
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the atmosphere and gravity models over HTTP on the loopback interface, so several
+ * local processes can share one warmed up copy of the models.
+ *
+ * Endpoints:
+ * <ul>
+ *  <li>GET /atmosphere?height=km answers "temperature,pressure,density,speed_of_sound".</li>
+ *  <li>GET /gravity?x=m&amp;y=m&amp;z=m answers "ax,ay,az" for an ECI position.</li>
+ *  <li>POST /atmosphere/batch takes little endian double heights and answers four little
+ *  endian doubles per height in the order above.</li>
+ *  <li>POST /gravity/batch takes little endian double x, y, z positions and answers three
+ *  little endian double accelerations per position.</li>
+ *  <li>GET /metrics answers a text report of the throughput and queue latency.</li>
+ * </ul>
+ * Any other path is answered with 404, bad parameters with 400 and a request body that
+ * can not be read with 500.
+ *
+ * Single point requests are coalesced. Each one is queued, and a thread per model takes
+ * everything waiting in the queue, up to the maximum batch size, and evaluates it with the
+ * batch functions of the model. Nothing waits for a batch to fill, so an idle server adds
+ * no latency and a busy one evaluates larger batches.
+ *
+ * Handler threads block while their point waits for its batch, so the executor bounds the
+ * number of points that can be coalesced at once. Virtual threads are not available on
+ * Java 17, so the default is a fixed pool; on a newer runtime a virtual thread per task
+ * executor can be given to {@link #setExecutor}.
+ * @author eib15ns
+ */
+public class EarthServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8976;
+    private static final int MAX_BODY = 64 << 20; // bytes
+    private static final long TIMEOUT = 10; // s
+
+    //Instance Variables
+    private AtmosphereModel atmosphere = StandardAtmosphere.INSTANCE;
+    private GravityModel gravity = GravityModel.J2;
+    private int maxBatch = 1024;
+    private int queueCapacity = 1 << 16;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+    private HttpServer server;
+    private Coalescer atmosphereQueue;
+    private Coalescer gravityQueue;
+    private volatile boolean closed;
+    private long started; // ns
+
+    // Metrics
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder points = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+    /**
+     * Sets the atmosphere model, such as a mapped {@link AtmosphereTable}
+     * @param atmosphere The atmosphere model
+     */
+    public void setAtmosphere(AtmosphereModel atmosphere){this.atmosphere = atmosphere;}
+
+    /**
+     * Sets the gravity model
+     * @param gravity The gravity model
+     */
+    public void setGravity(GravityModel gravity){this.gravity = gravity;}
+
+    /**
+     * Sets the largest number of single point requests evaluated in one batch, and the
+     * number that can wait for a batch before requests are turned away
+     * @param maxBatch Largest batch
+     * @param queueCapacity Number of points that can wait per model
+     */
+    public void setBatching(int maxBatch, int queueCapacity){
+        if (maxBatch < 1 || queueCapacity < maxBatch) throw new RuntimeException("The batch size must be positive and the queue must hold at least one batch.");
+        this.maxBatch = maxBatch;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the executor the requests are handled on. It is not shut down by the server.
+     * @param executor The executor, such as a virtual thread per task executor
+     */
+    public void setExecutor(ExecutorService executor){this.executor = executor;}
+
+    /**
+     * Starts serving on the loopback interface.
+     * The JDK server writes the headers and the body of a response separately, and with
+     * Nagle's algorithm the body then waits for the client's delayed acknowledgement,
+     * adding about 40ms to every request. Processes embedding the server should set the
+     * system property sun.net.httpserver.nodelay to true, on the command line or before
+     * the first server in the JVM is made, as {@link #main} does.
+     * @param port The port, or 0 for any free port
+     * @throws IOException If the port can not be bound
+     */
+    public void start(int port) throws IOException {
+        if (this.server != null) throw new RuntimeException("The server has already been started.");
+        if (this.executor == null){
+            this.executor = Executors.newFixedThreadPool(64, task -> {
+                Thread thread = new Thread(task, "EarthServer handler");
+                thread.setDaemon(true);
+                return(thread);
+            });
+            this.ownExecutor = true;
+        }
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.setExecutor(this.executor);
+        endpoint("/atmosphere", this::atmosphere);
+        endpoint("/gravity", this::gravity);
+        endpoint("/atmosphere/batch", this::atmosphereBatch);
+        endpoint("/gravity/batch", this::gravityBatch);
+        endpoint("/metrics", this::metrics);
+
+        this.atmosphereQueue = new Coalescer("EarthServer atmosphere", 4);
+        this.gravityQueue = new Coalescer("EarthServer gravity", 3);
+        this.atmosphereQueue.start();
+        this.gravityQueue.start();
+        this.started = System.nanoTime();
+        this.server.start();
+    }
+
+    /**
+     * Stops the server. Requests still waiting for a batch are answered with an error.
+     */
+    @Override
+    public void close(){
+        if (this.server == null || this.closed) return;
+        this.closed = true;
+        this.server.stop(0);
+        this.atmosphereQueue.interrupt();
+        this.gravityQueue.interrupt();
+        try {
+            this.atmosphereQueue.join();
+            this.gravityQueue.join();
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        if (this.ownExecutor) this.executor.shutdownNow();
+    }
+
+
+    // HANDLERS
+
+    /**
+     * Works out the response to a request
+     */
+    private interface Handler {
+        Response respond(HttpExchange exchange) throws IOException;
+    }
+
+    private static final class Response {
+        final int status;
+        final String type;
+        final byte[] body;
+
+        Response(int status, String type, byte[] body){
+            this.status = status;
+            this.type = type;
+            this.body = body;
+        }
+
+        static Response text(int status, String text){
+            return(new Response(status, "text/plain; charset=utf-8", text.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Serves an endpoint. Contexts match every path starting with theirs, so anything
+     * other than the exact path is answered with 404.
+     */
+    private void endpoint(String path, Handler handler){
+        this.server.createContext(path, exchange -> handle(exchange, path, handler));
+    }
+
+    private static void handle(HttpExchange exchange, String path, Handler handler) throws IOException {
+        try {
+            Response response;
+            try {
+                if (!exchange.getRequestURI().getPath().equals(path)) response = Response.text(404, "There is nothing at "+exchange.getRequestURI().getPath()+".\n");
+                else response = handler.respond(exchange);
+            }
+            catch (RuntimeException e){
+                response = Response.text(400, e.getMessage()+"\n");
+            }
+            catch (IOException e){
+                response = Response.text(500, "The request could not be read: "+e.getMessage()+"\n");
+            }
+            exchange.getResponseHeaders().set("Content-Type", response.type);
+            exchange.sendResponseHeaders(response.status, response.body.length);
+            try (OutputStream out = exchange.getResponseBody()){
+                out.write(response.body);
+            }
+        }
+        finally {
+            // Frees the connection even if the response could not be sent
+            exchange.close();
+        }
+    }
+
+    private Response atmosphere(HttpExchange exchange){
+        if (!exchange.getRequestMethod().equals("GET")) return(Response.text(405, "Use GET.\n"));
+        double height = parameter(exchange, "height");
+        double[] result = submit(this.atmosphereQueue, height, 0, 0);
+        if (result == null) return(Response.text(503, "The server is busy or closing.\n"));
+        return(Response.text(200, result[0]+","+result[1]+","+result[2]+","+result[3]+"\n"));
+    }
+
+    private Response gravity(HttpExchange exchange){
+        if (!exchange.getRequestMethod().equals("GET")) return(Response.text(405, "Use GET.\n"));
+        double x = parameter(exchange, "x");
+        double y = parameter(exchange, "y");
+        double z = parameter(exchange, "z");
+        double[] result = submit(this.gravityQueue, x, y, z);
+        if (result == null) return(Response.text(503, "The server is busy or closing.\n"));
+        return(Response.text(200, result[0]+","+result[1]+","+result[2]+"\n"));
+    }
+
+    private Response atmosphereBatch(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) return(Response.text(405, "Use POST.\n"));
+        DoubleBuffer heights = body(exchange, 1);
+        if (heights == null) return(Response.text(413, "Request bodies are limited to "+MAX_BODY+" bytes.\n"));
+        int count = heights.limit();
+        ByteBuffer out = ByteBuffer.allocate(32*count).order(ByteOrder.LITTLE_ENDIAN);
+        this.atmosphere.evaluate(heights, 0, 1, out.asDoubleBuffer(), 0, 4, count);
+        this.requests.increment();
+        this.points.add(count);
+        return(new Response(200, "application/octet-stream", out.array()));
+    }
+
+    private Response gravityBatch(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) return(Response.text(405, "Use POST.\n"));
+        DoubleBuffer positions = body(exchange, 3);
+        if (positions == null) return(Response.text(413, "Request bodies are limited to "+MAX_BODY+" bytes.\n"));
+        int count = positions.limit()/3;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        double[] z = new double[count];
+        for (int i = 0; i < count; i++){
+            x[i] = positions.get(3*i);
+            y[i] = positions.get(3*i + 1);
+            z[i] = positions.get(3*i + 2);
+        }
+        // The position arrays are reused for the results
+        this.gravity.accelerate(x, y, z, 0, x, y, z, 0, count);
+        ByteBuffer out = ByteBuffer.allocate(24*count).order(ByteOrder.LITTLE_ENDIAN);
+        DoubleBuffer results = out.asDoubleBuffer();
+        for (int i = 0; i < count; i++){
+            results.put(3*i, x[i]);
+            results.put(3*i + 1, y[i]);
+            results.put(3*i + 2, z[i]);
+        }
+        this.requests.increment();
+        this.points.add(count);
+        return(new Response(200, "application/octet-stream", out.array()));
+    }
+
+    private Response metrics(HttpExchange exchange){
+        return(Response.text(200, report()));
+    }
+
+    /**
+     * Reads a query parameter as a number
+     */
+    private static double parameter(HttpExchange exchange, String name){
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null){
+            for (String pair : query.split("&")){
+                int split = pair.indexOf('=');
+                if (split == name.length() && pair.startsWith(name)){
+                    try {
+                        return(Double.parseDouble(pair.substring(split + 1)));
+                    }
+                    catch (NumberFormatException e){
+                        throw new RuntimeException("The parameter "+name+" is not a number.");
+                    }
+                }
+            }
+        }
+        throw new RuntimeException("The parameter "+name+" is missing.");
+    }
+
+    /**
+     * Reads a request body of little endian doubles
+     * @return The values, or null if the body is too large
+     */
+    private static DoubleBuffer body(HttpExchange exchange, int recordSize) throws IOException {
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()){
+            body = in.readNBytes(MAX_BODY + 1);
+        }
+        if (body.length > MAX_BODY) return(null);
+        if (body.length % (8*recordSize) != 0) throw new RuntimeException("The body must hold whole records of "+recordSize+" little endian doubles.");
+        return(ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+    }
+
+
+    // COALESCING
+
+    /**
+     * A single point waiting for its batch
+     */
+    private static final class Pending extends CompletableFuture<double[]> {
+        final double a;
+        final double b;
+        final double c;
+        final long queued = System.nanoTime();
+
+        Pending(double a, double b, double c){
+            this.a = a;
+            this.b = b;
+            this.c = c;
+        }
+    }
+
+    /**
+     * Queues a point and waits for its batch to be evaluated
+     * @return The results, or null if the queue is full or the server is closing
+     */
+    private double[] submit(Coalescer coalescer, double a, double b, double c){
+        Pending pending = new Pending(a, b, c);
+        if (this.closed || !coalescer.queue.offer(pending)){
+            this.rejected.increment();
+            return(null);
+        }
+        try {
+            double[] result = pending.get(TIMEOUT, TimeUnit.SECONDS);
+            this.requests.increment();
+            this.points.increment();
+            return(result);
+        }
+        catch (ExecutionException e){
+            throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+        }
+        catch (TimeoutException e){
+            this.rejected.increment();
+            return(null);
+        }
+        catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return(null);
+        }
+    }
+
+    /**
+     * Takes the points waiting for one model and evaluates them in batches
+     */
+    private final class Coalescer extends Thread {
+        final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(queueCapacity);
+        private final ArrayList<Pending> batch = new ArrayList<>(maxBatch);
+        private final double[][] input = new double[3][maxBatch];
+        private final double[][] output;
+
+        Coalescer(String name, int outputs){
+            super(name);
+            setDaemon(true);
+            this.output = new double[outputs][maxBatch];
+        }
+
+        @Override
+        public void run(){
+            while (!closed){
+                try {
+                    this.batch.add(this.queue.take());
+                }
+                catch (InterruptedException e){
+                    break;
+                }
+                this.queue.drainTo(this.batch, maxBatch - 1);
+                long start = System.nanoTime();
+                for (Pending pending : this.batch) queueLatency.record(start - pending.queued);
+                evaluate();
+                batches.increment();
+                coalesced.add(this.batch.size());
+                this.batch.clear();
+            }
+            RuntimeException error = new RuntimeException("The server is closing.");
+            this.queue.drainTo(this.batch);
+            for (Pending pending : this.batch) pending.completeExceptionally(error);
+        }
+
+        private void evaluate(){
+            int count = this.batch.size();
+            for (int i = 0; i < count; i++){
+                Pending pending = this.batch.get(i);
+                this.input[0][i] = pending.a;
+                this.input[1][i] = pending.b;
+                this.input[2][i] = pending.c;
+            }
+            try {
+                if (this.output.length == 4){
+                    atmosphere.evaluate(this.input[0], 0, this.output[0], this.output[1], this.output[2], this.output[3], 0, count);
+                }
+                else {
+                    gravity.accelerate(this.input[0], this.input[1], this.input[2], 0, this.output[0], this.output[1], this.output[2], 0, count);
+                }
+            }
+            catch (RuntimeException e){
+                // A point the model rejects fails the whole batch, so the points are
+                // evaluated one at a time to only fail that point
+                evaluateEach();
+                return;
+            }
+            for (int i = 0; i < count; i++){
+                double[] result = new double[this.output.length];
+                for (int j = 0; j < result.length; j++) result[j] = this.output[j][i];
+                this.batch.get(i).complete(result);
+            }
+        }
+
+        private void evaluateEach(){
+            AtmosphereState state = new AtmosphereState();
+            for (Pending pending : this.batch){
+                try {
+                    if (this.output.length == 4){
+                        atmosphere.evaluate(pending.a, state);
+                        pending.complete(new double[]{state.getTemperature(), state.getPressure(), state.getDensity(), state.getSpeedSound()});
+                    }
+                    else {
+                        double[] result = new double[3];
+                        gravity.accelerate(pending.a, pending.b, pending.c, result, 0);
+                        pending.complete(result);
+                    }
+                }
+                catch (RuntimeException e){
+                    pending.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the port the server listens on
+     * @return The port
+     */
+    public int getPort(){return(this.server.getAddress().getPort());}
+    /**
+     * Get the number of requests answered
+     * @return Single point and batch requests answered
+     */
+    public long getRequests(){return(this.requests.sum());}
+    /**
+     * Get the number of points evaluated
+     * @return Points evaluated across every request
+     */
+    public long getPoints(){return(this.points.sum());}
+    /**
+     * Get the number of requests turned away because the queue was full or the server closing
+     * @return Requests turned away
+     */
+    public long getRejected(){return(this.rejected.sum());}
+    /**
+     * Get the number of batches single point requests were coalesced into
+     * @return Batches evaluated
+     */
+    public long getBatches(){return(this.batches.sum());}
+    /**
+     * Get the mean number of single point requests per batch
+     * @return Mean batch size
+     */
+    public double getMeanBatch(){
+        long count = getBatches();
+        return(count == 0 ? 0.0 : (double)this.coalesced.sum()/count);
+    }
+    /**
+     * Get the time single point requests waited in the queue before their batch started
+     * @return Histogram of the queue latency (ns)
+     */
+    public LatencyHistogram getQueueLatency(){return(this.queueLatency);}
+    /**
+     * Get the number of points evaluated per second since the server started
+     * @return Throughput (points/s)
+     */
+    public double getThroughput(){
+        double seconds = (System.nanoTime() - this.started)*1e-9;
+        return(getPoints()/seconds);
+    }
+
+    /**
+     * Creates a text report of the server metrics
+     * @return One line per metric
+     */
+    public String report(){
+        return("Requests: "+getRequests()+"\n"
+                +"Points: "+getPoints()+"\n"
+                +"Rejected: "+getRejected()+"\n"
+                +"Batches: "+getBatches()+"\n"
+                +"Mean batch: "+String.format(Locale.ROOT, "%.2f", getMeanBatch())+"\n"
+                +"Throughput(points/s): "+String.format(Locale.ROOT, "%.1f", getThroughput())+"\n"
+                +"Queue latency(ns): mean "+String.format(Locale.ROOT, "%.1f", this.queueLatency.getMean())
+                +" p50 "+this.queueLatency.getPercentile(50)
+                +" p99 "+this.queueLatency.getPercentile(99)
+                +" max "+this.queueLatency.getMax()+"\n");
+    }
+
+    /**
+     * Runs the server until the process is stopped
+     * @param args The port, or none for the default port
+     * @throws IOException If the port can not be bound
+     */
+    public static void main(String[] args) throws IOException {
+        // Sends the body of each response straight away, see start
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        EarthServer server = new EarthServer();
+        server.start(args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        System.out.println("Serving on http://localhost:"+server.getPort()+"/");
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.Objects;
+
+/**
+ * Evaluates gravity and the atmosphere together at ECI positions.
+ * The squared radius is shared between the J2 gravity of {@link GravityKernel} and the
+ * altitude, and the geodetic altitude above the reference ellipsoid is found with
+ * Bowring's method using square roots only, with no trigonometric calls. The reference
+ * ellipsoid is WGS-72, with the equatorial radius of 6378135m that {@link GravityKernel}
+ * uses and a flattening of 1/298.26, so the polar radius is 6356750.52m. The atmosphere
+ * then comes from the 1976 standard atmosphere at that altitude. Nothing is allocated.
+ *
+ * The altitude does not depend on the rotation of the Earth, so positions can be given in
+ * ECI directly. A single Bowring step is accurate to well under a millimetre from the
+ * surface up to 1000km. Gravity is bit-identical to {@link GravityKernel} and the
+ * atmosphere to {@link StandardAtmosphere} at the same altitude. Above 1000km there is no
+ * atmosphere in the model, so temperature, pressure, density and speed of sound are 0.
+ * Positions below the ellipsoid throw, as {@link Atmosphere} does for negative heights.
+ *
+ * Batches read positions as x, y and z next to each other and write records of
+ * RECORD_SIZE doubles laid out by the index constants below.
+ * Evaluations are recorded in {@link Instrumentation} as the ENVIRONMENT model, with the
+ * layer of every position up to 1000km and every position below the ellipsoid counted.
+ * @author eib15ns
+ */
+public final class Environment {
+
+    // Layout of a result record
+    public static final int HEIGHT = 0; // km
+    public static final int TEMPERATURE = 1; // K
+    public static final int PRESSURE = 2; // Pa
+    public static final int DENSITY = 3; // kg/m^3
+    public static final int SPEED_SOUND = 4; // m/s
+    public static final int ACC_X = 5; // m/s^2
+    public static final int ACC_Y = 6;
+    public static final int ACC_Z = 7;
+    public static final int RECORD_SIZE = 8;
+
+    // Reference ellipsoid, WGS-72 (m)
+    private static final double A = Constants.RADIUS_EQUATOR;
+    private static final double B = Constants.ELLIPSOID_POLE;
+    private static final double E2 = 1 - (B*B)/(A*A); // first eccentricity squared
+    private static final double EP2 = (A*A)/(B*B) - 1; // second eccentricity squared
+
+    private Environment(){
+    }
+
+    /**
+     * Evaluates the environment at a single ECI position
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @param out Holder the results are written to
+     */
+    public static void at(double x, double y, double z, EnvironmentState out){
+        at(x, y, z, out.record, 0);
+    }
+
+    /**
+     * Evaluates the environment at a single ECI position into a record
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @param out Array the record is written to
+     * @param offset Index of the start of the record
+     */
+    public static void at(double x, double y, double z, double[] out, int offset){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            evaluateInstrumented(x, y, z, out, offset);
+            Instrumentation.record(Instrumentation.Model.ENVIRONMENT, start, 1);
+        }
+        else {
+            evaluate(x, y, z, out, offset);
+        }
+    }
+
+    /**
+     * Evaluates the environment at a position, counting its layer or counting it as out of
+     * range if it is below the ellipsoid
+     */
+    private static void evaluateInstrumented(double x, double y, double z, double[] out, int offset){
+        int interval;
+        try {
+            interval = evaluate(x, y, z, out, offset);
+        }
+        catch (RuntimeException e){
+            Instrumentation.outOfRange(Instrumentation.Model.ENVIRONMENT, out[offset + HEIGHT]);
+            throw e;
+        }
+        if (interval >= 0) Instrumentation.layer(interval);
+    }
+
+    /**
+     * Evaluates the environment at a position into a record
+     * @return The interval of {@link StandardAtmosphere} the altitude fell in, or -1 above 1000km
+     */
+    private static int evaluate(double x, double y, double z, double[] out, int offset){
+        double p2 = x*x + y*y;
+        double r2 = p2 + z*z;
+
+        // J2 gravity, written as in GravityKernel
+        double invR2 = 1.0/r2;
+        double r = Math.sqrt(r2);
+        double sub1 = GravityKernel.J2_FACTOR * invR2;
+        double sub2 = 5 * z*z * invR2;
+        double sub3 = -1 * GravityKernel.MU * invR2 / r;
+        double sub4 = sub3 * (1 - sub1 * (sub2 - 1));
+        out[offset + ACC_X] = x * sub4;
+        out[offset + ACC_Y] = y * sub4;
+        out[offset + ACC_Z] = z * sub3 * (1 - sub1 * (sub2 - 3));
+
+        double height = geodetic(Math.sqrt(p2), z);
+        out[offset + HEIGHT] = height;
+
+        if (height > 1000.0){
+            out[offset + TEMPERATURE] = 0.0;
+            out[offset + PRESSURE] = 0.0;
+            out[offset + DENSITY] = 0.0;
+            out[offset + SPEED_SOUND] = 0.0;
+            return(-1);
+        }
+        StandardAtmosphere.checkHeight(height);
+        double geoPot = StandardAtmosphere.getGeoPotHeight(height);
+        int interval = StandardAtmosphere.interval(height, geoPot);
+        double temp = StandardAtmosphere.temperature(interval, height, geoPot);
+        double pres = StandardAtmosphere.pressure(interval, height, geoPot);
+        out[offset + TEMPERATURE] = temp;
+        out[offset + PRESSURE] = pres;
+        out[offset + DENSITY] = StandardAtmosphere.calcDensity(pres, temp);
+        out[offset + SPEED_SOUND] = StandardAtmosphere.calcSpeedSound(temp);
+        return(interval);
+    }
+
+    /**
+     * Evaluates the environment for many ECI positions. Nothing is allocated so the arrays
+     * can be reused across calls.
+     * @param positions Positions as x, y and z next to each other (m)
+     * @param offset Index of x of the first position
+     * @param out Array the records are written to
+     * @param outOffset Index of the start of the first record
+     * @param count Number of positions to evaluate
+     */
+    public static void at(double[] positions, int offset, double[] out, int outOffset, int count){
+        Objects.checkFromIndexSize(offset, 3*count, positions.length);
+        Objects.checkFromIndexSize(outOffset, RECORD_SIZE*count, out.length);
+
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++){
+                int in = offset + 3*i;
+                evaluateInstrumented(positions[in], positions[in + 1], positions[in + 2], out, outOffset + RECORD_SIZE*i);
+            }
+            Instrumentation.record(Instrumentation.Model.ENVIRONMENT, start, count);
+        }
+        else {
+            for (int i = 0; i < count; i++){
+                int in = offset + 3*i;
+                evaluate(positions[in], positions[in + 1], positions[in + 2], out, outOffset + RECORD_SIZE*i);
+            }
+        }
+    }
+
+    /**
+     * Calculates the geodetic altitude of a position above the reference ellipsoid
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @return The altitude (km)
+     */
+    public static double altitude(double x, double y, double z){
+        return(geodetic(Math.sqrt(x*x + y*y), z));
+    }
+
+    /**
+     * Calculates the geodetic altitude with Bowring's method. The parametric latitude is
+     * found from the position, then the geodetic latitude from it, both as sine and cosine
+     * pairs so no trigonometric functions are needed.
+     * @param p Distance from the polar axis (m)
+     * @param z Distance along the polar axis (m)
+     * @return The altitude (km)
+     */
+    private static double geodetic(double p, double z){
+        double u = z*A;
+        double v = p*B;
+        double invN = 1.0/Math.sqrt(u*u + v*v);
+        double sinBeta = u*invN;
+        double cosBeta = v*invN;
+        double north = z + EP2*B*sinBeta*sinBeta*sinBeta;
+        double east = p - E2*A*cosBeta*cosBeta*cosBeta;
+        double invM = 1.0/Math.sqrt(north*north + east*east);
+        double sinLat = north*invM;
+        double cosLat = east*invM;
+        return((p*cosLat + z*sinLat - A*Math.sqrt(1 - E2*sinLat*sinLat))*0.001);
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.ArrayDeque;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns a stream of ECI positions into a stream of {@link EnvironmentState} records, the
+ * atmosphere and gravity at each position as given by {@link Environment}.
+ * Each sample is a double array holding the ECI position x, y and z (m).
+ *
+ * Samples are collected into batches and evaluated with the {@link Environment} batch
+ * function. A batch is evaluated when it is full, or straight away when a subscriber is
+ * waiting with demand and nothing buffered, so a slow source is not held back to fill a
+ * batch while a fast source running ahead of its subscribers gets full batches.
+ *
+ * Two delivery modes are offered:
+ * <ul>
+ *  <li>Buffered, the default. Every record reaches every subscriber in order. Samples are
+ *  only requested from upstream while every subscriber has room in its buffer, so the
+ *  slowest subscriber sets the pace of the whole stream.</li>
+ *  <li>Conflated. Each subscriber only keeps the latest record it has not taken yet, and
+ *  older records are dropped. Upstream is never held back, which suits telemetry
+ *  displays that only need the current value.</li>
+ * </ul>
+ * Records are published to the subscribers present when they are evaluated, and nothing
+ * is requested from upstream until the first subscriber arrives. Each subscriber is
+ * signalled from the executor, one signal at a time.
+ * A position below the reference ellipsoid fails the stream: the records before it are
+ * delivered, upstream is cancelled and the subscribers get the error.
+ * @author eib15ns
+ */
+public class EnvironmentProcessor implements Flow.Processor<double[], EnvironmentState> {
+
+    //Instance Variables
+    private Executor executor = ForkJoinPool.commonPool();
+    private int batchSize = 64;
+    private int bufferSize = 256;
+    private boolean conflate;
+
+    private final CopyOnWriteArrayList<Downstream> subscribers = new CopyOnWriteArrayList<>();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+
+    // Guarded by this
+    private Flow.Subscription upstream;
+    private double[] positions;
+    private double[] records;
+    private int count; // samples waiting in the batch
+    private long outstanding; // samples requested from upstream and not received
+    private boolean done;
+    private Throwable error;
+
+    /**
+     * Sets the executor subscribers are signalled from. Must be set before subscribing.
+     * @param executor The executor
+     */
+    public void setExecutor(Executor executor){
+        checkIdle();
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Sets the batch size and the number of records buffered per subscriber. Must be set
+     * before subscribing.
+     * @param batchSize Largest number of samples evaluated together
+     * @param bufferSize Records buffered per subscriber in the buffered mode
+     */
+    public void setBatching(int batchSize, int bufferSize){
+        checkIdle();
+        if (batchSize < 1 || bufferSize < batchSize) throw new RuntimeException("The batch size must be positive and the buffer must hold at least one batch.");
+        this.batchSize = batchSize;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sets whether subscribers only get the latest record. Must be set before subscribing.
+     * @param conflate True to drop records a subscriber has not taken when a newer one arrives
+     */
+    public void setConflation(boolean conflate){
+        checkIdle();
+        this.conflate = conflate;
+    }
+
+    private synchronized void checkIdle(){
+        if (this.upstream != null || !this.subscribers.isEmpty()) throw new RuntimeException("The processor must be configured before anything subscribes.");
+    }
+
+
+    // UPSTREAM
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription){
+        Objects.requireNonNull(subscription);
+        synchronized (this){
+            if (this.upstream != null || this.done){
+                subscription.cancel();
+                return;
+            }
+            this.upstream = subscription;
+            this.positions = new double[3*this.batchSize];
+            this.records = new double[Environment.RECORD_SIZE*this.batchSize];
+        }
+        requestUpstream();
+    }
+
+    @Override
+    public void onNext(double[] sample){
+        Objects.requireNonNull(sample);
+        boolean published = false;
+        synchronized (this){
+            if (this.done) return;
+            if (sample.length < 3){
+                fail(new RuntimeException("A sample must hold the ECI position x, y and z (m)."));
+                return;
+            }
+            this.outstanding--;
+            System.arraycopy(sample, 0, this.positions, 3*this.count, 3);
+            this.count++;
+            if (this.count == this.batchSize || waiting()){
+                publish();
+                published = true;
+            }
+        }
+        if (published) requestUpstream();
+    }
+
+    @Override
+    public void onError(Throwable throwable){
+        Objects.requireNonNull(throwable);
+        synchronized (this){
+            if (this.done) return;
+            publish();
+            terminate(throwable);
+        }
+    }
+
+    @Override
+    public void onComplete(){
+        synchronized (this){
+            if (this.done) return;
+            publish();
+            terminate(null);
+        }
+    }
+
+    /**
+     * Requests samples from upstream to keep a batch in flight, limited by the room left
+     * in the subscriber buffers unless conflating
+     */
+    private void requestUpstream(){
+        Flow.Subscription subscription;
+        long wanted;
+        synchronized (this){
+            if (this.upstream == null || this.done || this.subscribers.isEmpty()) return;
+            long room = this.batchSize;
+            if (!this.conflate){
+                for (Downstream downstream : this.subscribers) room = Math.min(room, this.bufferSize - downstream.size());
+            }
+            wanted = room - this.outstanding - this.count;
+            if (wanted <= 0) return;
+            this.outstanding += wanted;
+            subscription = this.upstream;
+        }
+        subscription.request(wanted);
+    }
+
+    /**
+     * Checks whether a subscriber is waiting for a record with nothing buffered
+     */
+    private boolean waiting(){
+        for (Downstream downstream : this.subscribers){
+            if (downstream.demand.get() > 0 && downstream.size() == 0) return(true);
+        }
+        return(false);
+    }
+
+    /**
+     * Evaluates the samples in the batch and hands the records to every subscriber
+     */
+    private void publish(){
+        int evaluated = this.count;
+        if (evaluated == 0) return;
+        RuntimeException failure = null;
+        try {
+            Environment.at(this.positions, 0, this.records, 0, evaluated);
+        }
+        catch (RuntimeException e){
+            // Find the first position that failed so the records before it still go out
+            failure = e;
+            evaluated = 0;
+            try {
+                for (; evaluated < this.count; evaluated++){
+                    Environment.at(this.positions, 3*evaluated, this.records, Environment.RECORD_SIZE*evaluated, 1);
+                }
+            }
+            catch (RuntimeException first){
+                failure = first;
+            }
+        }
+        this.count = 0;
+        for (int i = 0; i < evaluated; i++){
+            EnvironmentState state = new EnvironmentState();
+            System.arraycopy(this.records, Environment.RECORD_SIZE*i, state.record, 0, Environment.RECORD_SIZE);
+            for (Downstream downstream : this.subscribers) downstream.offer(state);
+        }
+        this.samples.add(evaluated);
+        this.batches.increment();
+        for (Downstream downstream : this.subscribers) downstream.drain();
+        if (failure != null) fail(failure);
+    }
+
+    private void fail(RuntimeException failure){
+        this.upstream.cancel();
+        terminate(failure);
+    }
+
+    /**
+     * Ends the stream for every subscriber. Only the first call counts, so an error found
+     * while publishing the last batch is not replaced by the completion or error that
+     * caused the publish.
+     */
+    private void terminate(Throwable throwable){
+        if (this.done) return;
+        this.done = true;
+        this.error = throwable;
+        for (Downstream downstream : this.subscribers) downstream.terminate(throwable);
+    }
+
+    /**
+     * Called when a subscriber wants more records, evaluating a part filled batch if the
+     * subscriber has nothing buffered
+     */
+    private void demanded(Downstream downstream){
+        synchronized (this){
+            if (this.count > 0 && !this.done && downstream.size() == 0 && this.subscribers.contains(downstream)) publish();
+        }
+        requestUpstream();
+    }
+
+
+    // DOWNSTREAM
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super EnvironmentState> subscriber){
+        Objects.requireNonNull(subscriber);
+        Downstream downstream = new Downstream(subscriber);
+        subscriber.onSubscribe(downstream);
+        synchronized (this){
+            if (this.done){
+                downstream.terminate(this.error);
+                return;
+            }
+            this.subscribers.add(downstream);
+        }
+        demanded(downstream);
+    }
+
+    /**
+     * The subscription of one subscriber, holding its demand and buffered records.
+     * Signals are sent from a drain loop that only ever runs on one thread at a time.
+     */
+    private final class Downstream implements Flow.Subscription {
+        final Flow.Subscriber<? super EnvironmentState> subscriber;
+        final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger work = new AtomicInteger();
+        private final ArrayDeque<EnvironmentState> queue = new ArrayDeque<>(); // guarded by this
+        private volatile boolean cancelled;
+        private volatile boolean terminated;
+        private volatile Throwable failure;
+        private boolean finished; // only touched by the drain loop
+
+        Downstream(Flow.Subscriber<? super EnvironmentState> subscriber){
+            this.subscriber = subscriber;
+        }
+
+        synchronized void offer(EnvironmentState state){
+            if (this.cancelled) return;
+            if (conflate && !this.queue.isEmpty()){
+                this.queue.clear();
+                conflated.increment();
+            }
+            this.queue.addLast(state);
+        }
+
+        synchronized int size(){return(this.queue.size());}
+
+        private synchronized EnvironmentState poll(){return(this.queue.pollFirst());}
+
+        void terminate(Throwable throwable){
+            this.failure = throwable;
+            this.terminated = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n){
+            if (n <= 0){
+                this.failure = new IllegalArgumentException("A subscriber must request a positive number of records.");
+                this.terminated = true;
+                synchronized (this){
+                    this.queue.clear();
+                }
+                subscribers.remove(this);
+                drain();
+                return;
+            }
+            this.demand.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+            demanded(this);
+            drain();
+        }
+
+        @Override
+        public void cancel(){
+            this.cancelled = true;
+            subscribers.remove(this);
+            synchronized (this){
+                this.queue.clear();
+            }
+            requestUpstream();
+        }
+
+        void drain(){
+            if (this.work.getAndIncrement() == 0) executor.execute(this::run);
+        }
+
+        private void run(){
+            int missed = 1;
+            do {
+                long delivered = 0;
+                while (!this.cancelled && !this.finished && this.demand.get() > 0){
+                    EnvironmentState state = poll();
+                    if (state == null) break;
+                    this.demand.decrementAndGet();
+                    delivered++;
+                    try {
+                        this.subscriber.onNext(state);
+                    }
+                    catch (Throwable e){
+                        cancel();
+                    }
+                }
+                if (!this.cancelled && !this.finished && this.terminated && size() == 0){
+                    this.finished = true;
+                    if (this.failure == null) this.subscriber.onComplete();
+                    else this.subscriber.onError(this.failure);
+                }
+                if (delivered > 0 && !this.finished) demanded(this);
+                missed = this.work.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the number of samples evaluated
+     * @return Samples evaluated
+     */
+    public long getSamples(){return(this.samples.sum());}
+    /**
+     * Get the number of batches the samples were evaluated in
+     * @return Batches evaluated
+     */
+    public long getBatches(){return(this.batches.sum());}
+    /**
+     * Get the number of records dropped for a newer one while conflating, summed over
+     * the subscribers
+     * @return Records dropped
+     */
+    public long getConflated(){return(this.conflated.sum());}
+}
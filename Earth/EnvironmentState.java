@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Holds the environment at one ECI position as written by {@link Environment}.
+ * The values sit in a single record laid out as {@link Environment} batches write them,
+ * so a holder can be reused by a single thread with no allocation.
+ * @author eib15ns
+ */
+public class EnvironmentState {
+
+    //Instance Variables
+    final double[] record = new double[Environment.RECORD_SIZE];
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the geodetic altitude above the reference ellipsoid
+     * @return The altitude (km)
+     */
+    public double getHeight(){return(this.record[Environment.HEIGHT]);}
+    /**
+     * Get the temperature
+     * @return The temperature (K), or 0 above the atmosphere
+     */
+    public double getTemperature(){return(this.record[Environment.TEMPERATURE]);}
+    /**
+     * Get the pressure
+     * @return The pressure (Pa), or 0 above the atmosphere
+     */
+    public double getPressure(){return(this.record[Environment.PRESSURE]);}
+    /**
+     * Get the density
+     * @return The density (kg/m^3), or 0 above the atmosphere
+     */
+    public double getDensity(){return(this.record[Environment.DENSITY]);}
+    /**
+     * Get the speed of sound
+     * @return The speed of sound (m/s), or 0 above the atmosphere
+     */
+    public double getSpeedSound(){return(this.record[Environment.SPEED_SOUND]);}
+    /**
+     * Get the acceleration due to gravity in the x axis
+     * @return The acceleration (m/s^2)
+     */
+    public double getAccX(){return(this.record[Environment.ACC_X]);}
+    /**
+     * Get the acceleration due to gravity in the y axis
+     * @return The acceleration (m/s^2)
+     */
+    public double getAccY(){return(this.record[Environment.ACC_Y]);}
+    /**
+     * Get the acceleration due to gravity in the z axis
+     * @return The acceleration (m/s^2)
+     */
+    public double getAccZ(){return(this.record[Environment.ACC_Z]);}
+
+    @Override
+    public String toString() {
+        String result = "At Height(km): "+getHeight()+"\n"
+                +"Density(kg/m^3): "+getDensity()+"\n"
+                +"Pressure(Pa): "+getPressure()+"\n"
+                +"Temperature(K): "+getTemperature()+"\n"
+                +"Speed of Sound(m/s): "+getSpeedSound()+"\n"
+                +"Acceleration in X: "+getAccX()+"\n"
+                +"Acceleration in Y: "+getAccY()+"\n"
+                +"Acceleration in Z: "+getAccZ()+"\n";
+        return(result);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * A piecewise exponential fit of the 1976 standard atmosphere, for screening passes that
+ * evaluate very many heights and can accept a few percent of error.
+ * Within each band the density falls exponentially with a single scale height and the
+ * temperature changes linearly, both matching the standard model at the band bounds.
+ * Pressure follows from the ideal gas law as in {@link StandardAtmosphere}, so an
+ * evaluation is a single exponential and square root. Bands start at the layer bounds
+ * and pressure nodes of the standard model and are halved until the density and pressure
+ * are within 1% everywhere in them, which takes about 110 bands. Pressure is linear
+ * between the nodes above 86km, so the bands crowd below every node there.
+ *
+ * The maximum relative error against {@link StandardAtmosphere} is measured when the model
+ * is created by sampling every 50m, and can be read back with the getMaxError functions.
+ * The model holds no mutable state, so a single instance can be shared between threads.
+ * @author eib15ns
+ */
+public final class ExponentialAtmosphere implements AtmosphereModel {
+
+    private static final double[] MODEL_BOUNDS = {0, 11, 20, 32, 47, 51, 71, 86, 91, 96, 102, 110, 120,
+        200, 300, 400, 500, 600, 700, 800, 900, 1000}; // km
+    private static final double FIT_TOLERANCE = 0.01; // relative density and pressure error of a band
+    private static final double CHECK_STEP = 0.05; // km
+
+    // Layout of the per property arrays
+    private static final int TEMPERATURE = 0;
+    private static final int PRESSURE = 1;
+    private static final int DENSITY = 2;
+    private static final int SPEED_SOUND = 3;
+    private static final int PROPERTIES = 4;
+
+    /**
+     * Shared instance of the model, created after the tables it is fitted with
+     */
+    public static final ExponentialAtmosphere INSTANCE = new ExponentialAtmosphere();
+
+    //Instance Variables
+    private final double[] baseHeight; // km
+    private final double[] baseTemp; // K
+    private final double[] baseDensity; // kg/m^3
+    private final double[] tempSlope; // K/km
+    private final double[] densityRate; // minus the inverse scale height (1/km)
+    private final int[] bandIndex = new int[1000]; // first band of every whole km
+    private final double[] maxError = new double[PROPERTIES]; // maximum relative error per property
+
+    private ExponentialAtmosphere(){
+        ArrayList<Double> bounds = new ArrayList<>();
+        bounds.add(MODEL_BOUNDS[0]);
+        for (int i = 0; i < MODEL_BOUNDS.length - 1; i++){
+            split(MODEL_BOUNDS[i], MODEL_BOUNDS[i + 1], bounds);
+        }
+
+        int size = bounds.size();
+        this.baseHeight = new double[size];
+        this.baseTemp = new double[size];
+        this.baseDensity = new double[size];
+        this.tempSlope = new double[size];
+        this.densityRate = new double[size];
+        AtmosphereState state = new AtmosphereState();
+        for (int i = 0; i < size; i++){
+            this.baseHeight[i] = bounds.get(i);
+            StandardAtmosphere.INSTANCE.evaluate(this.baseHeight[i], state);
+            this.baseTemp[i] = state.getTemperature();
+            this.baseDensity[i] = state.getDensity();
+        }
+        for (int i = 0; i < size - 1; i++){
+            double width = this.baseHeight[i + 1] - this.baseHeight[i];
+            this.tempSlope[i] = (this.baseTemp[i + 1] - this.baseTemp[i])/width;
+            this.densityRate[i] = Math.log(this.baseDensity[i + 1]/this.baseDensity[i])/width;
+        }
+        for (int i = 0, band = 0; i < this.bandIndex.length; i++){
+            while (this.baseHeight[band + 1] <= i) band++;
+            this.bandIndex[i] = band;
+        }
+
+        int checks = (int)Math.round(1000.0/CHECK_STEP);
+        for (int i = 0; i <= checks; i++){
+            double height = i*CHECK_STEP;
+            StandardAtmosphere.INSTANCE.evaluate(height, state);
+            int band = band(height);
+            double temp = temperature(band, height);
+            double rho = density(band, height);
+            this.maxError[TEMPERATURE] = Math.max(this.maxError[TEMPERATURE], Math.abs(temp/state.getTemperature() - 1));
+            this.maxError[PRESSURE] = Math.max(this.maxError[PRESSURE], Math.abs(pressure(rho, temp)/state.getPressure() - 1));
+            this.maxError[DENSITY] = Math.max(this.maxError[DENSITY], Math.abs(rho/state.getDensity() - 1));
+            this.maxError[SPEED_SOUND] = Math.max(this.maxError[SPEED_SOUND], Math.abs(StandardAtmosphere.calcSpeedSound(temp)/state.getSpeedSound() - 1));
+        }
+    }
+
+    /**
+     * Adds the bounds of the bands fitting a range of heights after its lower bound,
+     * halving the range until the fit is within tolerance
+     */
+    private static void split(double low, double high, ArrayList<Double> bounds){
+        AtmosphereState state = new AtmosphereState();
+        StandardAtmosphere.INSTANCE.evaluate(low, state);
+        double temp = state.getTemperature();
+        double rho = state.getDensity();
+        StandardAtmosphere.INSTANCE.evaluate(high, state);
+        double slope = (state.getTemperature() - temp)/(high - low);
+        double rate = Math.log(state.getDensity()/rho)/(high - low);
+
+        int checks = (int)Math.ceil((high - low)/CHECK_STEP);
+        for (int i = 1; i < checks; i++){
+            double height = low + (high - low)*i/checks;
+            StandardAtmosphere.INSTANCE.evaluate(height, state);
+            double fit = rho*Math.exp((height - low)*rate);
+            double fitPressure = fit*(temp + (height - low)*slope);
+            if (Math.abs(fit/state.getDensity() - 1) > FIT_TOLERANCE
+                    || Math.abs(fitPressure/(state.getDensity()*state.getTemperature()) - 1) > FIT_TOLERANCE){
+                double middle = 0.5*(low + high);
+                split(low, middle, bounds);
+                split(middle, high, bounds);
+                return;
+            }
+        }
+        bounds.add(high);
+    }
+
+    private int band(double height){
+        int band = this.bandIndex[Math.min((int)height, this.bandIndex.length - 1)];
+        while (height > this.baseHeight[band + 1]) band++;
+        return(band);
+    }
+
+    private double temperature(int band, double height){
+        return(this.baseTemp[band] + (height - this.baseHeight[band])*this.tempSlope[band]);
+    }
+
+    private double density(int band, double height){
+        return(this.baseDensity[band]*Math.exp((height - this.baseHeight[band])*this.densityRate[band]));
+    }
+
+    private static double pressure(double density, double temperature){
+        return(density*temperature/StandardAtmosphere.calcDensity(1.0, 1.0));
+    }
+
+    /**
+     * Evaluates the model at a single height
+     * @param height Geometric height in km
+     * @param out Holder the results are written to
+     */
+    @Override
+    public void evaluate(double height, AtmosphereState out){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            if (height > 1000.0 || height < 0.0) Instrumentation.outOfRange(Instrumentation.Model.EXPONENTIAL_ATMOSPHERE, height);
+            set(height, out);
+            Instrumentation.record(Instrumentation.Model.EXPONENTIAL_ATMOSPHERE, start, 1);
+        }
+        else {
+            set(height, out);
+        }
+    }
+
+    private void set(double height, AtmosphereState out){
+        StandardAtmosphere.checkHeight(height);
+        int band = band(height);
+        double temp = temperature(band, height);
+        double rho = density(band, height);
+        out.set(height, temp, pressure(rho, temp), rho, StandardAtmosphere.calcSpeedSound(temp));
+    }
+
+    /**
+     * Evaluates the model for a range of heights in an array. Nothing is allocated so
+     * the arrays can be reused across calls.
+     * @param heightsKm Geometric heights in km
+     * @param offset Index of the first height to evaluate
+     * @param outT Array the temperatures are written to (K)
+     * @param outP Array the pressures are written to (Pa)
+     * @param outRho Array the densities are written to (kg/m^3)
+     * @param outA Array the speeds of sound are written to (m/s)
+     * @param outOffset Index the first result is written to in every output array
+     * @param length Number of heights to evaluate
+     */
+    @Override
+    public void evaluate(double[] heightsKm, int offset, double[] outT, double[] outP,
+            double[] outRho, double[] outA, int outOffset, int length){
+
+        Objects.checkFromIndexSize(offset, length, heightsKm.length);
+        Objects.checkFromIndexSize(outOffset, length, outT.length);
+        Objects.checkFromIndexSize(outOffset, length, outP.length);
+        Objects.checkFromIndexSize(outOffset, length, outRho.length);
+        Objects.checkFromIndexSize(outOffset, length, outA.length);
+
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            evaluateRange(heightsKm, offset, outT, outP, outRho, outA, outOffset, length);
+            Instrumentation.record(Instrumentation.Model.EXPONENTIAL_ATMOSPHERE, start, length);
+        }
+        else {
+            evaluateRange(heightsKm, offset, outT, outP, outRho, outA, outOffset, length);
+        }
+    }
+
+    private void evaluateRange(double[] heightsKm, int offset, double[] outT, double[] outP,
+            double[] outRho, double[] outA, int outOffset, int length){
+        for (int i = 0; i < length; i++){
+            double height = heightsKm[offset + i];
+            StandardAtmosphere.checkHeight(height);
+            int band = band(height);
+            double temp = temperature(band, height);
+            double rho = density(band, height);
+
+            outT[outOffset + i] = temp;
+            outP[outOffset + i] = pressure(rho, temp);
+            outRho[outOffset + i] = rho;
+            outA[outOffset + i] = StandardAtmosphere.calcSpeedSound(temp);
+        }
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the maximum relative temperature error against the exact model
+     * @return The maximum relative error
+     */
+    public double getMaxErrorTemperature(){return(this.maxError[TEMPERATURE]);}
+    /**
+     * Get the maximum relative pressure error against the exact model
+     * @return The maximum relative error
+     */
+    public double getMaxErrorPressure(){return(this.maxError[PRESSURE]);}
+    /**
+     * Get the maximum relative density error against the exact model
+     * @return The maximum relative error
+     */
+    public double getMaxErrorDensity(){return(this.maxError[DENSITY]);}
+    /**
+     * Get the maximum relative speed of sound error against the exact model
+     * @return The maximum relative error
+     */
+    public double getMaxErrorSpeedSound(){return(this.maxError[SPEED_SOUND]);}
+
+    @Override
+    public String toString() {
+        String result = "Exponential fit with "+(baseHeight.length - 1)+" bands from 0km to 1000km\n"
+                +"Max Error Temperature: "+maxError[TEMPERATURE]+"\n"
+                +"Max Error Pressure: "+maxError[PRESSURE]+"\n"
+                +"Max Error Density: "+maxError[DENSITY]+"\n"
+                +"Max Error Speed Sound: "+maxError[SPEED_SOUND]+"\n";
+        return(result);
+    }
+}
@@ -57,16 +57,19 @@ public class Gravity{
     
     /**
      * Computes the gravitational acceleration vector at a specified ECI location using the JGM2 gravitational ellipsoid only. Higher-order gravity terms (the "gravity anomaly") are ignored. Only the pure ellipsoid is used.
+     * The arithmetic is the same as {@link GravityKernel} so both give identical results.
      * @param positionECI Position co-ordinates in ECI system
      * @return The acceleration vector of gravity in ECI system
      */
     private void gravityECI(double positionECIX, double positionECIY, double positionECIZ){
         
-        double r = Math.sqrt(Math.pow(positionECIX, 2)+Math.pow(positionECIY, 2)+Math.pow(positionECIZ, 2));
+        double r2 = positionECIX*positionECIX + positionECIY*positionECIY + positionECIZ*positionECIZ;
+        double invR2 = 1.0/r2;
+        double r = Math.sqrt(r2);
         
-        double sub1 = 1.5 * this.j2 * Math.pow((this.radiusEq / r), 2);
-        double sub2 = 5 * Math.pow((positionECIZ/r), 2);
-        double sub3 = -1 * (Constants.GRAVITATIONAL_CONSTANT*this.mass) / Math.pow(r, 3);
+        double sub1 = 1.5 * this.j2 * this.radiusEq * this.radiusEq * invR2;
+        double sub2 = 5 * positionECIZ*positionECIZ * invR2;
+        double sub3 = -1 * (Constants.GRAVITATIONAL_CONSTANT*this.mass) * invR2 / r;
         double sub4 = sub3 * (1 - sub1 * (sub2 - 1));
         
         double gx = positionECIX * sub4;
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache in front of a slow {@link GravityModel}, such as a high degree
+ * {@link SphericalHarmonicGravity}, that samples the field lazily where it is used.
+ * Space between two radii is split into radial shells, and each shell into the six faces
+ * of a cubed sphere with a square of blocks on every face. The first query landing in a
+ * block samples it and subdivides it as an octree, at most four times, until trilinear
+ * interpolation is within a tolerance at the centre, face centres and edge midpoints of
+ * every cell. Like {@link GravityGrid} only the field left after removing the point mass
+ * term is stored. A cell still over the tolerance at the deepest level, such as one
+ * across a discontinuity in the model, is marked unresolved and its queries go to the
+ * model, so no query is answered outside the tolerance at the points checked.
+ *
+ * Blocks are never changed once built, so queries read them without locking from any
+ * number of threads. When the blocks held take more memory than the budget the least
+ * recently used ones are evicted with the clock algorithm and sampled again if needed.
+ * Neighbouring cells refined to different depths can differ by up to the tolerance at
+ * their shared face. Positions outside the cached radii go straight to the model.
+ * @author eib15ns
+ */
+public class GravityCache implements GravityModel {
+
+    private static final int FACES = 6;
+    private static final int MAX_DEPTH = 4; // subdivisions of a block
+    private static final int MAX_BLOCKS = 1 << 26;
+    private static final int LATTICE = 1 << (MAX_DEPTH + 1); // sample spacing fine enough for the centre of the smallest cell
+    private static final int LEAF_SIZE = 24; // x, y and z at 8 corners
+    private static final int LOCKS = 64; // must be a power of 2
+    private static final int UNRESOLVED = Integer.MIN_VALUE; // node entry of a cell answered by the model
+
+    //Instance Variables
+    private final GravityModel model;
+    private final double gm; // m^3/s^2
+    private final double minRadius; // m
+    private final double maxRadius; // m
+    private final double tolerance; // m/s^2
+    private final long memoryBudget; // bytes
+    private final int shells;
+    private final int faceCells; // blocks along each edge of a cube face
+    private final double shellStep; // m
+    private final double faceStep; // cell width in tangent of the angle from the face centre
+    private final AtomicReferenceArray<Block> blocks;
+    private final Object[] locks = new Object[LOCKS];
+    private final AtomicLong memoryUsed = new AtomicLong(); // bytes
+    private final AtomicLong cells = new AtomicLong();
+    private final AtomicLong unresolved = new AtomicLong(); // cells answered by the model
+    private final LongAdder builds = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final DoubleAccumulator maxError = new DoubleAccumulator(Math::max, 0.0);
+    private int hand; // next block the clock looks at, guarded by this
+
+    /**
+     * Creates an empty cache, nothing is sampled until it is queried
+     * @param model The gravity model to sample
+     * @param gm Gravitational parameter of the point mass term removed before interpolating (m^3/s^2)
+     * @param minRadius Radius of the bottom of the lowest shell (m)
+     * @param maxRadius Radius of the top of the highest shell (m)
+     * @param blockSize Thickness of the shells and rough width of the blocks at the lowest shell (m)
+     * @param tolerance Interpolation error cells are refined to (m/s^2)
+     * @param memoryBudget Memory the blocks may hold before some are evicted (bytes)
+     */
+    public GravityCache(GravityModel model, double gm, double minRadius, double maxRadius, double blockSize, double tolerance, long memoryBudget){
+        if (!(minRadius > 0.0) || !(maxRadius > minRadius)) throw new RuntimeException("The maximum radius of the cache must be above the minimum radius, which must be positive.");
+        if (!(blockSize > 0.0) || !(tolerance > 0.0) || memoryBudget <= 0) throw new RuntimeException("The block size, tolerance and memory budget of the cache must be positive.");
+        double faces = Math.ceil(2.0*minRadius/blockSize - 1e-9);
+        double shells = Math.ceil((maxRadius - minRadius)/blockSize - 1e-9);
+        if (shells*FACES*faces*faces > MAX_BLOCKS) throw new RuntimeException("A block size of "+blockSize+"m splits the cache into more than "+MAX_BLOCKS+" blocks.");
+
+        this.model = model;
+        this.gm = gm;
+        this.minRadius = minRadius;
+        this.maxRadius = maxRadius;
+        this.tolerance = tolerance;
+        this.memoryBudget = memoryBudget;
+        this.faceCells = (int)faces;
+        this.faceStep = 2.0/this.faceCells;
+        this.shells = (int)shells;
+        this.shellStep = (maxRadius - minRadius)/this.shells;
+        this.blocks = new AtomicReferenceArray<>(this.shells*FACES*this.faceCells*this.faceCells);
+        for (int i = 0; i < LOCKS; i++) this.locks[i] = new Object();
+    }
+
+    /**
+     * Calculates the acceleration due to gravity at a position from the cached samples,
+     * sampling the surrounding block first if it is not held
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @param out Array the x, y and z accelerations are written to (m/s^2)
+     * @param offset Index the x acceleration is written to
+     */
+    @Override
+    public void accelerate(double x, double y, double z, double[] out, int offset){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            interpolate(x, y, z, out, offset);
+            Instrumentation.record(Instrumentation.Model.GRAVITY_CACHE, start, 1);
+        }
+        else {
+            interpolate(x, y, z, out, offset);
+        }
+    }
+
+    private void interpolate(double x, double y, double z, double[] out, int offset){
+        double r2 = x*x + y*y + z*z;
+        double r = Math.sqrt(r2);
+        if (!(r >= this.minRadius && r <= this.maxRadius)){
+            this.model.accelerate(x, y, z, out, offset);
+            return;
+        }
+
+        // Project onto the face of the cube the position points through
+        double ax = Math.abs(x);
+        double ay = Math.abs(y);
+        double az = Math.abs(z);
+        int face;
+        double p;
+        double q;
+        if (ax >= ay && ax >= az){
+            face = x > 0.0 ? 0 : 1;
+            p = y/ax;
+            q = z/ax;
+        }
+        else if (ay >= az){
+            face = y > 0.0 ? 2 : 3;
+            p = x/ay;
+            q = z/ay;
+        }
+        else {
+            face = z > 0.0 ? 4 : 5;
+            p = x/az;
+            q = y/az;
+        }
+
+        double fi = (r - this.minRadius)/this.shellStep;
+        double fj = (p + 1.0)/this.faceStep;
+        double fk = (q + 1.0)/this.faceStep;
+        int i = Math.min((int)fi, this.shells - 1);
+        int j = Math.min((int)fj, this.faceCells - 1);
+        int k = Math.min((int)fk, this.faceCells - 1);
+        double u = fi - i;
+        double v = fj - j;
+        double w = fk - k;
+
+        int index = ((i*FACES + face)*this.faceCells + j)*this.faceCells + k;
+        Block block = this.blocks.get(index);
+        if (block == null) block = load(index);
+        else if (!block.used) block.used = true;
+
+        // Walk down the octree to the leaf holding the position
+        int[] nodes = block.nodes;
+        int node = nodes[0];
+        while (node >= 0){
+            u += u;
+            v += v;
+            w += w;
+            int child = 0;
+            if (u >= 1.0){
+                u -= 1.0;
+                child = 1;
+            }
+            if (v >= 1.0){
+                v -= 1.0;
+                child |= 2;
+            }
+            if (w >= 1.0){
+                w -= 1.0;
+                child |= 4;
+            }
+            node = nodes[node + child];
+        }
+        if (node == UNRESOLVED){
+            this.model.accelerate(x, y, z, out, offset);
+            return;
+        }
+
+        double[] data = block.data;
+        int base = ~node*LEAF_SIZE;
+        double pointMass = -this.gm/(r2*r);
+        out[offset] = trilinear(data, base, u, v, w) + pointMass*x;
+        out[offset + 1] = trilinear(data, base + 1, u, v, w) + pointMass*y;
+        out[offset + 2] = trilinear(data, base + 2, u, v, w) + pointMass*z;
+    }
+
+    /**
+     * Interpolates one component of the corner values of a leaf starting at an index
+     */
+    private static double trilinear(double[] data, int n, double u, double v, double w){
+        double c00 = lerp(data[n], data[n + 3], u);
+        double c10 = lerp(data[n + 6], data[n + 9], u);
+        double c01 = lerp(data[n + 12], data[n + 15], u);
+        double c11 = lerp(data[n + 18], data[n + 21], u);
+        return(lerp(lerp(c00, c10, v), lerp(c01, c11, v), w));
+    }
+
+    private static double lerp(double a, double b, double t){
+        return(a + t*(b - a));
+    }
+
+    /**
+     * Builds a block that was not held, unless another thread built it first
+     */
+    private Block load(int index){
+        Block block;
+        synchronized (this.locks[index & (LOCKS - 1)]){
+            block = this.blocks.get(index);
+            if (block != null) return(block);
+            block = new Builder(index).build();
+            this.blocks.set(index, block);
+        }
+        this.builds.increment();
+        this.cells.addAndGet(block.data.length/LEAF_SIZE);
+        this.unresolved.addAndGet(block.unresolved);
+        this.maxError.accumulate(block.error);
+        if (this.memoryUsed.addAndGet(block.bytes) > this.memoryBudget) trim(index);
+        return(block);
+    }
+
+    /**
+     * Evicts blocks not used since the clock last passed them until the memory used is
+     * within the budget. The block just built is kept even if it is over the budget alone.
+     */
+    private synchronized void trim(int keep){
+        int size = this.blocks.length();
+        // The first pass may only clear use flags and readers can set them again, so stop after three
+        for (int step = 0; step < 3*size && this.memoryUsed.get() > this.memoryBudget; step++){
+            int index = this.hand;
+            this.hand = index + 1 == size ? 0 : index + 1;
+            Block block = this.blocks.get(index);
+            if (block == null || index == keep) continue;
+            if (block.used){
+                block.used = false;
+                continue;
+            }
+            if (this.blocks.compareAndSet(index, block, null)){
+                this.memoryUsed.addAndGet(-block.bytes);
+                this.cells.addAndGet(-block.data.length/LEAF_SIZE);
+                this.unresolved.addAndGet(-block.unresolved);
+                this.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * The octree of one block. Each node entry is the index of the first of its eight
+     * children, the complement of the leaf index for a leaf, or UNRESOLVED for a cell left
+     * to the model. Children are ordered with the radial half in bit 0 and the two face
+     * directions in bits 1 and 2, and the leaf data holds the perturbing acceleration at
+     * the corners in the same order.
+     */
+    private static final class Block {
+        final int[] nodes;
+        final double[] data; // m/s^2
+        final double error; // largest estimate over the leaves (m/s^2)
+        final int unresolved; // cells left to the model
+        final long bytes;
+        volatile boolean used = true;
+
+        Block(int[] nodes, double[] data, double error, int unresolved){
+            this.nodes = nodes;
+            this.data = data;
+            this.error = error;
+            this.unresolved = unresolved;
+            this.bytes = 64 + 4L*nodes.length + 8L*data.length;
+        }
+    }
+
+    /**
+     * Samples the model over a block and subdivides it, reusing samples shared between
+     * cells. Samples sit on a lattice of LATTICE steps along every edge of the block.
+     */
+    private final class Builder {
+        private final int shell;
+        private final int face;
+        private final int row;
+        private final int column;
+        private final HashMap<Integer, double[]> samples = new HashMap<>();
+        private final double[] acc = new double[3];
+        private int[] nodes = new int[64];
+        private int nodeCount = 1;
+        private double[] data = new double[8*LEAF_SIZE];
+        private int leafCount;
+        private double error;
+        private int unresolved;
+
+        Builder(int index){
+            int cells = GravityCache.this.faceCells;
+            this.column = index%cells;
+            this.row = index/cells%cells;
+            this.face = index/(cells*cells)%FACES;
+            this.shell = index/(cells*cells*FACES);
+        }
+
+        Block build(){
+            refine(0, 0, 0, 0, 0, LATTICE);
+            return(new Block(Arrays.copyOf(this.nodes, this.nodeCount), Arrays.copyOf(this.data, this.leafCount*LEAF_SIZE), this.error, this.unresolved));
+        }
+
+        private void refine(int node, int depth, int a, int b, int c, int size){
+            double[] corners = new double[LEAF_SIZE];
+            for (int n = 0; n < 8; n++){
+                double[] s = sample(a + (n & 1)*size, b + (n >> 1 & 1)*size, c + (n >> 2)*size);
+                System.arraycopy(s, 0, corners, 3*n, 3);
+            }
+
+            // Every component of the field is harmonic, so its curvatures cancel at the
+            // centre and the edge midpoints and face centres have to be checked as well
+            int half = size/2;
+            double cellError = 0.0;
+            for (int n = 0; n < 27; n++){
+                int du = n%3;
+                int dv = n/3%3;
+                int dw = n/9;
+                if (du != 1 && dv != 1 && dw != 1) continue; // corners
+                double[] exact = sample(a + du*half, b + dv*half, c + dw*half);
+                double sum = 0.0;
+                for (int axis = 0; axis < 3; axis++){
+                    double d = trilinear(corners, axis, 0.5*du, 0.5*dv, 0.5*dw) - exact[axis];
+                    sum += d*d;
+                }
+                cellError = Math.max(cellError, Math.sqrt(sum));
+            }
+
+            if (cellError > GravityCache.this.tolerance && depth == MAX_DEPTH){
+                this.nodes[node] = UNRESOLVED;
+                this.unresolved++;
+                return;
+            }
+            if (cellError <= GravityCache.this.tolerance){
+                if ((this.leafCount + 1)*LEAF_SIZE > this.data.length) this.data = Arrays.copyOf(this.data, 2*this.data.length);
+                System.arraycopy(corners, 0, this.data, this.leafCount*LEAF_SIZE, LEAF_SIZE);
+                this.nodes[node] = ~this.leafCount;
+                this.leafCount++;
+                this.error = Math.max(this.error, cellError);
+                return;
+            }
+
+            int first = this.nodeCount;
+            this.nodeCount += 8;
+            if (this.nodeCount > this.nodes.length) this.nodes = Arrays.copyOf(this.nodes, 2*this.nodes.length);
+            this.nodes[node] = first;
+            for (int n = 0; n < 8; n++){
+                refine(first + n, depth + 1, a + (n & 1)*half, b + (n >> 1 & 1)*half, c + (n >> 2)*half, half);
+            }
+        }
+
+        /**
+         * Perturbing acceleration at a lattice point of the block
+         */
+        private double[] sample(int a, int b, int c){
+            Integer key = (a*(LATTICE + 1) + b)*(LATTICE + 1) + c;
+            double[] value = this.samples.get(key);
+            if (value != null) return(value);
+
+            double r = GravityCache.this.minRadius + (this.shell + (double)a/LATTICE)*GravityCache.this.shellStep;
+            double p = -1.0 + (this.row + (double)b/LATTICE)*GravityCache.this.faceStep;
+            double q = -1.0 + (this.column + (double)c/LATTICE)*GravityCache.this.faceStep;
+            double scale = r/Math.sqrt(1.0 + p*p + q*q);
+            double major = (this.face & 1) == 0 ? scale : -scale;
+            double x;
+            double y;
+            double z;
+            if (this.face < 2){
+                x = major;
+                y = p*scale;
+                z = q*scale;
+            }
+            else if (this.face < 4){
+                x = p*scale;
+                y = major;
+                z = q*scale;
+            }
+            else {
+                x = p*scale;
+                y = q*scale;
+                z = major;
+            }
+
+            GravityCache.this.model.accelerate(x, y, z, this.acc, 0);
+            double pointMass = GravityCache.this.gm/(r*r*r);
+            value = new double[]{this.acc[0] + pointMass*x, this.acc[1] + pointMass*y, this.acc[2] + pointMass*z};
+            this.samples.put(key, value);
+            return(value);
+        }
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the model the cache samples
+     * @return The gravity model
+     */
+    public GravityModel getModel(){return(this.model);}
+    /**
+     * Get the radius of the bottom of the lowest shell
+     * @return The minimum radius (m)
+     */
+    public double getMinRadius(){return(this.minRadius);}
+    /**
+     * Get the radius of the top of the highest shell
+     * @return The maximum radius (m)
+     */
+    public double getMaxRadius(){return(this.maxRadius);}
+    /**
+     * Get the interpolation error cells are refined to
+     * @return The tolerance (m/s^2)
+     */
+    public double getTolerance(){return(this.tolerance);}
+    /**
+     * Get the memory the blocks may hold before some are evicted
+     * @return The memory budget (bytes)
+     */
+    public long getMemoryBudget(){return(this.memoryBudget);}
+    /**
+     * Get the approximate memory held by the blocks now
+     * @return The memory used (bytes)
+     */
+    public long getMemoryUsed(){return(this.memoryUsed.get());}
+    /**
+     * Get the number of interpolation cells held now
+     * @return The number of cells
+     */
+    public long getCells(){return(this.cells.get());}
+    /**
+     * Get the number of cells held now that were still over the tolerance at the deepest
+     * level, and whose queries go to the model
+     * @return The number of unresolved cells
+     */
+    public long getUnresolved(){return(this.unresolved.get());}
+    /**
+     * Get the number of blocks sampled so far, including ones sampled again after eviction
+     * @return The number of blocks built
+     */
+    public long getBuilds(){return(this.builds.sum());}
+    /**
+     * Get the number of blocks evicted so far
+     * @return The number of evictions
+     */
+    public long getEvictions(){return(this.evictions.sum());}
+    /**
+     * Get the largest error found at the points checked in the cells interpolated in every
+     * block built so far, which is within the tolerance as unresolved cells are left out
+     * @return The maximum error (m/s^2)
+     */
+    public double getMaxError(){return(this.maxError.get());}
+
+    @Override
+    public String toString() {
+        String result = "Cache from "+minRadius+"m to "+maxRadius+"m with "+shells+" shells of "+FACES+" faces of "+faceCells+" by "+faceCells+" blocks\n"
+                +"Cells: "+getCells()+"\n"
+                +"Unresolved: "+getUnresolved()+"\n"
+                +"Memory Used: "+getMemoryUsed()+"\n"
+                +"Builds: "+getBuilds()+"\n"
+                +"Evictions: "+getEvictions()+"\n"
+                +"Max Error: "+getMaxError()+"\n";
+        return(result);
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A precomputed grid of any {@link GravityModel}, for fields such as a high degree
+ * {@link SphericalHarmonicGravity} that are too slow to evaluate directly at every step.
+ * The model is sampled once on spherical shells of nodes evenly spaced in radius,
+ * latitude and longitude. Queries find their cell by direct index computation and
+ * interpolate trilinearly between the eight surrounding nodes.
+ *
+ * Only the part of the field left after removing the point mass term is stored, and the
+ * point mass term is added back exactly, so the interpolation error scales with the small
+ * perturbing acceleration rather than the full field. The maximum error is estimated when
+ * the grid is built by evaluating the model half way along every edge of every cell. The
+ * curvatures of the field largely cancel at the centre of a cell, so the largest errors sit
+ * on the edges instead.
+ *
+ * Positions are in the frame the model was sampled in. A grid is never changed once built,
+ * so it can be shared between threads, and it can be saved with {@link GridFile} and mapped
+ * back in by other processes without sampling the model again.
+ * @author eib15ns
+ */
+public class GravityGrid implements GravityModel {
+
+    private static final int NODE_SIZE = 3;
+
+    //Instance Variables
+    private final double gm; // m^3/s^2
+    private final double minRadius; // m
+    private final double maxRadius; // m
+    private final int shells;
+    private final int latitudes;
+    private final int longitudes;
+    private final double radialStep; // m
+    private final double angularStep; // latitude step (rad)
+    private final double longitudeStep; // rad
+    private final DoubleBuffer data; // perturbing acceleration x, y, z per node
+    private final double maxError; // m/s^2
+
+    /**
+     * Samples a model onto a grid.
+     * Steps are shrunk slightly if needed so the nodes land exactly on both ends of every range.
+     * @param model The gravity model to sample
+     * @param gm Gravitational parameter of the point mass term removed before interpolating (m^3/s^2)
+     * @param minRadius Radius of the lowest shell (m)
+     * @param maxRadius Radius of the highest shell (m)
+     * @param radialStep Spacing between shells (m)
+     * @param angularStep Spacing between nodes in latitude and longitude (degrees)
+     */
+    public GravityGrid(GravityModel model, double gm, double minRadius, double maxRadius, double radialStep, double angularStep){
+        if (!(minRadius > 0.0) || !(maxRadius > minRadius)) throw new RuntimeException("The maximum radius of the grid must be above the minimum radius, which must be positive.");
+        if (!(radialStep > 0.0) || !(angularStep > 0.0) || angularStep > 90.0) throw new RuntimeException("The steps of the grid must be positive and at most 90 degrees.");
+
+        // Counted in doubles so a fine grid can not overflow before it is checked
+        double shells = Math.ceil((maxRadius - minRadius)/radialStep - 1e-9) + 1;
+        double latitudes = Math.ceil(180.0/angularStep - 1e-9) + 1;
+        double longitudes = Math.ceil(360.0/angularStep - 1e-9) + 1;
+        if (shells*latitudes*longitudes*NODE_SIZE > GridFile.MAX_DOUBLES) throw new RuntimeException("A grid of "+(long)shells+" by "
+                +(long)latitudes+" by "+(long)longitudes+" nodes is larger than the "+GridFile.MAX_SIZE+" bytes a grid file can hold.");
+
+        this.gm = gm;
+        this.minRadius = minRadius;
+        this.maxRadius = maxRadius;
+        this.shells = (int)shells;
+        this.latitudes = (int)latitudes;
+        this.longitudes = (int)longitudes;
+        this.radialStep = (maxRadius - minRadius)/(this.shells - 1);
+        this.angularStep = Math.PI/(this.latitudes - 1);
+        this.longitudeStep = 2*Math.PI/(this.longitudes - 1);
+        this.data = DoubleBuffer.allocate(this.shells*this.latitudes*this.longitudes*NODE_SIZE);
+
+        sample(model);
+        this.maxError = calcMaxError(model);
+    }
+
+    /**
+     * Wraps nodes that were sampled earlier, used when a grid is read from a {@link GridFile}.
+     * The buffer is used in place and must not be changed afterwards.
+     */
+    GravityGrid(double gm, double minRadius, double maxRadius, int shells, int latitudes, int longitudes, DoubleBuffer data, double maxError){
+        if (shells < 2 || latitudes < 3 || longitudes < 3 || data.limit() != (long)shells*latitudes*longitudes*NODE_SIZE) throw new RuntimeException("The grid data does not hold "+shells+" by "+latitudes+" by "+longitudes+" nodes.");
+        if (!(minRadius > 0.0) || !(maxRadius > minRadius)) throw new RuntimeException("The maximum radius of the grid must be above the minimum radius, which must be positive.");
+        this.gm = gm;
+        this.minRadius = minRadius;
+        this.maxRadius = maxRadius;
+        this.shells = shells;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+        this.radialStep = (maxRadius - minRadius)/(shells - 1);
+        this.angularStep = Math.PI/(latitudes - 1);
+        this.longitudeStep = 2*Math.PI/(longitudes - 1);
+        this.data = data;
+        this.maxError = maxError;
+    }
+
+    /**
+     * Evaluates the perturbing acceleration of the model at every node
+     */
+    private void sample(GravityModel model){
+        double[] acc = new double[3];
+        int base = 0;
+        for (int i = 0; i < this.shells; i++){
+            double r = i == this.shells - 1 ? this.maxRadius : this.minRadius + i*this.radialStep;
+            for (int j = 0; j < this.latitudes; j++){
+                double lat = -0.5*Math.PI + j*this.angularStep;
+                // Snap the poles so every node there samples the same point
+                double cosLat = j == 0 || j == this.latitudes - 1 ? 0.0 : Math.cos(lat);
+                double sinLat = j == 0 ? -1.0 : j == this.latitudes - 1 ? 1.0 : Math.sin(lat);
+                for (int k = 0; k < this.longitudes; k++){
+                    double lon = k*this.longitudeStep;
+                    double x = r*cosLat*Math.cos(lon);
+                    double y = r*cosLat*Math.sin(lon);
+                    double z = r*sinLat;
+                    model.accelerate(x, y, z, acc, 0);
+                    double pointMass = this.gm/(r*r*r);
+                    this.data.put(base, acc[0] + pointMass*x);
+                    this.data.put(base + 1, acc[1] + pointMass*y);
+                    this.data.put(base + 2, acc[2] + pointMass*z);
+                    base += NODE_SIZE;
+                }
+            }
+        }
+    }
+
+    /**
+     * Measures the largest difference in acceleration against the model half way along
+     * every edge between neighbouring nodes
+     */
+    private double calcMaxError(GravityModel model){
+        double[] exact = new double[3];
+        double[] interpolated = new double[3];
+        double[] cosLon = new double[2*this.longitudes - 1];
+        double[] sinLon = new double[2*this.longitudes - 1];
+        for (int c = 0; c < cosLon.length; c++){
+            cosLon[c] = Math.cos(0.5*c*this.longitudeStep);
+            sinLon[c] = Math.sin(0.5*c*this.longitudeStep);
+        }
+        double error = 0.0;
+        // Points on the half step lattice with exactly one odd index are edge midpoints
+        for (int a = 0; a < 2*this.shells - 1; a++){
+            double r = this.minRadius + 0.5*a*this.radialStep;
+            for (int b = 0; b < 2*this.latitudes - 1; b++){
+                double lat = -0.5*Math.PI + 0.5*b*this.angularStep;
+                double cosLat = Math.cos(lat);
+                double sinLat = Math.sin(lat);
+                for (int c = 0; c < cosLon.length; c++){
+                    if (((a & 1) + (b & 1) + (c & 1)) != 1) continue;
+                    double x = r*cosLat*cosLon[c];
+                    double y = r*cosLat*sinLon[c];
+                    double z = r*sinLat;
+                    model.accelerate(x, y, z, exact, 0);
+                    int i = Math.min(a/2, this.shells - 2);
+                    int j = Math.min(b/2, this.latitudes - 2);
+                    int k = Math.min(c/2, this.longitudes - 2);
+                    perturbation(i, j, k, 0.5*(a - 2*i), 0.5*(b - 2*j), 0.5*(c - 2*k), interpolated, 0);
+                    double pointMass = -this.gm/(r*r*r);
+                    double dx = interpolated[0] + pointMass*x - exact[0];
+                    double dy = interpolated[1] + pointMass*y - exact[1];
+                    double dz = interpolated[2] + pointMass*z - exact[2];
+                    error = Math.max(error, Math.sqrt(dx*dx + dy*dy + dz*dz));
+                }
+            }
+        }
+        return(error);
+    }
+
+    /**
+     * Interpolates the acceleration due to gravity at a position
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @param out Array the x, y and z accelerations are written to (m/s^2)
+     * @param offset Index the x acceleration is written to
+     */
+    @Override
+    public void accelerate(double x, double y, double z, double[] out, int offset){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            interpolate(x, y, z, out, offset);
+            Instrumentation.record(Instrumentation.Model.GRAVITY_GRID, start, 1);
+        }
+        else {
+            interpolate(x, y, z, out, offset);
+        }
+    }
+
+    private void interpolate(double x, double y, double z, double[] out, int offset){
+        double r2 = x*x + y*y + z*z;
+        double r = Math.sqrt(r2);
+        if (r > this.maxRadius || r < this.minRadius) throw new RuntimeException("The radius "+r+"m falls outside of the grid range of "+this.minRadius+"m to "+this.maxRadius+"m.");
+
+        double lon = Math.atan2(y, x);
+        if (lon < 0.0) lon += 2*Math.PI;
+        double lat = Math.atan2(z, Math.sqrt(x*x + y*y));
+
+        double fi = (r - this.minRadius)/this.radialStep;
+        double fj = (lat + 0.5*Math.PI)/this.angularStep;
+        double fk = lon/this.longitudeStep;
+        int i = Math.min((int)fi, this.shells - 2);
+        int j = Math.min((int)fj, this.latitudes - 2);
+        int k = Math.min((int)fk, this.longitudes - 2);
+        perturbation(i, j, k, fi - i, fj - j, fk - k, out, offset);
+
+        double pointMass = -this.gm/(r2*r);
+        out[offset] += pointMass*x;
+        out[offset + 1] += pointMass*y;
+        out[offset + 2] += pointMass*z;
+    }
+
+    /**
+     * Interpolates the stored perturbing acceleration trilinearly inside the cell above node i, j, k
+     */
+    private void perturbation(int i, int j, int k, double u, double v, double w, double[] out, int offset){
+        int shell = this.latitudes*this.longitudes*NODE_SIZE;
+        int row = this.longitudes*NODE_SIZE;
+        int base = ((i*this.latitudes + j)*this.longitudes + k)*NODE_SIZE;
+
+        for (int c = 0; c < 3; c++){
+            int n = base + c;
+            double c00 = lerp(this.data.get(n), this.data.get(n + NODE_SIZE), w);
+            double c01 = lerp(this.data.get(n + row), this.data.get(n + row + NODE_SIZE), w);
+            double c10 = lerp(this.data.get(n + shell), this.data.get(n + shell + NODE_SIZE), w);
+            double c11 = lerp(this.data.get(n + shell + row), this.data.get(n + shell + row + NODE_SIZE), w);
+            out[offset + c] = lerp(lerp(c00, c01, v), lerp(c10, c11, v), u);
+        }
+    }
+
+    private static double lerp(double a, double b, double t){
+        return(a + t*(b - a));
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the gravitational parameter of the point mass term
+     * @return The gravitational parameter (m^3/s^2)
+     */
+    public double getGM(){return(this.gm);}
+    /**
+     * Get the radius of the lowest shell
+     * @return The minimum radius (m)
+     */
+    public double getMinRadius(){return(this.minRadius);}
+    /**
+     * Get the radius of the highest shell
+     * @return The maximum radius (m)
+     */
+    public double getMaxRadius(){return(this.maxRadius);}
+    /**
+     * Get the number of shells
+     * @return The number of shells
+     */
+    public int getShells(){return(this.shells);}
+    /**
+     * Get the number of nodes from the south to the north pole
+     * @return The number of latitude nodes
+     */
+    public int getLatitudes(){return(this.latitudes);}
+    /**
+     * Get the number of nodes around the equator, including the repeated node at 360 degrees
+     * @return The number of longitude nodes
+     */
+    public int getLongitudes(){return(this.longitudes);}
+    /**
+     * Get the largest difference against the sampled model found at the midpoints of the cell edges
+     * @return The maximum error (m/s^2)
+     */
+    public double getMaxError(){return(this.maxError);}
+
+    /**
+     * Get a read only view of the node values, used when writing a {@link GridFile}
+     * @return The node data
+     */
+    DoubleBuffer getData(){return(this.data.asReadOnlyBuffer());}
+
+    @Override
+    public String toString() {
+        String result = "Grid from "+minRadius+"m to "+maxRadius+"m with "+shells+" shells of "+latitudes+" by "+longitudes+" nodes\n"
+                +"Max Error: "+maxError+"\n";
+        return(result);
+    }
+}
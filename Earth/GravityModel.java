@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.Objects;
+
+/**
+ * A gravity field that can be evaluated at a single position without allocating.
+ * Implementations must be safe to evaluate from many threads at once.
+ * @author eib15ns
+ */
+public interface GravityModel {
+
+    /**
+     * The J2 ellipsoid of {@link Gravity} and {@link GravityKernel}
+     */
+    GravityModel J2 = new GravityModel(){
+        @Override
+        public void accelerate(double x, double y, double z, double[] out, int offset){
+            GravityKernel.accelerate(x, y, z, out, offset);
+        }
+
+        @Override
+        public void accelerate(double[] x, double[] y, double[] z, int offset,
+                double[] ax, double[] ay, double[] az, int outOffset, int length){
+            GravityKernel.accelerate(x, y, z, offset, ax, ay, az, outOffset, length);
+        }
+    };
+
+    /**
+     * Calculates the acceleration due to gravity at a position
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @param out Array the x, y and z accelerations are written to (m/s^2)
+     * @param offset Index the x acceleration is written to
+     */
+    void accelerate(double x, double y, double z, double[] out, int offset);
+
+    /**
+     * Calculates the acceleration due to gravity for a range of positions in arrays.
+     * The default evaluates the positions one at a time, models with a faster batch
+     * path override it.
+     * @param x Distances in x axis (m)
+     * @param y Distances in y axis (m)
+     * @param z Distances in z axis (m)
+     * @param offset Index of the first position to evaluate
+     * @param ax Array the accelerations along x are written to (m/s^2)
+     * @param ay Array the accelerations along y are written to (m/s^2)
+     * @param az Array the accelerations along z are written to (m/s^2)
+     * @param outOffset Index the first acceleration is written to
+     * @param length Number of positions to evaluate
+     */
+    default void accelerate(double[] x, double[] y, double[] z, int offset,
+            double[] ax, double[] ay, double[] az, int outOffset, int length){
+
+        Objects.checkFromIndexSize(offset, length, x.length);
+        Objects.checkFromIndexSize(offset, length, y.length);
+        Objects.checkFromIndexSize(offset, length, z.length);
+        Objects.checkFromIndexSize(outOffset, length, ax.length);
+        Objects.checkFromIndexSize(outOffset, length, ay.length);
+        Objects.checkFromIndexSize(outOffset, length, az.length);
+
+        double[] acceleration = new double[3];
+        for (int i = 0; i < length; i++){
+            accelerate(x[offset + i], y[offset + i], z[offset + i], acceleration, 0);
+            ax[outOffset + i] = acceleration[0];
+            ay[outOffset + i] = acceleration[1];
+            az[outOffset + i] = acceleration[2];
+        }
+    }
+}
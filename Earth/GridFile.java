@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes precomputed {@link AtmosphereTable} and {@link GravityGrid} nodes as
+ * binary files, so the tables can be built once offline and shared by every process that
+ * needs them. Files are read with {@link FileChannel#map}, and the tables use the mapped
+ * memory in place, so loading does no parsing or copying, and processes mapping the same
+ * file share one copy of it through the operating system page cache.
+ *
+ * A file is a 128 byte header followed by the node data as little endian doubles:
+ * <pre>
+ *  offset  size  contents
+ *  0       8     magic "STDEARTH"
+ *  8       4     format version
+ *  12      4     kind, 1 for an atmosphere table and 2 for a gravity grid
+ *  16      4     header size in bytes
+ *  20      4     reserved, 0
+ *  24      8     payload size in bytes
+ *  32      8     CRC32 of the payload
+ *  40      80    ten doubles describing the table, see below
+ *  120     4     CRC32 of bytes 0 to 119
+ *  124     4     reserved, 0
+ *  128           payload
+ * </pre>
+ * An atmosphere table is described by its minimum and maximum height (km), the number of
+ * nodes and the maximum relative error of temperature, pressure, density and speed of sound.
+ * Its payload holds the four cubic coefficients of every property in every cell, from
+ * version 2 on, where version 1 held node values and slopes with pressure and density in
+ * log space.
+ * A gravity grid is described by its gravitational parameter (m^3/s^2), minimum and maximum
+ * radius (m), the number of shells, latitude and longitude nodes and the maximum error (m/s^2).
+ * Counts are stored as doubles so every description has the same layout.
+ *
+ * Files are written to a temporary file first and moved into place, so a process never
+ * maps a half written file. The header checksum is always checked. Checking the payload
+ * checksum reads the whole file, so it can be skipped where the file is trusted and startup
+ * time matters more.
+ * A file is mapped as a single buffer, so it can be at most {@link #MAX_SIZE} bytes, just
+ * under 2GB, which holds an atmosphere table of 16 million cells or a gravity grid of 89
+ * million nodes. Larger tables are rejected when built, written and mapped; build them
+ * with a coarser step or split their range over several files.
+ * Run the main function to generate the files offline, see {@link #main(String[])}.
+ * @author eib15ns
+ */
+public final class GridFile {
+
+    public static final int VERSION = 2;
+    public static final int ATMOSPHERE = 1;
+    public static final int GRAVITY = 2;
+    public static final long MAX_SIZE = Integer.MAX_VALUE; // bytes, the most a single mapping holds
+
+    private static final byte[] MAGIC = "STDEARTH".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 128;
+    static final long MAX_DOUBLES = (MAX_SIZE - HEADER_SIZE)/8; // payload a file can hold
+    private static final int HEADER_CHECKED = 120; // bytes covered by the header checksum
+    private static final int DESCRIPTION = 40; // offset of the table description
+    private static final int DESCRIPTION_SIZE = 10; // doubles
+    private static final int CHUNK = 1 << 16; // bytes copied per write
+
+    private GridFile(){
+    }
+
+    // WRITE FUNCTIONS
+
+    /**
+     * Writes an atmosphere table to a file, replacing any file already there
+     * @param file The file to write
+     * @param table The table to save
+     * @throws IOException If the file can not be written
+     */
+    public static void write(Path file, AtmosphereTable table) throws IOException {
+        double[] error = table.getMaxError();
+        double[] description = {table.getMinHeight(), table.getMaxHeight(), table.getNodes(),
+                error[0], error[1], error[2], error[3]};
+        write(file, ATMOSPHERE, description, table.getData());
+    }
+
+    /**
+     * Writes a gravity grid to a file, replacing any file already there
+     * @param file The file to write
+     * @param grid The grid to save
+     * @throws IOException If the file can not be written
+     */
+    public static void write(Path file, GravityGrid grid) throws IOException {
+        double[] description = {grid.getGM(), grid.getMinRadius(), grid.getMaxRadius(),
+                grid.getShells(), grid.getLatitudes(), grid.getLongitudes(), grid.getMaxError()};
+        write(file, GRAVITY, description, grid.getData());
+    }
+
+    private static void write(Path file, int kind, double[] description, DoubleBuffer data) throws IOException {
+        long payloadSize = 8L*data.limit();
+        if (HEADER_SIZE + payloadSize > MAX_SIZE) throw new RuntimeException("The table needs "
+                +(HEADER_SIZE + payloadSize)+" bytes, more than the "+MAX_SIZE+" a grid file can map.");
+        CRC32 payloadCrc = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+        // The checksum must be in the header, so the payload is checksummed before it is written
+        for (int i = 0; i < data.limit(); ){
+            i = fill(chunk, data, i);
+            payloadCrc.update(chunk);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(8, VERSION);
+        header.putInt(12, kind);
+        header.putInt(16, HEADER_SIZE);
+        header.putLong(24, payloadSize);
+        header.putLong(32, payloadCrc.getValue());
+        for (int i = 0; i < description.length; i++) header.putDouble(DESCRIPTION + 8*i, description[i]);
+        header.putInt(HEADER_CHECKED, headerCrc(header));
+        header.clear();
+
+        Path temp = file.resolveSibling(file.getFileName()+".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            while (header.hasRemaining()) channel.write(header);
+            for (int i = 0; i < data.limit(); ){
+                i = fill(chunk, data, i);
+                while (chunk.hasRemaining()) channel.write(chunk);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Copies doubles from the data into the chunk, ready to be read
+     * @return Index of the next double to copy
+     */
+    private static int fill(ByteBuffer chunk, DoubleBuffer data, int index){
+        chunk.clear();
+        int count = Math.min(CHUNK/8, data.limit() - index);
+        for (int i = 0; i < count; i++) chunk.putDouble(8*i, data.get(index + i));
+        chunk.limit(8*count);
+        return(index + count);
+    }
+
+    private static int headerCrc(ByteBuffer header){
+        CRC32 crc = new CRC32();
+        crc.update(header.duplicate().position(0).limit(HEADER_CHECKED));
+        return((int)crc.getValue());
+    }
+
+    // READ FUNCTIONS
+
+    /**
+     * Maps an atmosphere table from a file and checks both checksums
+     * @param file The file to read
+     * @return The table, backed by the mapped file
+     * @throws IOException If the file can not be read
+     */
+    public static AtmosphereTable readAtmosphere(Path file) throws IOException {
+        return(readAtmosphere(file, true));
+    }
+
+    /**
+     * Maps an atmosphere table from a file
+     * @param file The file to read
+     * @param verify Whether to check the payload checksum, which reads the whole file
+     * @return The table, backed by the mapped file
+     * @throws IOException If the file can not be read
+     */
+    public static AtmosphereTable readAtmosphere(Path file, boolean verify) throws IOException {
+        ByteBuffer mapped = map(file);
+        double[] d = check(file, mapped, ATMOSPHERE, verify);
+        double[] error = {d[3], d[4], d[5], d[6]};
+        return(new AtmosphereTable(d[0], d[1], count(file, d[2]), payload(mapped), error));
+    }
+
+    /**
+     * Maps a gravity grid from a file and checks both checksums
+     * @param file The file to read
+     * @return The grid, backed by the mapped file
+     * @throws IOException If the file can not be read
+     */
+    public static GravityGrid readGravity(Path file) throws IOException {
+        return(readGravity(file, true));
+    }
+
+    /**
+     * Maps a gravity grid from a file
+     * @param file The file to read
+     * @param verify Whether to check the payload checksum, which reads the whole file
+     * @return The grid, backed by the mapped file
+     * @throws IOException If the file can not be read
+     */
+    public static GravityGrid readGravity(Path file, boolean verify) throws IOException {
+        ByteBuffer mapped = map(file);
+        double[] d = check(file, mapped, GRAVITY, verify);
+        return(new GravityGrid(d[0], d[1], d[2], count(file, d[3]), count(file, d[4]), count(file, d[5]),
+                payload(mapped), d[6]));
+    }
+
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long size = channel.size();
+            if (size < HEADER_SIZE) throw new RuntimeException("The file "+file+" is too short to be a grid file.");
+            if (size > MAX_SIZE) throw new RuntimeException("The file "+file+" is "+size+" bytes, more than the "
+                    +MAX_SIZE+" a grid file can map.");
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return(mapped);
+        }
+    }
+
+    /**
+     * Checks the header, and optionally the payload, of a mapped file
+     * @return The table description
+     */
+    private static double[] check(Path file, ByteBuffer mapped, int kind, boolean verify){
+        for (int i = 0; i < MAGIC.length; i++){
+            if (mapped.get(i) != MAGIC[i]) throw new RuntimeException("The file "+file+" is not a grid file.");
+        }
+        if (mapped.getInt(HEADER_CHECKED) != headerCrc(mapped)) throw new RuntimeException("The header of "+file+" is corrupt.");
+        int version = mapped.getInt(8);
+        if (version != VERSION) throw new RuntimeException("The file "+file+" is version "+version+" but only version "+VERSION+" can be read.");
+        if (mapped.getInt(12) != kind) throw new RuntimeException("The file "+file+" holds kind "+mapped.getInt(12)+" instead of kind "+kind+".");
+        if (mapped.getInt(16) != HEADER_SIZE) throw new RuntimeException("The header of "+file+" has an unexpected size.");
+        long payloadSize = mapped.getLong(24);
+        if (payloadSize != mapped.capacity() - HEADER_SIZE || payloadSize % 8 != 0) throw new RuntimeException("The file "+file+" is truncated or has trailing data.");
+
+        if (verify){
+            CRC32 crc = new CRC32();
+            crc.update(mapped.duplicate().position(HEADER_SIZE));
+            if (crc.getValue() != mapped.getLong(32)) throw new RuntimeException("The data in "+file+" is corrupt.");
+        }
+
+        double[] description = new double[DESCRIPTION_SIZE];
+        for (int i = 0; i < DESCRIPTION_SIZE; i++) description[i] = mapped.getDouble(DESCRIPTION + 8*i);
+        return(description);
+    }
+
+    private static DoubleBuffer payload(ByteBuffer mapped){
+        // slice resets the byte order, so it is set again before viewing as doubles
+        return(mapped.duplicate().position(HEADER_SIZE).slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+    }
+
+    private static int count(Path file, double value){
+        if (value != Math.rint(value) || value < 0 || value > Integer.MAX_VALUE) throw new RuntimeException("The header of "+file+" holds an invalid count.");
+        return((int)value);
+    }
+
+    // GENERATOR
+
+    /**
+     * Generates grid files offline. Usage:
+     * <pre>
+     *  java -cp core/target/standard-earth-1.0-SNAPSHOT.jar Earth.GridFile atmosphere &lt;file&gt; [step km]
+     *  java -cp core/target/standard-earth-1.0-SNAPSHOT.jar Earth.GridFile gravity &lt;file&gt; &lt;gfc file&gt; &lt;degree&gt; &lt;min radius m&gt; &lt;max radius m&gt; &lt;radial step m&gt; &lt;angular step deg&gt;
+     * </pre>
+     * @param args The kind of file, the file to write and its parameters
+     * @throws IOException If a file can not be read or written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length >= 2 && args[0].equals("atmosphere")){
+            double step = args.length > 2 ? Double.parseDouble(args[2]) : AtmosphereTable.DEFAULT_STEP;
+            AtmosphereTable table = new AtmosphereTable(step);
+            write(Path.of(args[1]), table);
+            System.out.print(table);
+        }
+        else if (args.length == 8 && args[0].equals("gravity")){
+            SphericalHarmonicGravity model = SphericalHarmonicGravity.load(Path.of(args[2]), Integer.parseInt(args[3]));
+            GravityGrid grid = new GravityGrid(model, model.getGM(), Double.parseDouble(args[4]),
+                    Double.parseDouble(args[5]), Double.parseDouble(args[6]), Double.parseDouble(args[7]));
+            write(Path.of(args[1]), grid);
+            System.out.print(grid);
+        }
+        else {
+            System.out.println("Usage: GridFile atmosphere <file> [step km]");
+            System.out.println("       GridFile gravity <file> <gfc file> <degree> <min radius m> <max radius m> <radial step m> <angular step deg>");
+        }
+    }
+}
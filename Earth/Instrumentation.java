@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Optional instrumentation of the atmosphere and gravity models, switched on and off at
+ * runtime with {@link #setEnabled(boolean)}.
+ *
+ * While enabled, every evaluation through the models and their batch functions counts the
+ * model used, the layer of the 1976 standard atmosphere the height fell in and any height
+ * outside the model, and records its latency in a {@link LatencyHistogram} per model.
+ * Batches record their average latency once per height, timing only the evaluation and
+ * not the pass that counts the layers first. The counters are LongAdders so
+ * threads evaluating at the same time do not contend on them. Each evaluation and each out
+ * of range height is also committed as a JDK Flight Recorder event, which costs nothing
+ * beyond the check unless a recording with the events enabled is running.
+ * The inverse functions of {@link StandardAtmosphere}, heightAtPressure and
+ * heightAtDensity and their batches, find a height rather than evaluate at one and are
+ * not recorded, so their cost does not mix into the latency of the model.
+ *
+ * While disabled the models only read a single flag per call or per batch, so the
+ * overhead is within the noise of the benchmarks. Timing every call with
+ * {@link System#nanoTime()} roughly doubles the cost of the cheapest evaluations, so the
+ * instrumentation is meant to be switched on for diagnosis rather than left on.
+ * @author eib15ns
+ */
+public final class Instrumentation {
+
+    /**
+     * The models that are instrumented
+     */
+    public enum Model {
+        STANDARD_ATMOSPHERE,
+        ATMOSPHERE_TABLE,
+        J2_GRAVITY,
+        SPHERICAL_HARMONIC_GRAVITY,
+        GRAVITY_GRID,
+        GRAVITY_CACHE,
+        EXPONENTIAL_ATMOSPHERE,
+        ENVIRONMENT
+    }
+
+    // Read by the models before doing any instrumentation work
+    static volatile boolean enabled;
+
+    private static final LongAdder[] MODEL_COUNTS = adders(Model.values().length);
+    private static final LongAdder[] LAYER_COUNTS = adders(AtmosphereLayer.values().length);
+    private static final LongAdder[] OUT_OF_RANGE = adders(Model.values().length);
+    private static final LatencyHistogram[] LATENCY = new LatencyHistogram[Model.values().length];
+
+    static {
+        for (int i = 0; i < LATENCY.length; i++) LATENCY[i] = new LatencyHistogram();
+    }
+
+    private Instrumentation(){
+    }
+
+    private static LongAdder[] adders(int size){
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) adders[i] = new LongAdder();
+        return(adders);
+    }
+
+    /**
+     * Switches the instrumentation on or off. Counts are kept while it is off.
+     * @param on Whether evaluations should be instrumented
+     */
+    public static void setEnabled(boolean on){
+        if (on){
+            // Load the event classes now rather than in the middle of the first evaluation
+            new Evaluation();
+            new OutOfRange();
+        }
+        enabled = on;
+    }
+
+    /**
+     * Sets every counter and histogram back to zero
+     */
+    public static void reset(){
+        for (LongAdder adder : MODEL_COUNTS) adder.reset();
+        for (LongAdder adder : LAYER_COUNTS) adder.reset();
+        for (LongAdder adder : OUT_OF_RANGE) adder.reset();
+        for (LatencyHistogram histogram : LATENCY) histogram.reset();
+    }
+
+    // RECORDING FUNCTIONS
+
+    /**
+     * Records evaluations of a model that started at a time from {@link System#nanoTime()}
+     * @param model The model evaluated
+     * @param start The time the evaluations started (ns)
+     * @param count Number of evaluations
+     */
+    static void record(Model model, long start, int count){
+        if (count <= 0) return;
+        long elapsed = System.nanoTime() - start;
+        MODEL_COUNTS[model.ordinal()].add(count);
+        LATENCY[model.ordinal()].record(elapsed/count, count);
+
+        Evaluation event = new Evaluation();
+        if (event.isEnabled()){
+            event.model = model.name();
+            event.count = count;
+            event.latency = elapsed;
+            event.commit();
+        }
+    }
+
+    /**
+     * Counts a height that fell in an interval of {@link StandardAtmosphere}
+     * @param interval The interval index
+     */
+    static void layer(int interval){
+        LAYER_COUNTS[AtmosphereLayer.of(interval).ordinal()].increment();
+    }
+
+    /**
+     * Counts a height outside the range of a model
+     * @param model The model evaluated
+     * @param height The geometric height (km)
+     */
+    static void outOfRange(Model model, double height){
+        OUT_OF_RANGE[model.ordinal()].increment();
+
+        OutOfRange event = new OutOfRange();
+        if (event.isEnabled()){
+            event.model = model.name();
+            event.height = height;
+            event.commit();
+        }
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get whether evaluations are being instrumented
+     * @return True if the instrumentation is on
+     */
+    public static boolean isEnabled(){return(enabled);}
+    /**
+     * Get the number of evaluations of a model
+     * @param model The model
+     * @return The count
+     */
+    public static long getCount(Model model){return(MODEL_COUNTS[model.ordinal()].sum());}
+    /**
+     * Get the number of standard atmosphere evaluations that fell in a layer
+     * @param layer The layer
+     * @return The count
+     */
+    public static long getCount(AtmosphereLayer layer){return(LAYER_COUNTS[layer.ordinal()].sum());}
+    /**
+     * Get the number of heights outside the range of a model
+     * @param model The model
+     * @return The count
+     */
+    public static long getOutOfRange(Model model){return(OUT_OF_RANGE[model.ordinal()].sum());}
+    /**
+     * Get the latency histogram of a model
+     * @param model The model
+     * @return The live histogram
+     */
+    public static LatencyHistogram getLatency(Model model){return(LATENCY[model.ordinal()]);}
+    /**
+     * Summarises every counter that is not zero
+     * @return The report
+     */
+    public static String report(){
+        StringBuilder result = new StringBuilder();
+        for (Model model : Model.values()){
+            long count = getCount(model);
+            long outside = getOutOfRange(model);
+            if (count == 0 && outside == 0) continue;
+            LatencyHistogram latency = getLatency(model);
+            result.append(model).append(": ").append(count).append(" evaluations, ")
+                    .append(outside).append(" out of range, latency mean ").append(String.format(Locale.ROOT, "%.1f", latency.getMean()))
+                    .append("ns p50 ").append(latency.getPercentile(50))
+                    .append("ns p99 ").append(latency.getPercentile(99))
+                    .append("ns max ").append(latency.getMax()).append("ns\n");
+        }
+        for (AtmosphereLayer layer : AtmosphereLayer.values()){
+            long count = getCount(layer);
+            if (count != 0) result.append(layer).append(": ").append(count).append("\n");
+        }
+        return(result.toString());
+    }
+
+    // FLIGHT RECORDER EVENTS
+
+    @Name("Earth.Evaluation")
+    @Label("Model Evaluation")
+    @Category("Standard Earth")
+    @Description("One evaluation or batch of evaluations of an atmosphere or gravity model")
+    static final class Evaluation extends Event {
+        @Label("Model")
+        String model;
+        @Label("Count")
+        int count;
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+    }
+
+    @Name("Earth.OutOfRange")
+    @Label("Height Out Of Range")
+    @Category("Standard Earth")
+    @Description("A height outside the range covered by an atmosphere model")
+    static final class OutOfRange extends Event {
+        @Label("Model")
+        String model;
+        @Label("Height (km)")
+        double height;
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe histogram of latencies in the style of HdrHistogram.
+ * Values below 32 are counted exactly. Larger values fall in buckets that split every
+ * power of two into 16, so a bucket is never wider than 1/16 of the values in it and
+ * percentiles are reported to within about 3% from 1ns up to centuries, using a fixed
+ * 960 counters.
+ * @author eib15ns
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT = 2*SUB_BUCKETS; // values below this have their own bucket
+    private static final int BUCKETS = EXACT + (63 - SUB_BUCKET_BITS - 1)*SUB_BUCKETS;
+
+    //Instance Variables
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a single value
+     * @param value The latency (ns)
+     */
+    public void record(long value){
+        record(value, 1);
+    }
+
+    /**
+     * Records the same value several times, used for the average latency of a batch
+     * @param value The latency (ns)
+     * @param times Number of times to record it
+     */
+    public void record(long value, long times){
+        if (value < 0) value = 0;
+        this.counts.addAndGet(bucket(value), times);
+        this.count.add(times);
+        this.sum.add(value*times);
+        this.max.accumulate(value);
+    }
+
+    /**
+     * Index of the bucket a value falls in
+     */
+    static int bucket(long value){
+        if (value < EXACT) return((int)value);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return(EXACT + (exponent - SUB_BUCKET_BITS - 1)*SUB_BUCKETS + sub);
+    }
+
+    /**
+     * Smallest value that falls in a bucket
+     */
+    static long lowest(int bucket){
+        if (bucket < EXACT) return(bucket);
+        int exponent = (bucket - EXACT)/SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        int sub = (bucket - EXACT) % SUB_BUCKETS;
+        return((long)(SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS));
+    }
+
+    /**
+     * Sets every count back to zero. Values recorded at the same time may be lost.
+     */
+    public void reset(){
+        for (int i = 0; i < BUCKETS; i++) this.counts.set(i, 0);
+        this.count.reset();
+        this.sum.reset();
+        this.max.reset();
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the number of values recorded
+     * @return The count
+     */
+    public long getCount(){return(this.count.sum());}
+    /**
+     * Get the largest value recorded
+     * @return The maximum (ns)
+     */
+    public long getMax(){return(this.max.get());}
+    /**
+     * Get the mean of the values recorded
+     * @return The mean (ns), or 0 if nothing was recorded
+     */
+    public double getMean(){
+        long n = this.count.sum();
+        return(n == 0 ? 0.0 : (double)this.sum.sum()/n);
+    }
+
+    /**
+     * Get the value below which a fraction of the recorded values fall. The middle of the
+     * bucket holding the percentile is returned, capped at the maximum.
+     * @param percentile The percentile between 0 and 100
+     * @return The value (ns), or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile){
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return(0);
+        long rank = Math.max(1, (long)Math.ceil(Math.min(100.0, Math.max(0.0, percentile))/100.0*total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            seen += snapshot[i];
+            if (seen >= rank){
+                long low = lowest(i);
+                long high = i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE;
+                return(Math.min(low + (high - low)/2, getMax()));
+            }
+        }
+        return(getMax());
+    }
+
+    @Override
+    public String toString() {
+        String result = "Count: "+getCount()+"\n"
+                +"Mean (ns): "+getMean()+"\n"
+                +"50% (ns): "+getPercentile(50)+"\n"
+                +"99% (ns): "+getPercentile(99)+"\n"
+                +"99.9% (ns): "+getPercentile(99.9)+"\n"
+                +"Max (ns): "+getMax()+"\n";
+        return(result);
+    }
+}
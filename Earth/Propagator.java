@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Propagates a point mass through the J2 gravity field of {@link GravityKernel} with drag
+ * from the density of {@link StandardAtmosphere}.
+ * The state is the ECI position (m) followed by the ECI velocity (m/s). The atmosphere is
+ * assumed to rotate with the Earth, so drag acts against the velocity relative to the air.
+ * Two integrators are available, fixed step 4th order Runge-Kutta and adaptive
+ * Dormand-Prince 5(4). Every array used during a step is allocated when the propagator
+ * is created, so stepping allocates nothing.
+ *
+ * Between the start and end of the last step the state can be read at any time with
+ * {@link #interpolate(double, double[])}, which uses a cubic Hermite polynomial through the
+ * end points and their derivatives. Propagation stops at the ground, with the state set to
+ * the point of impact.
+ *
+ * A propagator is not thread safe, each thread should use its own.
+ * @author eib15ns
+ */
+public class Propagator {
+
+    /**
+     * The available integration methods
+     */
+    public enum Method {
+        /** Classic 4th order Runge-Kutta with a fixed step */
+        RK4,
+        /** Dormand-Prince 5(4) with adaptive step size control */
+        DORMAND_PRINCE
+    }
+
+    public static final int STATE_SIZE = 6;
+
+    // Dormand-Prince 5(4) coefficients
+    private static final double C2 = 1.0/5, C3 = 3.0/10, C4 = 4.0/5, C5 = 8.0/9;
+    private static final double A21 = 1.0/5;
+    private static final double A31 = 3.0/40, A32 = 9.0/40;
+    private static final double A41 = 44.0/45, A42 = -56.0/15, A43 = 32.0/9;
+    private static final double A51 = 19372.0/6561, A52 = -25360.0/2187, A53 = 64448.0/6561, A54 = -212.0/729;
+    private static final double A61 = 9017.0/3168, A62 = -355.0/33, A63 = 46732.0/5247, A64 = 49.0/176, A65 = -5103.0/18656;
+    private static final double A71 = 35.0/384, A73 = 500.0/1113, A74 = 125.0/192, A75 = -2187.0/6784, A76 = 11.0/84;
+    // Difference between the 5th and 4th order weights
+    private static final double E1 = 71.0/57600, E3 = -71.0/16695, E4 = 71.0/1920, E5 = -17253.0/339200, E6 = 22.0/525, E7 = -1.0/40;
+
+    private static final double SAFETY = 0.9;
+    private static final double MIN_SCALE = 0.2;
+    private static final double MAX_SCALE = 5.0;
+
+    //Instance Variables
+    private final Method method;
+    private double ballistic; // Cd*A/m (m^2/kg)
+    private double stepSize = 10.0; // s
+    private double trialStep; // next adaptive step (s)
+    private double minStep = 1e-6; // s
+    private double maxStep = 3600.0; // s
+    private double relTolerance = 1e-9;
+    private double absTolerance = 1e-3;
+
+    // Workspace
+    private final AtmosphereState atmosphere = new AtmosphereState();
+    private final double[] gravity = new double[3];
+    private final double[] state = new double[STATE_SIZE];
+    private final double[] derivative = new double[STATE_SIZE]; // derivative at the current state
+    private final double[] previous = new double[STATE_SIZE];
+    private final double[] previousDerivative = new double[STATE_SIZE];
+    private final double[] next = new double[STATE_SIZE];
+    private final double[] temp = new double[STATE_SIZE];
+    private final double[] k2 = new double[STATE_SIZE];
+    private final double[] k3 = new double[STATE_SIZE];
+    private final double[] k4 = new double[STATE_SIZE];
+    private final double[] k5 = new double[STATE_SIZE];
+    private final double[] k6 = new double[STATE_SIZE];
+    private final double[] k7 = new double[STATE_SIZE];
+    private double time;
+    private double previousTime;
+    private boolean impacted;
+
+    // Statistics
+    private long evaluations;
+    private long accepted;
+    private long rejected;
+    private double smallestStep = Double.POSITIVE_INFINITY;
+    private double largestStep;
+
+    /**
+     * Creates a propagator for a vehicle
+     * @param method The integration method
+     * @param mass Mass of the vehicle (kg)
+     * @param dragArea Reference area for drag (m^2)
+     * @param dragCoefficient Drag coefficient
+     */
+    public Propagator(Method method, double mass, double dragArea, double dragCoefficient){
+        this.method = method;
+        setVehicle(mass, dragArea, dragCoefficient);
+    }
+
+    /**
+     * Changes the vehicle, so one propagator can be reused for many runs
+     * @param mass Mass of the vehicle (kg)
+     * @param dragArea Reference area for drag (m^2)
+     * @param dragCoefficient Drag coefficient
+     */
+    public void setVehicle(double mass, double dragArea, double dragCoefficient){
+        if (!(mass > 0.0)) throw new RuntimeException("The mass of the vehicle must be positive.");
+        this.ballistic = dragCoefficient*dragArea/mass;
+    }
+
+    /**
+     * Sets the step size. This is the fixed step for RK4 and the first trial step for
+     * Dormand-Prince.
+     * @param stepSize The step size (s)
+     */
+    public void setStepSize(double stepSize){
+        if (!(stepSize > 0.0)) throw new RuntimeException("The step size must be positive.");
+        this.stepSize = stepSize;
+    }
+
+    /**
+     * Sets the limits on the adaptive step size
+     * @param minStep Smallest step allowed before propagation fails (s)
+     * @param maxStep Largest step allowed (s)
+     */
+    public void setStepLimits(double minStep, double maxStep){
+        if (!(minStep > 0.0) || !(maxStep >= minStep)) throw new RuntimeException("The step limits must be positive with the maximum above the minimum.");
+        this.minStep = minStep;
+        this.maxStep = maxStep;
+    }
+
+    /**
+     * Sets the error tolerances for the adaptive step size. A step is accepted when the
+     * error of every state component is below absolute + relative*|value|.
+     * @param relative Relative tolerance
+     * @param absolute Absolute tolerance (m and m/s)
+     */
+    public void setTolerances(double relative, double absolute){
+        if (!(relative >= 0.0) || !(absolute >= 0.0) || relative + absolute == 0.0) throw new RuntimeException("The tolerances must not be negative and can not both be zero.");
+        this.relTolerance = relative;
+        this.absTolerance = absolute;
+    }
+
+    /**
+     * Sets the state to start propagating from and clears the statistics
+     * @param time Start time (s)
+     * @param initial Position (m) and velocity (m/s) in ECI
+     */
+    public void initialise(double time, double[] initial){
+        System.arraycopy(initial, 0, this.state, 0, STATE_SIZE);
+        this.time = time;
+        this.previousTime = time;
+        this.trialStep = this.stepSize;
+        System.arraycopy(initial, 0, this.previous, 0, STATE_SIZE);
+        this.impacted = altitude(this.state[0], this.state[1], this.state[2]) < 0.0;
+        this.evaluations = 0;
+        this.accepted = 0;
+        this.rejected = 0;
+        this.smallestStep = Double.POSITIVE_INFINITY;
+        this.largestStep = 0.0;
+        derivatives(this.state, this.derivative);
+        System.arraycopy(this.derivative, 0, this.previousDerivative, 0, STATE_SIZE);
+    }
+
+    /**
+     * Propagates until the end time or the ground is reached
+     * @param endTime Time to propagate to (s)
+     * @return The time reached (s)
+     */
+    public double propagate(double endTime){
+        while (step(endTime)){
+        }
+        return(this.time);
+    }
+
+    /**
+     * Takes a single step, shortened if needed so it does not pass the end time
+     * @param endTime Time to propagate to (s)
+     * @return True if the end time and the ground have not been reached yet
+     */
+    public boolean step(double endTime){
+        double remaining = endTime - this.time;
+        if (this.impacted || remaining <= 0.0) return(false);
+
+        if (this.method == Method.RK4){
+            stepRK4(Math.min(this.stepSize, remaining));
+        }
+        else {
+            stepDormandPrince(remaining);
+        }
+
+        if (altitude(this.state[0], this.state[1], this.state[2]) < 0.0){
+            findImpact();
+            return(false);
+        }
+        return(this.time < endTime);
+    }
+
+    private void stepRK4(double h){
+        double[] y = this.state;
+        double[] k1 = this.derivative;
+        for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + 0.5*h*k1[i];
+        derivatives(this.temp, this.k2);
+        for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + 0.5*h*this.k2[i];
+        derivatives(this.temp, this.k3);
+        for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + h*this.k3[i];
+        derivatives(this.temp, this.k4);
+        for (int i = 0; i < STATE_SIZE; i++){
+            this.next[i] = y[i] + h/6.0*(k1[i] + 2*this.k2[i] + 2*this.k3[i] + this.k4[i]);
+        }
+        // The derivative at the end of the step is the first stage of the next one
+        derivatives(this.next, this.k7);
+        accept(h);
+    }
+
+    private void stepDormandPrince(double remaining){
+        double[] y = this.state;
+        double[] k1 = this.derivative;
+        while (true){
+            double h = Math.min(Math.min(this.trialStep, this.maxStep), remaining);
+
+            for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + h*A21*k1[i];
+            derivatives(this.temp, this.k2);
+            for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + h*(A31*k1[i] + A32*this.k2[i]);
+            derivatives(this.temp, this.k3);
+            for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + h*(A41*k1[i] + A42*this.k2[i] + A43*this.k3[i]);
+            derivatives(this.temp, this.k4);
+            for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + h*(A51*k1[i] + A52*this.k2[i] + A53*this.k3[i] + A54*this.k4[i]);
+            derivatives(this.temp, this.k5);
+            for (int i = 0; i < STATE_SIZE; i++) this.temp[i] = y[i] + h*(A61*k1[i] + A62*this.k2[i] + A63*this.k3[i] + A64*this.k4[i] + A65*this.k5[i]);
+            derivatives(this.temp, this.k6);
+            for (int i = 0; i < STATE_SIZE; i++) this.next[i] = y[i] + h*(A71*k1[i] + A73*this.k3[i] + A74*this.k4[i] + A75*this.k5[i] + A76*this.k6[i]);
+            derivatives(this.next, this.k7);
+
+            // Root mean square of the error scaled by the tolerance
+            double sum = 0.0;
+            for (int i = 0; i < STATE_SIZE; i++){
+                double error = h*(E1*k1[i] + E3*this.k3[i] + E4*this.k4[i] + E5*this.k5[i] + E6*this.k6[i] + E7*this.k7[i]);
+                double scale = this.absTolerance + this.relTolerance*Math.max(Math.abs(y[i]), Math.abs(this.next[i]));
+                sum += (error/scale)*(error/scale);
+            }
+            double error = Math.sqrt(sum/STATE_SIZE);
+            // A stage that is NaN would make every later step NaN and never fall below the minimum
+            if (Double.isNaN(error)) throw new RuntimeException("The error estimate of a "+h+"s step became NaN at "+this.time+"s.");
+
+            double factor = error == 0.0 ? MAX_SCALE : Math.min(MAX_SCALE, Math.max(MIN_SCALE, SAFETY*Math.pow(error, -0.2)));
+            if (error <= 1.0){
+                // A step cut short by the end time does not limit the next one
+                if (h == Math.min(this.trialStep, this.maxStep)) this.trialStep = h*factor;
+                else this.trialStep = Math.max(this.trialStep, h*factor);
+                accept(h);
+                return;
+            }
+
+            this.rejected++;
+            this.trialStep = h*factor;
+            if (!(this.trialStep >= this.minStep)) throw new RuntimeException("The step size of "+this.trialStep+"s fell below the minimum of "+this.minStep+"s at "+this.time+"s.");
+        }
+    }
+
+    /**
+     * Moves the state to the end of a step, keeping the start for dense output
+     * @param h The length of the step (s)
+     */
+    private void accept(double h){
+        System.arraycopy(this.state, 0, this.previous, 0, STATE_SIZE);
+        System.arraycopy(this.derivative, 0, this.previousDerivative, 0, STATE_SIZE);
+        System.arraycopy(this.next, 0, this.state, 0, STATE_SIZE);
+        System.arraycopy(this.k7, 0, this.derivative, 0, STATE_SIZE);
+        this.previousTime = this.time;
+        this.time += h;
+        this.accepted++;
+        if (h < this.smallestStep) this.smallestStep = h;
+        if (h > this.largestStep) this.largestStep = h;
+    }
+
+    /**
+     * Finds where the last step crossed the ground by bisection on the dense output and
+     * moves the state there
+     */
+    private void findImpact(){
+        double lower = this.previousTime;
+        double upper = this.time;
+        for (int i = 0; i < 60 && upper - lower > 1e-9; i++){
+            double middle = 0.5*(lower + upper);
+            interpolate(middle, this.temp);
+            if (altitude(this.temp[0], this.temp[1], this.temp[2]) < 0.0) upper = middle;
+            else lower = middle;
+        }
+        interpolate(upper, this.temp);
+        System.arraycopy(this.temp, 0, this.state, 0, STATE_SIZE);
+        this.time = upper;
+        this.impacted = true;
+        derivatives(this.state, this.derivative);
+    }
+
+    /**
+     * Calculates the state at any time within the last step
+     * @param t Time within the last step (s)
+     * @param out Array the position (m) and velocity (m/s) are written to
+     */
+    public void interpolate(double t, double[] out){
+        double h = this.time - this.previousTime;
+        if (h == 0.0){
+            System.arraycopy(this.state, 0, out, 0, STATE_SIZE);
+            return;
+        }
+        if (t < this.previousTime || t > this.time) throw new RuntimeException("The time "+t+"s is outside of the last step from "+this.previousTime+"s to "+this.time+"s.");
+
+        double theta = (t - this.previousTime)/h;
+        double theta2 = theta*theta;
+        double theta3 = theta2*theta;
+        double h00 = 2*theta3 - 3*theta2 + 1;
+        double h10 = theta3 - 2*theta2 + theta;
+        double h01 = -2*theta3 + 3*theta2;
+        double h11 = theta3 - theta2;
+        for (int i = 0; i < STATE_SIZE; i++){
+            out[i] = h00*this.previous[i] + h10*h*this.previousDerivative[i]
+                    + h01*this.state[i] + h11*h*this.derivative[i];
+        }
+    }
+
+    /**
+     * Calculates the rate of change of the state from gravity and drag
+     * @param y Position (m) and velocity (m/s)
+     * @param dy Array the velocity (m/s) and acceleration (m/s^2) are written to
+     */
+    private void derivatives(double[] y, double[] dy){
+        this.evaluations++;
+        double x = y[0];
+        double py = y[1];
+        double z = y[2];
+        GravityKernel.accelerate(x, py, z, this.gravity, 0);
+
+        dy[0] = y[3];
+        dy[1] = y[4];
+        dy[2] = y[5];
+        dy[3] = this.gravity[0];
+        dy[4] = this.gravity[1];
+        dy[5] = this.gravity[2];
+
+        double height = altitude(x, py, z);
+        if (height < 1000.0 && this.ballistic != 0.0){
+            StandardAtmosphere.INSTANCE.evaluate(Math.max(height, 0.0), this.atmosphere);
+            // Velocity relative to the rotating atmosphere
+            double vx = y[3] + Constants.EARTH_ROTATION*py;
+            double vy = y[4] - Constants.EARTH_ROTATION*x;
+            double vz = y[5];
+            double v = Math.sqrt(vx*vx + vy*vy + vz*vz);
+            double drag = -0.5*this.atmosphere.getDensity()*this.ballistic*v;
+            dy[3] += drag*vx;
+            dy[4] += drag*vy;
+            dy[5] += drag*vz;
+        }
+    }
+
+    /**
+     * Calculates the height above the WGS-72 ellipsoid, measured along the radius
+     * @param x Distance in x axis (m)
+     * @param y Distance in y axis (m)
+     * @param z Distance in z axis (m)
+     * @return The altitude (km)
+     */
+    static double altitude(double x, double y, double z){
+        double r = Math.sqrt(x*x + y*y + z*z);
+        double a = Constants.RADIUS_EQUATOR;
+        double b = Constants.ELLIPSOID_POLE;
+        double sinLat = z/r;
+        double cosLat2 = 1 - sinLat*sinLat;
+        double surface = a*b/Math.sqrt(b*b*cosLat2 + a*a*sinLat*sinLat);
+        return((r - surface)/1000.0);
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the integration method
+     * @return The method
+     */
+    public Method getMethod(){return(this.method);}
+
+    /**
+     * Copies the current state
+     * @param out Array the position (m) and velocity (m/s) are written to
+     */
+    public void getState(double[] out){System.arraycopy(this.state, 0, out, 0, STATE_SIZE);}
+    /**
+     * Get the current time
+     * @return The time (s)
+     */
+    public double getTime(){return(this.time);}
+    /**
+     * Get whether propagation stopped at the ground
+     * @return True if the vehicle has reached the ground
+     */
+    public boolean hasImpacted(){return(this.impacted);}
+    /**
+     * Get the number of times the equations of motion were evaluated
+     * @return The number of function evaluations
+     */
+    public long getEvaluations(){return(this.evaluations);}
+    /**
+     * Get the number of steps taken
+     * @return The number of accepted steps
+     */
+    public long getAcceptedSteps(){return(this.accepted);}
+    /**
+     * Get the number of steps thrown away for being outside the tolerance
+     * @return The number of rejected steps
+     */
+    public long getRejectedSteps(){return(this.rejected);}
+    /**
+     * Get the smallest step taken
+     * @return The smallest accepted step (s)
+     */
+    public double getSmallestStep(){return(this.smallestStep);}
+    /**
+     * Get the largest step taken
+     * @return The largest accepted step (s)
+     */
+    public double getLargestStep(){return(this.largestStep);}
+
+    @Override
+    public String toString() {
+        String result = "At Time(s): "+time+"\n"
+                +"Position(m): "+state[0]+", "+state[1]+", "+state[2]+"\n"
+                +"Velocity(m/s): "+state[3]+", "+state[4]+", "+state[5]+"\n"
+                +"Evaluations: "+evaluations+"\n"
+                +"Accepted Steps: "+accepted+"\n"
+                +"Rejected Steps: "+rejected+"\n"
+                +"Smallest Step(s): "+smallestStep+"\n"
+                +"Largest Step(s): "+largestStep+"\n";
+        return(result);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+/**
+ * Accumulates the count, mean, variance, minimum and maximum of a series of values in a
+ * single pass using Welford's method. Two accumulators can be merged, so partial results
+ * from separate threads can be combined without keeping the values.
+ * @author eib15ns
+ */
+public class RunningStatistics {
+
+    //Instance Variables
+    private long count;
+    private double mean;
+    private double sumSquares; // sum of squared differences from the mean
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Adds a value
+     * @param value The value to add
+     */
+    public void add(double value){
+        this.count++;
+        double delta = value - this.mean;
+        this.mean += delta/this.count;
+        this.sumSquares += delta*(value - this.mean);
+        if (value < this.min) this.min = value;
+        if (value > this.max) this.max = value;
+    }
+
+    /**
+     * Adds every value seen by another accumulator
+     * @param other The accumulator to merge into this one
+     */
+    public void merge(RunningStatistics other){
+        if (other.count == 0) return;
+        if (this.count == 0){
+            this.count = other.count;
+            this.mean = other.mean;
+            this.sumSquares = other.sumSquares;
+            this.min = other.min;
+            this.max = other.max;
+            return;
+        }
+        long total = this.count + other.count;
+        double delta = other.mean - this.mean;
+        this.mean += delta*other.count/total;
+        this.sumSquares += other.sumSquares + delta*delta*((double)this.count*other.count/total);
+        this.count = total;
+        if (other.min < this.min) this.min = other.min;
+        if (other.max > this.max) this.max = other.max;
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the number of values added
+     * @return The count
+     */
+    public long getCount(){return(this.count);}
+    /**
+     * Get the mean of the values
+     * @return The mean, or zero if there are no values
+     */
+    public double getMean(){return(this.mean);}
+    /**
+     * Get the sample standard deviation of the values
+     * @return The standard deviation, or zero if there are fewer than two values
+     */
+    public double getStandardDeviation(){return(this.count > 1 ? Math.sqrt(this.sumSquares/(this.count - 1)) : 0.0);}
+    /**
+     * Get the smallest value
+     * @return The minimum
+     */
+    public double getMin(){return(this.min);}
+    /**
+     * Get the largest value
+     * @return The maximum
+     */
+    public double getMax(){return(this.max);}
+
+    @Override
+    public String toString() {
+        return("mean "+mean+", std "+getStandardDeviation()+", min "+min+", max "+max+" ("+count+" values)");
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Models a gravity field as a spherical harmonic expansion with fully normalised
+ * coefficients, as published for EGM96, EGM2008 and the JGM models.
+ * The acceleration is found directly from the Cunningham V and W functions, which are
+ * built with normalised recursions so high degrees neither overflow nor lose precision.
+ * Every recursion and acceleration factor depends only on degree and order and is worked
+ * out once when the model is created, so an evaluation is only multiplies and adds.
+ *
+ * Positions are in the body fixed frame of the coefficients, so callers working in ECI
+ * must rotate into the Earth fixed frame first. The expansion can be truncated per call
+ * below the degree it was loaded with.
+ *
+ * The recursions follow Montenbruck and Gill, Satellite Orbits, section 3.2, with the
+ * normalisation applied to V and W so that C*V = Cbar*Vbar.
+ * @author eib15ns
+ */
+public class SphericalHarmonicGravity implements GravityModel {
+
+    //Instance Variables
+    private final double gm; // m^3/s^2
+    private final double radius; // Reference radius (m)
+    private final int maxDegree;
+    private final double[] c; // Normalised coefficients indexed by index(n, m)
+    private final double[] s;
+    // Recursion factors up to degree maxDegree + 1
+    private final double[] diagonal; // V(m,m) from V(m-1,m-1)
+    private final double[] recursionA; // V(n,m) from V(n-1,m)
+    private final double[] recursionB; // V(n,m) from V(n-2,m)
+    // Acceleration factors up to degree maxDegree
+    private final double[] zonalX; // order 0 x and y term
+    private final double[] upper; // V(n+1,m+1) term
+    private final double[] lower; // V(n+1,m-1) term
+    private final double[] vertical; // V(n+1,m) term
+    private final ThreadLocal<double[][]> workspace;
+
+    /**
+     * Creates a model from fully normalised coefficients
+     * @param gm Gravitational parameter of the body (m^3/s^2)
+     * @param radius Reference radius of the coefficients (m)
+     * @param cbar Cosine coefficients indexed [degree][order]
+     * @param sbar Sine coefficients indexed [degree][order]
+     * @param maxDegree Highest degree to use, at most the size of the coefficient arrays
+     */
+    public SphericalHarmonicGravity(double gm, double radius, double[][] cbar, double[][] sbar, int maxDegree){
+        if (maxDegree < 0 || maxDegree >= cbar.length || maxDegree >= sbar.length) throw new RuntimeException("The degree "+maxDegree+" is not covered by the coefficients.");
+        this.gm = gm;
+        this.radius = radius;
+        this.maxDegree = maxDegree;
+
+        int size = index(maxDegree + 1, maxDegree + 1) + 1;
+        this.c = new double[size];
+        this.s = new double[size];
+        for (int n = 0; n <= maxDegree; n++){
+            for (int m = 0; m <= n; m++){
+                if (m < cbar[n].length) this.c[index(n, m)] = cbar[n][m];
+                if (m < sbar[n].length) this.s[index(n, m)] = sbar[n][m];
+            }
+        }
+
+        this.diagonal = new double[maxDegree + 2];
+        this.recursionA = new double[size];
+        this.recursionB = new double[size];
+        for (int m = 1; m <= maxDegree + 1; m++){
+            this.diagonal[m] = Math.sqrt((2.0*m + 1)/(2.0*m)*(m == 1 ? 2 : 1));
+        }
+        for (int n = 1; n <= maxDegree + 1; n++){
+            for (int m = 0; m < n; m++){
+                double nm = (double)(n - m)*(n + m);
+                this.recursionA[index(n, m)] = Math.sqrt((2.0*n + 1)*(2.0*n - 1)/nm);
+                if (n - m >= 2){
+                    this.recursionB[index(n, m)] = Math.sqrt((2.0*n + 1)*(n + m - 1)*(n - m - 1)/((2.0*n - 3)*nm));
+                }
+            }
+        }
+
+        this.zonalX = new double[maxDegree + 1];
+        this.upper = new double[size];
+        this.lower = new double[size];
+        this.vertical = new double[size];
+        for (int n = 0; n <= maxDegree; n++){
+            double ratio = (2.0*n + 1)/(2.0*n + 3);
+            this.zonalX[n] = Math.sqrt(ratio*(n + 1)*(n + 2)/2);
+            for (int m = 0; m <= n; m++){
+                int i = index(n, m);
+                this.upper[i] = Math.sqrt(ratio*(n + m + 1)*(n + m + 2));
+                this.lower[i] = m == 0 ? 0.0 : Math.sqrt(ratio*(n - m + 1)*(n - m + 2)*(m == 1 ? 2 : 1));
+                this.vertical[i] = Math.sqrt(ratio*(n + m + 1)*(n - m + 1));
+            }
+        }
+
+        this.workspace = ThreadLocal.withInitial(() -> new double[][]{new double[size], new double[size]});
+    }
+
+    /**
+     * Creates a model of degree 2 with only the J2 term, matching {@link GravityKernel}
+     * @param gm Gravitational parameter of the body (m^3/s^2)
+     * @param radius Equatorial radius (m)
+     * @param j2 The unnormalised J2 coefficient
+     * @return The model
+     */
+    public static SphericalHarmonicGravity j2(double gm, double radius, double j2){
+        double[][] cbar = {{1}, {0, 0}, {-j2/Math.sqrt(5), 0, 0}};
+        double[][] sbar = {{0}, {0, 0}, {0, 0, 0}};
+        return(new SphericalHarmonicGravity(gm, radius, cbar, sbar, 2));
+    }
+
+    /**
+     * Loads fully normalised coefficients from a file in the ICGEM gfc format.
+     * The gravitational parameter and radius are read from the file header.
+     * @param file The coefficient file
+     * @param maxDegree Highest degree to load
+     * @return The model
+     * @throws IOException If the file can not be read
+     */
+    public static SphericalHarmonicGravity load(Path file, int maxDegree) throws IOException {
+        return(load(file, maxDegree, Double.NaN, Double.NaN));
+    }
+
+    /**
+     * Loads fully normalised coefficients from a text file. Each coefficient line holds
+     * the degree, order, C and S, optionally after a keyword such as gfc and followed by
+     * further columns such as the standard deviations, which are ignored. Fortran D
+     * exponents are accepted, so the EGM96 and EGM2008 files can be read directly.
+     * Header values in an ICGEM file override the gravitational parameter and radius given.
+     * The C(0,0) term is taken as 1 unless the file lists it.
+     * @param file The coefficient file
+     * @param maxDegree Highest degree to load
+     * @param gm Gravitational parameter of the body (m^3/s^2)
+     * @param radius Reference radius of the coefficients (m)
+     * @return The model
+     * @throws IOException If the file can not be read
+     */
+    public static SphericalHarmonicGravity load(Path file, int maxDegree, double gm, double radius) throws IOException {
+        double[][] cbar = new double[maxDegree + 1][];
+        double[][] sbar = new double[maxDegree + 1][];
+        for (int n = 0; n <= maxDegree; n++){
+            cbar[n] = new double[n + 1];
+            sbar[n] = new double[n + 1];
+        }
+        cbar[0][0] = 1.0;
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)){
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 2) continue;
+                if (tokens[0].equals("earth_gravity_constant")){
+                    gm = parse(tokens[1]);
+                    continue;
+                }
+                if (tokens[0].equals("radius")){
+                    radius = parse(tokens[1]);
+                    continue;
+                }
+                int first = Character.isLetter(tokens[0].charAt(0)) ? 1 : 0;
+                if (tokens.length < first + 4 || !isInteger(tokens[first]) || !isInteger(tokens[first + 1])) continue;
+                int n = Integer.parseInt(tokens[first]);
+                int m = Integer.parseInt(tokens[first + 1]);
+                if (n > maxDegree || m > n || m < 0) continue;
+                cbar[n][m] = parse(tokens[first + 2]);
+                sbar[n][m] = parse(tokens[first + 3]);
+            }
+        }
+
+        if (Double.isNaN(gm) || Double.isNaN(radius)) throw new RuntimeException("The file "+file+" does not give the gravitational parameter and radius.");
+        return(new SphericalHarmonicGravity(gm, radius, cbar, sbar, maxDegree));
+    }
+
+    private static double parse(String token){
+        return(Double.parseDouble(token.replace('D', 'E').replace('d', 'e')));
+    }
+
+    private static boolean isInteger(String token){
+        for (int i = 0; i < token.length(); i++){
+            if (!Character.isDigit(token.charAt(i))) return(false);
+        }
+        return(!token.isEmpty());
+    }
+
+    /**
+     * Index of a degree and order in the triangular arrays
+     */
+    private static int index(int n, int m){
+        return(n*(n + 1)/2 + m);
+    }
+
+    /**
+     * Calculates the acceleration due to gravity using every loaded degree
+     * @param x Distance in x axis of the body fixed frame (m)
+     * @param y Distance in y axis of the body fixed frame (m)
+     * @param z Distance in z axis of the body fixed frame (m)
+     * @param out Array the x, y and z accelerations are written to (m/s^2)
+     * @param offset Index the x acceleration is written to
+     */
+    @Override
+    public void accelerate(double x, double y, double z, double[] out, int offset){
+        accelerate(x, y, z, this.maxDegree, out, offset);
+    }
+
+    /**
+     * Calculates the acceleration due to gravity truncated at a degree
+     * @param x Distance in x axis of the body fixed frame (m)
+     * @param y Distance in y axis of the body fixed frame (m)
+     * @param z Distance in z axis of the body fixed frame (m)
+     * @param degree Highest degree and order to include
+     * @param out Array the x, y and z accelerations are written to (m/s^2)
+     * @param offset Index the x acceleration is written to
+     */
+    public void accelerate(double x, double y, double z, int degree, double[] out, int offset){
+        if (degree < 0 || degree > this.maxDegree) throw new RuntimeException("The degree "+degree+" is outside of the loaded range of 0 to "+this.maxDegree+".");
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            sum(x, y, z, degree, out, offset);
+            Instrumentation.record(Instrumentation.Model.SPHERICAL_HARMONIC_GRAVITY, start, 1);
+        }
+        else {
+            sum(x, y, z, degree, out, offset);
+        }
+    }
+
+    /**
+     * Sums the expansion up to a degree
+     */
+    private void sum(double x, double y, double z, int degree, double[] out, int offset){
+        double[][] vw = this.workspace.get();
+        double[] v = vw[0];
+        double[] w = vw[1];
+
+        double r2 = x*x + y*y + z*z;
+        double scaled = this.radius/r2;
+        double rho = this.radius*scaled;
+        double x0 = x*scaled;
+        double y0 = y*scaled;
+        double z0 = z*scaled;
+
+        // Cunningham functions up to degree + 1, one order at a time
+        int top = degree + 1;
+        v[0] = this.radius/Math.sqrt(r2);
+        w[0] = 0.0;
+        for (int m = 0; m <= top; m++){
+            int mm = index(m, m);
+            if (m > 0){
+                int prev = index(m - 1, m - 1);
+                double d = this.diagonal[m];
+                v[mm] = d*(x0*v[prev] - y0*w[prev]);
+                w[mm] = d*(x0*w[prev] + y0*v[prev]);
+            }
+            if (m < top){
+                int i = index(m + 1, m);
+                double a = this.recursionA[i];
+                v[i] = a*z0*v[mm];
+                w[i] = a*z0*w[mm];
+            }
+            // Moving up a degree at fixed order moves n places along the triangular arrays
+            int i2 = mm;
+            int i1 = index(m + 1, m);
+            for (int n = m + 2; n <= top; n++){
+                int i = i1 + n;
+                double a = this.recursionA[i]*z0;
+                double b = this.recursionB[i]*rho;
+                v[i] = a*v[i1] - b*v[i2];
+                w[i] = a*w[i1] - b*w[i2];
+                i2 = i1;
+                i1 = i;
+            }
+        }
+
+        // Sum from the highest degree down so the small terms are added first
+        double ax = 0.0;
+        double ay = 0.0;
+        double az = 0.0;
+        for (int n = degree; n >= 0; n--){
+            int up = index(n + 1, 0);
+            int i = index(n, 0);
+            double cn = this.c[i];
+            ax -= this.zonalX[n]*cn*v[up + 1];
+            ay -= this.zonalX[n]*cn*w[up + 1];
+            az -= this.vertical[i]*cn*v[up];
+            for (int m = 1; m <= n; m++){
+                i++;
+                int j = up + m;
+                double cnm = this.c[i];
+                double snm = this.s[i];
+                double vUp = v[j + 1];
+                double wUp = w[j + 1];
+                double vLow = v[j - 1];
+                double wLow = w[j - 1];
+                ax += 0.5*(this.upper[i]*(-cnm*vUp - snm*wUp) + this.lower[i]*(cnm*vLow + snm*wLow));
+                ay += 0.5*(this.upper[i]*(-cnm*wUp + snm*vUp) + this.lower[i]*(-cnm*wLow + snm*vLow));
+                az += this.vertical[i]*(-cnm*v[j] - snm*w[j]);
+            }
+        }
+
+        double scale = this.gm/(this.radius*this.radius);
+        out[offset] = scale*ax;
+        out[offset + 1] = scale*ay;
+        out[offset + 2] = scale*az;
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the highest degree loaded
+     * @return The maximum degree
+     */
+    public int getMaxDegree(){return(this.maxDegree);}
+    /**
+     * Get the gravitational parameter
+     * @return The gravitational parameter (m^3/s^2)
+     */
+    public double getGM(){return(this.gm);}
+    /**
+     * Get the reference radius of the coefficients
+     * @return The radius (m)
+     */
+    public double getRadius(){return(this.radius);}
+}
@@ -0,0 +1,1046 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.nio.DoubleBuffer;
+import java.util.Objects;
+
+/**
+ * The 1976 standard atmosphere as a stateless {@link AtmosphereModel}.
+ * The model holds no mutable state, so a single instance can be shared by any number of
+ * threads without locking. Results are written into caller supplied {@link AtmosphereState}
+ * holders or arrays so nothing is allocated per evaluation.
+ * The standard atmosphere, as well as the original equations and interpolation values can be found at:
+ * https://ntrs.nasa.gov/search.jsp?R=19770009539
+ * @author eib15ns
+ */
+public final class StandardAtmosphere implements AtmosphereModel {
+
+    /**
+     * Shared instance of the model
+     */
+    public static final StandardAtmosphere INSTANCE = new StandardAtmosphere();
+
+    // LAYER TABLES
+    // The model is split into intervals, each with a single temperature and pressure
+    // formula. Intervals 0-6 are the gradient layers below 80km, 7-19 the molecular
+    // weight transition up to 86km and 20-33 the interpolated pressure nodes above 86km.
+    static final int INTERVALS = 34;
+    static final int FIRST_TRANSITION = 7;
+    static final int FIRST_NODE = 20;
+
+    // Gradient layers (geopotential km, K/km, K, Pa)
+    private static final double[] GRADIENT_HEIGHT = {0, 11, 20, 32, 47, 51, 71};
+    private static final double[] GRADIENT_LAPSE = {-6.5, 0, 1, 2.8, 0, -2.8, -2};
+    private static final double[] GRADIENT_TEMP = {288.15, 216.65, 216.65, 228.65, 270.65, 270.65, 214.65};
+    private static final double[] GRADIENT_PRESSURE = {101325, 22632.1, 5474.89, 868.019, 110.906, 66.9389, 3.95642};
+    private static final double[] GRADIENT_EXPONENT = new double[GRADIENT_HEIGHT.length];
+
+    // Ratio of molecular weights M/M0 in the transition regime, with the geopotential
+    // height (km) each ratio applies below
+    private static final double[] TRANSITION_TOP = {79.0057, 79.4933, 79.9808, 80.4682, 80.9557, 81.4430,
+        81.9302, 82.4173, 82.9044, 83.3914, 83.8784, 84.3652};
+    private static final double[] TRANSITION_RATIO = {1, 0.999996, 0.999989, 0.999971, 0.999941, 0.999909,
+        0.999870, 0.999829, 0.999786, 0.999741, 0.999694, 0.999641, 0.999579};
+
+    // Pressure nodes above 86km (geometric km, Pa)
+    private static final double[] NODE_HEIGHT = {86, 91, 96, 102, 110, 120, 200, 300, 400, 500, 600, 700, 800, 900, 1000};
+    private static final double[] NODE_PRESSURE = {0.37338, 0.15381, 0.063765, 0.023144, 0.0071042, 0.0025382,
+        0.000084736, 0.0000087704, 0.0000014518, 0.00000030236, 0.000000082130, 0.000000031908,
+        0.000000017036, 0.000000010873, 0.0000000075138};
+    // Mean molecular weight at the pressure nodes from the 1976 tables (kg/kmol)
+    private static final double[] NODE_WEIGHT = {28.95, 28.89, 28.71, 28.23, 27.27, 26.20,
+        21.30, 17.73, 15.98, 14.33, 11.51, 8.00, 5.54, 4.40, 3.94};
+
+    // Constants defined by Standard 1976 for the layers above 91km
+    private static final double ISOTHERMAL_TEMP = 186.8673; // Temperature from 86 to 91km (K)
+    private static final double ELLIPSE_TC = 263.1905;
+    private static final double ELLIPSE_A = -76.3232;
+    private static final double ELLIPSE_a = -19.9429;
+    private static final double LINEAR_LAPSE = 12; // K/km from 110 to 120km
+    private static final double LINEAR_TEMP = 240.0;
+    private static final double EXOSPHERE_LAMBDA = 0.01875;
+    private static final double EXOSPHERE_TEMP = 360;
+    private static final double EXOSPHERE_TINF = 1000;
+
+    // Bounds of every interval, matching the selection in interval(). An interval holds the
+    // geometric heights in (BAND_LOW, BAND_HIGH] whose geopotential height is in
+    // [LOWER, UPPER) below the pressure nodes, or whose geometric height is in (LOWER, UPPER]
+    // from the first pressure node up.
+    static final double[] BAND_LOW = new double[INTERVALS];
+    static final double[] BAND_HIGH = new double[INTERVALS];
+    static final double[] LOWER = new double[INTERVALS];
+    static final double[] UPPER = new double[INTERVALS];
+
+    private static final double RADIUS = Constants.RADIUS_POLE/1000.0; // km
+    private static final double SPEED_SOUND_FACTOR = (Constants.GAMMA*Constants.R)/Constants.M0;
+    private static final double DENSITY_FACTOR = Constants.M0/Constants.R;
+
+    // Transport properties as defined by the 1976 standard
+    private static final double SUTHERLAND_BETA = 1.458e-6; // kg/(m s K^0.5)
+    private static final double SUTHERLAND_S = 110.4; // K
+    private static final double CONDUCTIVITY_FACTOR = 2.64638e-3; // W/(m K^1.5)
+    private static final double COLLISION_DIAMETER = 3.65e-10; // m
+    private static final double NUMBER_DENSITY_FACTOR = Constants.AVOGADRO/Constants.R;
+    private static final double MEAN_FREE_PATH_FACTOR = 1/(Math.sqrt(2)*Math.PI*COLLISION_DIAMETER*COLLISION_DIAMETER);
+
+    static {
+        // The pressure exponent only depends on the layer so it is worked out once
+        for (int i = 0; i < GRADIENT_HEIGHT.length; i++){
+            if (GRADIENT_LAPSE[i] == 0){
+                GRADIENT_EXPONENT[i] = (-1*Constants.G0*Constants.M0*1000.0)/(Constants.R*GRADIENT_TEMP[i]);
+            }
+            else {
+                GRADIENT_EXPONENT[i] = (Constants.G0*Constants.M0)/(Constants.R*(GRADIENT_LAPSE[i]/1000.0));
+            }
+        }
+
+        for (int i = 0; i < FIRST_TRANSITION; i++){
+            BAND_LOW[i] = Double.NEGATIVE_INFINITY;
+            BAND_HIGH[i] = 80;
+            LOWER[i] = i == 0 ? Double.NEGATIVE_INFINITY : GRADIENT_HEIGHT[i];
+            UPPER[i] = i == FIRST_TRANSITION - 1 ? Double.POSITIVE_INFINITY : GRADIENT_HEIGHT[i + 1];
+        }
+        for (int i = FIRST_TRANSITION; i < FIRST_NODE; i++){
+            int j = i - FIRST_TRANSITION;
+            BAND_LOW[i] = 80;
+            BAND_HIGH[i] = 86;
+            LOWER[i] = j == 0 ? Double.NEGATIVE_INFINITY : TRANSITION_TOP[j - 1];
+            UPPER[i] = i == FIRST_NODE - 1 ? Double.POSITIVE_INFINITY : TRANSITION_TOP[j];
+        }
+        for (int i = FIRST_NODE; i < INTERVALS; i++){
+            int j = i - FIRST_NODE;
+            BAND_LOW[i] = 86;
+            BAND_HIGH[i] = Double.POSITIVE_INFINITY;
+            LOWER[i] = NODE_HEIGHT[j];
+            UPPER[i] = i == INTERVALS - 1 ? Double.POSITIVE_INFINITY : NODE_HEIGHT[j + 1];
+        }
+    }
+
+    // Density at the lower bound of every interval, with the density at 1000km last, used
+    // to pick the interval of an inverse density query (kg/m^3)
+    private static final double[] INTERVAL_DENSITY = new double[INTERVALS + 1];
+    // Log of the density every km from 86km up, falling with height, so the density
+    // inverse can start Newton's method within a km of the answer
+    private static final double INDEX_STEP = 1; // km
+    private static final double[] INDEX_LOG_DENSITY = new double[(int)Math.round((1000 - 86)/INDEX_STEP) + 1];
+    private static final int[] INDEX_INTERVAL = new int[INDEX_LOG_DENSITY.length - 1];
+    private static final int NEWTON_ITERATIONS = 20;
+    private static final double NEWTON_TOLERANCE = 1e-5; // km, Newton then leaves under 1e-10km
+
+    static {
+        // Each interval is evaluated at its own lower bound, so the density is the value
+        // its own formulas give there
+        for (int i = 0; i < INTERVALS; i++){
+            double height;
+            if (i < FIRST_NODE){
+                double geoPot;
+                if (i < FIRST_TRANSITION) geoPot = GRADIENT_HEIGHT[i];
+                else if (i == FIRST_TRANSITION) geoPot = getGeoPotHeight(80);
+                else geoPot = TRANSITION_TOP[i - FIRST_TRANSITION - 1];
+                height = geometricHeight(geoPot);
+            }
+            else {
+                height = NODE_HEIGHT[i - FIRST_NODE];
+            }
+            double geoPot = getGeoPotHeight(height);
+            INTERVAL_DENSITY[i] = calcDensity(pressure(i, height, geoPot), temperature(i, height, geoPot));
+        }
+        double top = NODE_HEIGHT[NODE_HEIGHT.length - 1];
+        double geoPot = getGeoPotHeight(top);
+        INTERVAL_DENSITY[INTERVALS] = calcDensity(pressure(INTERVALS - 1, top, geoPot), temperature(INTERVALS - 1, top, geoPot));
+
+        // Every index cell lies inside one interval as the nodes are whole km apart
+        for (int i = 0; i < INDEX_LOG_DENSITY.length; i++){
+            double height = 86 + i*INDEX_STEP;
+            int interval = FIRST_NODE;
+            while (interval < INTERVALS - 1 && height >= NODE_HEIGHT[interval - FIRST_NODE + 1]) interval++;
+            if (i < INDEX_INTERVAL.length) INDEX_INTERVAL[i] = interval;
+            else interval = INTERVALS - 1;
+            double pot = getGeoPotHeight(height);
+            INDEX_LOG_DENSITY[i] = Math.log(calcDensity(pressure(interval, height, pot), temperature(interval, height, pot)));
+        }
+    }
+
+    private StandardAtmosphere(){
+    }
+
+    /**
+     * Evaluates the model at a single height
+     * @param height Geometric height in km
+     * @param out Holder the results are written to
+     */
+    @Override
+    public void evaluate(double height, AtmosphereState out){
+        if (Instrumentation.enabled){
+            evaluateInstrumented(height, out);
+            return;
+        }
+        checkHeight(height);
+        double geoPot = getGeoPotHeight(height); // Calculates geopotential height from geometric height
+        int interval = interval(height, geoPot);
+        double temp = temperature(interval, height, geoPot);
+        double pres = pressure(interval, height, geoPot);
+        out.set(height, temp, pres, calcDensity(pres, temp), calcSpeedSound(temp));
+    }
+
+    /**
+     * Evaluates the model at a single height while recording it in {@link Instrumentation}
+     */
+    private void evaluateInstrumented(double height, AtmosphereState out){
+        long start = System.nanoTime();
+        try {
+            checkHeight(height);
+        }
+        catch (RuntimeException e){
+            Instrumentation.outOfRange(Instrumentation.Model.STANDARD_ATMOSPHERE, height);
+            throw e;
+        }
+        double geoPot = getGeoPotHeight(height);
+        int interval = interval(height, geoPot);
+        double temp = temperature(interval, height, geoPot);
+        double pres = pressure(interval, height, geoPot);
+        out.set(height, temp, pres, calcDensity(pres, temp), calcSpeedSound(temp));
+        Instrumentation.layer(interval);
+        Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, 1);
+    }
+
+    /**
+     * Evaluates a chosen set of properties at a single height. Only the requested
+     * properties and the values they depend on are calculated, so a pressure only query
+     * skips the temperature and a temperature only query skips the pressure, while a full
+     * aero-thermal query finds the interval and calculates the temperature and pressure
+     * once for every property. Shared properties are bit-identical to
+     * {@link #evaluate(double, AtmosphereState)}.
+     *
+     * Viscosity and thermal conductivity follow the 1976 formulas, which the standard only
+     * defines up to 86km. The mean molecular weight is the sea level value below 80km,
+     * follows the transition ratios up to 86km and above that is interpolated linearly
+     * between the 1976 values at the pressure nodes. The density keeps the sea level
+     * molar mass like every other evaluation of the model, so above 86km the 1976
+     * tabulated density is the density times the molecular weight over 28.9644.
+     * The scale height uses the molecular weight and the gravity at the height.
+     * @param height Geometric height in km
+     * @param properties Bitmask of {@link AtmosphereProperties} constants
+     * @param out Holder the results are written to
+     */
+    public void evaluate(double height, int properties, AtmosphereProperties out){
+        AtmosphereProperties.check(properties);
+        if (Instrumentation.enabled){
+            evaluateInstrumented(height, properties, out);
+            return;
+        }
+        checkHeight(height);
+        double geoPot = getGeoPotHeight(height);
+        int interval = interval(height, geoPot);
+        properties(interval, height, geoPot, properties, out.begin(height, properties), 0);
+    }
+
+    /**
+     * Evaluates a set of properties at a single height while recording it in {@link Instrumentation}
+     */
+    private void evaluateInstrumented(double height, int properties, AtmosphereProperties out){
+        long start = System.nanoTime();
+        try {
+            checkHeight(height);
+        }
+        catch (RuntimeException e){
+            Instrumentation.outOfRange(Instrumentation.Model.STANDARD_ATMOSPHERE, height);
+            throw e;
+        }
+        double geoPot = getGeoPotHeight(height);
+        int interval = interval(height, geoPot);
+        properties(interval, height, geoPot, properties, out.begin(height, properties), 0);
+        Instrumentation.layer(interval);
+        Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, 1);
+    }
+
+    /**
+     * Works out a set of properties and writes them as a record in the order of their bits
+     * @param interval The interval index of the height
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @param properties Bitmask of {@link AtmosphereProperties} constants
+     * @param out Array the record is written to
+     * @param index Index of the first value of the record
+     */
+    static void properties(int interval, double height, double geoPot, int properties, double[] out, int index){
+        double temp = 0;
+        double pres = 0;
+        double weight = 0;
+        if ((properties & AtmosphereProperties.NEEDS_TEMPERATURE) != 0) temp = temperature(interval, height, geoPot);
+        if ((properties & AtmosphereProperties.NEEDS_PRESSURE) != 0) pres = pressure(interval, height, geoPot);
+        if ((properties & AtmosphereProperties.NEEDS_WEIGHT) != 0) weight = molecularWeight(interval, height);
+
+        if ((properties & AtmosphereProperties.TEMPERATURE) != 0) out[index++] = temp;
+        if ((properties & AtmosphereProperties.PRESSURE) != 0) out[index++] = pres;
+        if ((properties & AtmosphereProperties.DENSITY) != 0) out[index++] = calcDensity(pres, temp);
+        if ((properties & AtmosphereProperties.SPEED_SOUND) != 0) out[index++] = calcSpeedSound(temp);
+        if ((properties & AtmosphereProperties.VISCOSITY) != 0) out[index++] = calcViscosity(temp);
+        if ((properties & AtmosphereProperties.THERMAL_CONDUCTIVITY) != 0) out[index++] = calcConductivity(temp);
+        if ((properties & AtmosphereProperties.MEAN_FREE_PATH) != 0) out[index++] = MEAN_FREE_PATH_FACTOR/calcNumberDensity(pres, temp);
+        if ((properties & AtmosphereProperties.NUMBER_DENSITY) != 0) out[index++] = calcNumberDensity(pres, temp);
+        if ((properties & AtmosphereProperties.MOLECULAR_WEIGHT) != 0) out[index++] = weight;
+        if ((properties & AtmosphereProperties.SCALE_HEIGHT) != 0) out[index] = calcScaleHeight(height, temp, weight);
+    }
+
+    /**
+     * Evaluates the model and its derivatives with respect to geometric height at a single
+     * height. The derivatives are worked out analytically from the same layer formulas as
+     * the values, so one call replaces the three evaluations of a central difference and
+     * has no truncation error. The values are bit-identical to {@link #evaluate(double, AtmosphereState)}.
+     * The model is only piecewise smooth, so at a boundary between intervals the one sided
+     * derivative of the interval the height is assigned to is returned.
+     * @param height Geometric height in km
+     * @param out Holder the values and derivatives are written to
+     */
+    public void evaluateDerivatives(double height, AtmosphereDerivatives out){
+        if (Instrumentation.enabled){
+            long start = System.nanoTime();
+            if (height > 1000.0 || height < 0.0) Instrumentation.outOfRange(Instrumentation.Model.STANDARD_ATMOSPHERE, height);
+            Instrumentation.layer(derivatives(height, out));
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, 1);
+        }
+        else {
+            derivatives(height, out);
+        }
+    }
+
+    /**
+     * Evaluates the model and its derivatives at a single height
+     * @return The interval index of the height
+     */
+    private static int derivatives(double height, AtmosphereDerivatives out){
+        checkHeight(height);
+        double geoPot = getGeoPotHeight(height);
+        int interval = interval(height, geoPot);
+        double temp = temperature(interval, height, geoPot);
+        double pres = pressure(interval, height, geoPot);
+        out.set(height, temp, pres, calcDensity(pres, temp), calcSpeedSound(temp));
+        setDerivatives(interval, geoPot, out);
+        return(interval);
+    }
+
+    /**
+     * Works out the derivatives for values already written to a holder
+     * @param interval The interval index of the height
+     * @param geoPot Geopotential height in km
+     * @param out Holder the values were written to
+     */
+    static void setDerivatives(int interval, double geoPot, AtmosphereDerivatives out){
+        double height = out.getHeight();
+        double temp = out.getTemperature();
+        double pres = out.getPressure();
+        double dTemp = temperatureDerivative(interval, height, geoPot, temp);
+        double dPres = pressureDerivative(interval, height, geoPot, pres);
+        // rho = P*M0/(R*T) and a = sqrt(gamma*R*T/M0)
+        double dDensity = out.getDensity()*(dPres/pres - dTemp/temp);
+        double dSpeedSound = 0.5*out.getSpeedSound()*dTemp/temp;
+        out.setDerivatives(dTemp, dPres, dDensity, dSpeedSound);
+    }
+
+    /**
+     * Throws if the height is outside of the range covered by the model
+     * @param height Geometric height in km
+     */
+    static void checkHeight(double height){
+        if (height > 1000.0) throw new RuntimeException("The Standard Atmosphere 1976 is only defined up to a geodetic altitude of 1000km. \n Your value for height exceeds this value.");
+        if (height < 0.0) throw new RuntimeException("The Standard Atmosphere 1976 is not defined below a geodetic altitude of 0km. \n Your value for height falls below this value.");
+    }
+
+    /**
+     * Calculates the geopotential height at a given geometric height
+     * @param height Geometric height above sea level
+     * @return Geopotential height above sea level
+     */
+    static double getGeoPotHeight(double height){
+        double geoPotHeight = (RADIUS*height)/(RADIUS+height);
+        return(geoPotHeight);
+    }
+
+    /**
+     * Calculates the speed of sound as a function of temperature
+     * @param temperature The temperature (K)
+     * @return The speed of sound (m/s)
+     */
+    static double calcSpeedSound(double temperature){
+        double speedOfSound = Math.sqrt(SPEED_SOUND_FACTOR*temperature);
+        return(speedOfSound);
+    }
+
+    /**
+     * Calculates the density from the ideal gas law using the sea level molar mass
+     * @param pressure The pressure (Pa)
+     * @param temperature The temperature (K)
+     * @return The density (kg/m^3)
+     */
+    static double calcDensity(double pressure, double temperature){
+        double rho = (pressure*DENSITY_FACTOR)/temperature;
+        return(rho);
+    }
+
+
+
+    /**
+     * Calculates the dynamic viscosity from Sutherland's law
+     * @param temperature The temperature (K)
+     * @return The dynamic viscosity (kg/(m s))
+     */
+    static double calcViscosity(double temperature){
+        return(SUTHERLAND_BETA*temperature*Math.sqrt(temperature)/(temperature + SUTHERLAND_S));
+    }
+
+    /**
+     * Calculates the thermal conductivity with the 1976 formula
+     * @param temperature The temperature (K)
+     * @return The thermal conductivity (W/(m K))
+     */
+    static double calcConductivity(double temperature){
+        double denominator = temperature + 245.4*Math.pow(10, -12/temperature);
+        return(CONDUCTIVITY_FACTOR*temperature*Math.sqrt(temperature)/denominator);
+    }
+
+    /**
+     * Calculates the number of molecules per unit volume
+     * @param pressure The pressure (Pa)
+     * @param temperature The temperature (K)
+     * @return The number density (1/m^3)
+     */
+    static double calcNumberDensity(double pressure, double temperature){
+        return(NUMBER_DENSITY_FACTOR*pressure/temperature);
+    }
+
+    /**
+     * Calculates the pressure scale height, the height over which the pressure falls by e
+     * @param height Geometric height in km
+     * @param temperature The temperature (K)
+     * @param weight The mean molecular weight (kg/kmol)
+     * @return The scale height (km)
+     */
+    static double calcScaleHeight(double height, double temperature, double weight){
+        // H = R*T/(M*g) with M in kg/mol, which gives km when M is in kg/kmol
+        double gravity = Constants.G0*geoPotDerivative(height);
+        return(Constants.R*temperature/(weight*gravity));
+    }
+
+    /**
+     * Calculates the mean molecular weight within an interval
+     * @param interval The interval index
+     * @param height Geometric height in km
+     * @return The mean molecular weight (kg/kmol)
+     */
+    static double molecularWeight(int interval, double height){
+        if (interval < FIRST_TRANSITION){
+            return(Constants.M0*1000);
+        }
+        else if (interval < FIRST_NODE){
+            return(Constants.M0*1000*TRANSITION_RATIO[interval - FIRST_TRANSITION]);
+        }
+        int node = interval - FIRST_NODE;
+        double ratio = (height - NODE_HEIGHT[node])/(NODE_HEIGHT[node + 1] - NODE_HEIGHT[node]);
+        return(NODE_WEIGHT[node] + ratio * (NODE_WEIGHT[node + 1] - NODE_WEIGHT[node]));
+    }
+
+
+
+    // INVERSE FUNCTIONS
+
+    /**
+     * Finds the geometric height at which the model gives a pressure, as a barometric
+     * altimeter would. Below 86km the pressure formula of the gradient layer holding the
+     * pressure is inverted in closed form. Above 86km the pressure is interpolated linearly
+     * between nodes, so its inverse is exact as well. Heights found this way give the
+     * pressure back to within a few parts in 1e14. The tabulated base pressures of the
+     * gradient layers leave steps of up to 2e-6 relative at the layer boundaries, so
+     * within about a centimetre of a boundary the height found may lie on the other side
+     * of it.
+     * @param pressure The pressure (Pa)
+     * @return The geometric height (km)
+     */
+    public double heightAtPressure(double pressure){
+        if (!(pressure <= GRADIENT_PRESSURE[0] && pressure >= NODE_PRESSURE[NODE_PRESSURE.length - 1])){
+            throw new RuntimeException("A pressure of "+pressure+"Pa lies outside the Standard Atmosphere 1976 from 0 to 1000km.");
+        }
+        if (pressure > NODE_PRESSURE[0]){
+            int layer = GRADIENT_HEIGHT.length - 1;
+            while (GRADIENT_PRESSURE[layer] < pressure) layer--;
+            return(geometricHeight(inversePressure(pressure, layer)));
+        }
+        int node = NODE_HEIGHT.length - 2;
+        while (NODE_PRESSURE[node] < pressure) node--;
+        double ratio = (pressure - NODE_PRESSURE[node])/(NODE_PRESSURE[node + 1] - NODE_PRESSURE[node]);
+        return(NODE_HEIGHT[node] + ratio * (NODE_HEIGHT[node + 1] - NODE_HEIGHT[node]));
+    }
+
+    /**
+     * Finds the geometric height at which the model gives a density. Below 86km the
+     * density of every interval is a power law or an exponential of the geopotential
+     * height and is inverted in closed form, and heights found give the density back to
+     * within a few parts in 1e14. Above 86km the density, which falls with height, is
+     * found by binary search in an index of the density every km, and the log-linear
+     * interpolation within the km is refined by Newton's method on the log of the density
+     * with the analytic derivatives. Two Newton steps usually bring the height within
+     * 1e-10km. From 80 to 86km each step in the molecular weight ratio repeats densities
+     * over up to half a metre, and one of those heights is returned.
+     * @param density The density (kg/m^3)
+     * @return The geometric height (km)
+     */
+    public double heightAtDensity(double density){
+        if (!(density <= INTERVAL_DENSITY[0] && density >= INTERVAL_DENSITY[INTERVALS])){
+            throw new RuntimeException("A density of "+density+"kg/m^3 lies outside the Standard Atmosphere 1976 from 0 to 1000km.");
+        }
+        if (density > INTERVAL_DENSITY[FIRST_NODE]){
+            int interval = FIRST_NODE - 1;
+            while (INTERVAL_DENSITY[interval] < density) interval--;
+            return(geometricHeight(inverseDensity(density, interval)));
+        }
+        return(refineDensity(density));
+    }
+
+    /**
+     * Finds the geometric heights for a range of pressures in an array
+     * @param pressures Pressures (Pa)
+     * @param offset Index of the first pressure
+     * @param outHeights Array the geometric heights are written to (km)
+     * @param outOffset Index the first height is written to
+     * @param length Number of pressures
+     * @see #heightAtPressure(double)
+     */
+    public void heightsAtPressure(double[] pressures, int offset, double[] outHeights, int outOffset, int length){
+        Objects.checkFromIndexSize(offset, length, pressures.length);
+        Objects.checkFromIndexSize(outOffset, length, outHeights.length);
+        for (int i = 0; i < length; i++) outHeights[outOffset + i] = heightAtPressure(pressures[offset + i]);
+    }
+
+    /**
+     * Finds the geometric heights for a range of densities in an array
+     * @param densities Densities (kg/m^3)
+     * @param offset Index of the first density
+     * @param outHeights Array the geometric heights are written to (km)
+     * @param outOffset Index the first height is written to
+     * @param length Number of densities
+     * @see #heightAtDensity(double)
+     */
+    public void heightsAtDensity(double[] densities, int offset, double[] outHeights, int outOffset, int length){
+        Objects.checkFromIndexSize(offset, length, densities.length);
+        Objects.checkFromIndexSize(outOffset, length, outHeights.length);
+        for (int i = 0; i < length; i++) outHeights[outOffset + i] = heightAtDensity(densities[offset + i]);
+    }
+
+    /**
+     * Converts a geopotential height back to a geometric height
+     * @param geoPot Geopotential height in km
+     * @return Geometric height in km
+     */
+    private static double geometricHeight(double geoPot){
+        return((RADIUS*geoPot)/(RADIUS - geoPot));
+    }
+
+    /**
+     * Inverts the pressure formula of a gradient layer
+     * @param pressure The pressure (Pa)
+     * @param layer The gradient layer index
+     * @return Geopotential height in km
+     */
+    private static double inversePressure(double pressure, int layer){
+        double lapseRate = GRADIENT_LAPSE[layer];
+        if (lapseRate == 0){
+            return(GRADIENT_HEIGHT[layer] + Math.log(pressure/GRADIENT_PRESSURE[layer])/GRADIENT_EXPONENT[layer]);
+        }
+        // P = Pb*(Tb/T)^n so T = Tb*(P/Pb)^(-1/n)
+        double temp = GRADIENT_TEMP[layer]*Math.pow(pressure/GRADIENT_PRESSURE[layer], -1/GRADIENT_EXPONENT[layer]);
+        return(GRADIENT_HEIGHT[layer] + (temp - GRADIENT_TEMP[layer])/lapseRate);
+    }
+
+    /**
+     * Inverts the density formula of an interval below 86km
+     * @param density The density (kg/m^3)
+     * @param interval The interval index
+     * @return Geopotential height in km
+     */
+    private static double inverseDensity(double density, int interval){
+        int layer = Math.min(interval, FIRST_TRANSITION - 1);
+        double ratio = interval < FIRST_TRANSITION ? 1 : TRANSITION_RATIO[interval - FIRST_TRANSITION];
+        double tempBase = GRADIENT_TEMP[layer];
+        double lapseRate = GRADIENT_LAPSE[layer];
+        // Density the layer formulas would give at the base of the layer with this ratio
+        double densityBase = calcDensity(GRADIENT_PRESSURE[layer], ratio*tempBase);
+        if (lapseRate == 0){
+            return(GRADIENT_HEIGHT[layer] + Math.log(density/densityBase)/GRADIENT_EXPONENT[layer]);
+        }
+        // rho = rhob*(Tb/T)^(n+1) with T the molecular temperature
+        double temp = tempBase*Math.pow(density/densityBase, -1/(GRADIENT_EXPONENT[layer] + 1));
+        return(GRADIENT_HEIGHT[layer] + (temp - tempBase)/lapseRate);
+    }
+
+    /**
+     * Finds the height of a density above 86km by Newton's method
+     * @param density The density (kg/m^3)
+     * @return Geometric height in km
+     */
+    private static double refineDensity(double density){
+        double target = Math.log(density);
+        // Binary search for the index cell holding the density
+        int lowCell = 0;
+        int highCell = INDEX_LOG_DENSITY.length - 1;
+        while (highCell - lowCell > 1){
+            int middle = (lowCell + highCell) >>> 1;
+            if (INDEX_LOG_DENSITY[middle] >= target) lowCell = middle;
+            else highCell = middle;
+        }
+        int interval = INDEX_INTERVAL[lowCell];
+        double low = 86 + lowCell*INDEX_STEP;
+        double high = low + INDEX_STEP;
+        double lowLog = INDEX_LOG_DENSITY[lowCell];
+        double height = low + (target - lowLog)/(INDEX_LOG_DENSITY[lowCell + 1] - lowLog)*INDEX_STEP;
+
+        for (int i = 0; i < NEWTON_ITERATIONS; i++){
+            double geoPot = getGeoPotHeight(height);
+            double temp = temperature(interval, height, geoPot);
+            double pres = pressure(interval, height, geoPot);
+            double error = Math.log(calcDensity(pres, temp)) - target;
+            // d(ln rho)/dh = (dP/dh)/P - (dT/dh)/T
+            double slope = pressureDerivative(interval, height, geoPot, pres)/pres
+                    - temperatureDerivative(interval, height, geoPot, temp)/temp;
+            double step = error/slope;
+            height = Math.min(Math.max(height - step, low), high);
+            if (Math.abs(step) < NEWTON_TOLERANCE) break;
+        }
+        return(height);
+    }
+
+
+
+    // BATCH FUNCTIONS
+
+    /**
+     * Evaluates the model for a range of heights in an array. Nothing is allocated so
+     * the arrays can be reused across calls.
+     * @param heightsKm Geometric heights in km
+     * @param offset Index of the first height to evaluate
+     * @param outT Array the temperatures are written to (K)
+     * @param outP Array the pressures are written to (Pa)
+     * @param outRho Array the densities are written to (kg/m^3)
+     * @param outA Array the speeds of sound are written to (m/s)
+     * @param outOffset Index the first result is written to in every output array
+     * @param length Number of heights to evaluate
+     */
+    @Override
+    public void evaluate(double[] heightsKm, int offset, double[] outT, double[] outP,
+            double[] outRho, double[] outA, int outOffset, int length){
+
+        Objects.checkFromIndexSize(offset, length, heightsKm.length);
+        Objects.checkFromIndexSize(outOffset, length, outT.length);
+        Objects.checkFromIndexSize(outOffset, length, outP.length);
+        Objects.checkFromIndexSize(outOffset, length, outRho.length);
+        Objects.checkFromIndexSize(outOffset, length, outA.length);
+
+        if (Instrumentation.enabled){
+            // Layers are counted before the clock starts, so only the evaluation is timed
+            for (int i = 0; i < length; i++){
+                if (!countLayer(heightsKm[offset + i])) break;
+            }
+            long start = System.nanoTime();
+            evaluateRange(heightsKm, offset, outT, outP, outRho, outA, outOffset, length);
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, length);
+        }
+        else {
+            evaluateRange(heightsKm, offset, outT, outP, outRho, outA, outOffset, length);
+        }
+    }
+
+    private static void evaluateRange(double[] heightsKm, int offset, double[] outT, double[] outP,
+            double[] outRho, double[] outA, int outOffset, int length){
+        for (int i = 0; i < length; i++){
+            double height = heightsKm[offset + i];
+            checkHeight(height);
+            double geoPot = getGeoPotHeight(height);
+            int interval = interval(height, geoPot);
+            double temp = temperature(interval, height, geoPot);
+            double pres = pressure(interval, height, geoPot);
+
+            outT[outOffset + i] = temp;
+            outP[outOffset + i] = pres;
+            outRho[outOffset + i] = calcDensity(pres, temp);
+            outA[outOffset + i] = calcSpeedSound(temp);
+        }
+    }
+
+    /**
+     * Evaluates the model for heights held in a buffer. Heights are heightStride doubles
+     * apart so they can sit inside a larger state vector. Each result record holds the
+     * temperature, pressure, density and speed of sound next to each other in that order,
+     * and records are outStride doubles apart. Works on heap or direct (off-heap) buffers
+     * in place, and buffer positions and limits are not changed.
+     * @param heights Buffer holding the geometric heights (km)
+     * @param heightIndex Index of the first height
+     * @param heightStride Number of doubles from one height to the next
+     * @param out Buffer the results are written to (K, Pa, kg/m^3, m/s)
+     * @param outIndex Index of the temperature in the first result record
+     * @param outStride Number of doubles from one result record to the next
+     * @param count Number of heights to evaluate
+     */
+    @Override
+    public void evaluate(DoubleBuffer heights, int heightIndex, int heightStride,
+            DoubleBuffer out, int outIndex, int outStride, int count){
+
+        Buffers.checkRecords(heights, heightIndex, heightStride, 1, count);
+        Buffers.checkRecords(out, outIndex, outStride, 4, count);
+
+        if (Instrumentation.enabled){
+            for (int i = 0; i < count; i++){
+                if (!countLayer(heights.get(heightIndex + i*heightStride))) break;
+            }
+            long start = System.nanoTime();
+            evaluateRange(heights, heightIndex, heightStride, out, outIndex, outStride, count);
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, count);
+        }
+        else {
+            evaluateRange(heights, heightIndex, heightStride, out, outIndex, outStride, count);
+        }
+    }
+
+    private static void evaluateRange(DoubleBuffer heights, int heightIndex, int heightStride,
+            DoubleBuffer out, int outIndex, int outStride, int count){
+        for (int i = 0; i < count; i++){
+            double height = heights.get(heightIndex + i*heightStride);
+            checkHeight(height);
+            double geoPot = getGeoPotHeight(height);
+            int interval = interval(height, geoPot);
+            double temp = temperature(interval, height, geoPot);
+            double pres = pressure(interval, height, geoPot);
+
+            int record = outIndex + i*outStride;
+            out.put(record, temp);
+            out.put(record + 1, pres);
+            out.put(record + 2, calcDensity(pres, temp));
+            out.put(record + 3, calcSpeedSound(temp));
+        }
+    }
+
+    /**
+     * Evaluates a chosen set of properties for a range of heights in an array. Each height
+     * writes a record of {@link AtmosphereProperties#count} values in the order of their
+     * bits, so every requested property comes out of a single pass over the heights.
+     * @param heightsKm Geometric heights in km
+     * @param offset Index of the first height to evaluate
+     * @param properties Bitmask of {@link AtmosphereProperties} constants
+     * @param out Array the records are written to
+     * @param outOffset Index of the first value of the first record
+     * @param length Number of heights to evaluate
+     * @see #evaluate(double, int, AtmosphereProperties)
+     */
+    public void evaluate(double[] heightsKm, int offset, int properties, double[] out, int outOffset, int length){
+        int size = AtmosphereProperties.count(properties);
+        Objects.checkFromIndexSize(offset, length, heightsKm.length);
+        Objects.checkFromIndexSize(outOffset, Math.multiplyExact(length, size), out.length);
+
+        if (Instrumentation.enabled){
+            for (int i = 0; i < length; i++){
+                if (!countLayer(heightsKm[offset + i])) break;
+            }
+            long start = System.nanoTime();
+            evaluateRange(heightsKm, offset, properties, size, out, outOffset, length);
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, length);
+        }
+        else {
+            evaluateRange(heightsKm, offset, properties, size, out, outOffset, length);
+        }
+    }
+
+    private static void evaluateRange(double[] heightsKm, int offset, int properties, int size,
+            double[] out, int outOffset, int length){
+        for (int i = 0; i < length; i++){
+            double height = heightsKm[offset + i];
+            checkHeight(height);
+            double geoPot = getGeoPotHeight(height);
+            int interval = interval(height, geoPot);
+            properties(interval, height, geoPot, properties, out, outOffset + i*size);
+        }
+    }
+
+    /**
+     * Evaluates the model in single precision for a range of heights in a float array,
+     * halving the memory traffic of the double version for large screening runs.
+     *
+     * Only the loads and stores are single precision. The geopotential height, the
+     * temperature ratio raised to the pressure exponent (up to 34 in magnitude, which
+     * would multiply any float rounding of the ratio) and the exponentials above 86km run
+     * in double, and each result is rounded once when it is stored. Against
+     * {@link Atmosphere} at the same height every output is within 6e-8 relative error,
+     * the half ulp of a float. Heights held as floats are themselves rounded by up to
+     * 6e-8 of the height (3cm at 1000km), which moves the pressure and density by up to
+     * 3e-6 relative and the temperature and speed of sound by up to 2e-7, so the mode is safe wherever a
+     * relative error of a few parts per million is acceptable.
+     * @param heightsKm Geometric heights in km
+     * @param offset Index of the first height to evaluate
+     * @param outT Array the temperatures are written to (K)
+     * @param outP Array the pressures are written to (Pa)
+     * @param outRho Array the densities are written to (kg/m^3)
+     * @param outA Array the speeds of sound are written to (m/s)
+     * @param outOffset Index the first result is written to in every output array
+     * @param length Number of heights to evaluate
+     */
+    public void evaluate(float[] heightsKm, int offset, float[] outT, float[] outP,
+            float[] outRho, float[] outA, int outOffset, int length){
+
+        Objects.checkFromIndexSize(offset, length, heightsKm.length);
+        Objects.checkFromIndexSize(outOffset, length, outT.length);
+        Objects.checkFromIndexSize(outOffset, length, outP.length);
+        Objects.checkFromIndexSize(outOffset, length, outRho.length);
+        Objects.checkFromIndexSize(outOffset, length, outA.length);
+
+        if (Instrumentation.enabled){
+            for (int i = 0; i < length; i++){
+                if (!countLayer(heightsKm[offset + i])) break;
+            }
+            long start = System.nanoTime();
+            evaluateRange(heightsKm, offset, outT, outP, outRho, outA, outOffset, length);
+            Instrumentation.record(Instrumentation.Model.STANDARD_ATMOSPHERE, start, length);
+        }
+        else {
+            evaluateRange(heightsKm, offset, outT, outP, outRho, outA, outOffset, length);
+        }
+    }
+
+    private static void evaluateRange(float[] heightsKm, int offset, float[] outT, float[] outP,
+            float[] outRho, float[] outA, int outOffset, int length){
+        // The next height is widened an iteration early. Widening a float only writes
+        // part of a register, and doing it at the top of the loop tied each height to the
+        // previous height's pow/exp and ran the loop three times slower.
+        double next = length > 0 ? heightsKm[offset] : 0.0;
+        for (int i = 0; i < length; i++){
+            double height = next;
+            if (i + 1 < length) next = heightsKm[offset + i + 1];
+            checkHeight(height);
+            double geoPot = getGeoPotHeight(height);
+            int interval = interval(height, geoPot);
+            double temp = temperature(interval, height, geoPot);
+            double pres = pressure(interval, height, geoPot);
+
+            outT[outOffset + i] = (float)temp;
+            outP[outOffset + i] = (float)pres;
+            outRho[outOffset + i] = (float)calcDensity(pres, temp);
+            outA[outOffset + i] = (float)calcSpeedSound(temp);
+        }
+    }
+
+
+
+    /**
+     * Counts the layer of a height in {@link Instrumentation}, or counts the height as out
+     * of range ahead of the batch throwing for it
+     * @param height Geometric height in km
+     * @return False if the height is out of range
+     */
+    private static boolean countLayer(double height){
+        if (height > 1000.0 || height < 0.0){
+            Instrumentation.outOfRange(Instrumentation.Model.STANDARD_ATMOSPHERE, height);
+            return(false);
+        }
+        Instrumentation.layer(interval(height, getGeoPotHeight(height)));
+        return(true);
+    }
+
+
+
+    // LAYER FUNCTIONS
+
+    /**
+     * Determines which interval of the model a height falls in
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @return The interval index
+     */
+    static int interval(double height, double geoPot){
+        if (height <= 80){
+            for (int i = 1; i < GRADIENT_HEIGHT.length; i++){
+                if (geoPot < GRADIENT_HEIGHT[i]) return(i - 1);
+            }
+            return(FIRST_TRANSITION - 1);
+        }
+        else if (height <= 86){
+            for (int i = 0; i < TRANSITION_TOP.length; i++){
+                if (geoPot < TRANSITION_TOP[i]) return(FIRST_TRANSITION + i);
+            }
+            return(FIRST_NODE - 1);
+        }
+        else {
+            for (int i = 1; i < NODE_HEIGHT.length - 1; i++){
+                if (height <= NODE_HEIGHT[i]) return(FIRST_NODE + i - 1);
+            }
+            return(INTERVALS - 1);
+        }
+    }
+
+    /**
+     * Checks whether a height falls in an interval, giving the same answer as {@link #interval}
+     * @param interval The interval index
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @return True if {@link #interval} would select the interval
+     */
+    static boolean contains(int interval, double height, double geoPot){
+        if (!(height > BAND_LOW[interval] && height <= BAND_HIGH[interval])) return(false);
+        if (interval < FIRST_NODE) return(geoPot >= LOWER[interval] && geoPot < UPPER[interval]);
+        return(height > LOWER[interval] && height <= UPPER[interval]);
+    }
+
+    /**
+     * Calculates the temperature within an interval
+     * @param interval The interval index
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @return The temperature (K)
+     */
+    static double temperature(int interval, double height, double geoPot){
+        if (interval < FIRST_TRANSITION){
+            return(GRADIENT_TEMP[interval] + GRADIENT_LAPSE[interval]*(geoPot - GRADIENT_HEIGHT[interval]));
+        }
+        else if (interval < FIRST_NODE){
+            int top = FIRST_TRANSITION - 1;
+            double molecularTemp = GRADIENT_TEMP[top] + GRADIENT_LAPSE[top]*(geoPot - GRADIENT_HEIGHT[top]);
+            return(TRANSITION_RATIO[interval - FIRST_TRANSITION]*molecularTemp);
+        }
+        else if (interval == FIRST_NODE){
+            return(ISOTHERMAL_TEMP);
+        }
+        else if (interval < FIRST_NODE + 4){
+            double x = (height - 91)/ELLIPSE_a;
+            return(ELLIPSE_TC + ELLIPSE_A * Math.sqrt(1 - x*x));
+        }
+        else if (interval == FIRST_NODE + 4){
+            return(LINEAR_TEMP + LINEAR_LAPSE*(height - 110));
+        }
+        else {
+            double epsilon = (height - 120)*(RADIUS + 120)/(RADIUS + height);
+            return(EXOSPHERE_TINF - (EXOSPHERE_TINF - EXOSPHERE_TEMP) * Math.exp(-1*EXOSPHERE_LAMBDA*epsilon));
+        }
+    }
+
+    /**
+     * Calculates the pressure within an interval
+     * @param interval The interval index
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @return The pressure (Pa)
+     */
+    static double pressure(int interval, double height, double geoPot){
+        if (interval < FIRST_NODE){
+            return(pressure(geoPot, Math.min(interval, FIRST_TRANSITION - 1)));
+        }
+        int node = interval - FIRST_NODE;
+        double ratio = (height - NODE_HEIGHT[node])/(NODE_HEIGHT[node + 1] - NODE_HEIGHT[node]);
+        return(NODE_PRESSURE[node] + ratio * (NODE_PRESSURE[node + 1] - NODE_PRESSURE[node]));
+    }
+
+    // DERIVATIVE FUNCTIONS
+
+    /**
+     * Calculates the derivative of geopotential height with respect to geometric height
+     * @param height Geometric height in km
+     * @return The derivative
+     */
+    static double geoPotDerivative(double height){
+        double ratio = RADIUS/(RADIUS + height);
+        return(ratio*ratio);
+    }
+
+    /**
+     * Calculates the derivative of the temperature within an interval
+     * @param interval The interval index
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @param temperature The temperature at the height (K)
+     * @return dT/dh (K/km)
+     */
+    static double temperatureDerivative(int interval, double height, double geoPot, double temperature){
+        if (interval < FIRST_TRANSITION){
+            return(GRADIENT_LAPSE[interval]*geoPotDerivative(height));
+        }
+        else if (interval < FIRST_NODE){
+            return(TRANSITION_RATIO[interval - FIRST_TRANSITION]*GRADIENT_LAPSE[FIRST_TRANSITION - 1]*geoPotDerivative(height));
+        }
+        else if (interval == FIRST_NODE){
+            return(0.0);
+        }
+        else if (interval < FIRST_NODE + 4){
+            double x = (height - 91)/ELLIPSE_a;
+            return(-1*ELLIPSE_A*x/(ELLIPSE_a*Math.sqrt(1 - x*x)));
+        }
+        else if (interval == FIRST_NODE + 4){
+            return(LINEAR_LAPSE);
+        }
+        else {
+            // T = Tinf - (Tinf - T120)*exp(-lambda*epsilon)
+            double ratio = (RADIUS + 120)/(RADIUS + height);
+            return(EXOSPHERE_LAMBDA*(EXOSPHERE_TINF - temperature)*ratio*ratio);
+        }
+    }
+
+    /**
+     * Calculates the derivative of the pressure within an interval
+     * @param interval The interval index
+     * @param height Geometric height in km
+     * @param geoPot Geopotential height in km
+     * @param pressure The pressure at the height (Pa)
+     * @return dP/dh (Pa/km)
+     */
+    static double pressureDerivative(int interval, double height, double geoPot, double pressure){
+        if (interval < FIRST_NODE){
+            int layer = Math.min(interval, FIRST_TRANSITION - 1);
+            double lapseRate = GRADIENT_LAPSE[layer];
+            if (lapseRate == 0){
+                return(pressure*GRADIENT_EXPONENT[layer]*geoPotDerivative(height));
+            }
+            // P = Pb*(Tb/T)^n with T the molecular temperature of the gradient layer
+            double molecularTemp = GRADIENT_TEMP[layer] + lapseRate*(geoPot - GRADIENT_HEIGHT[layer]);
+            return(-1*pressure*GRADIENT_EXPONENT[layer]*lapseRate/molecularTemp*geoPotDerivative(height));
+        }
+        int node = interval - FIRST_NODE;
+        return((NODE_PRESSURE[node + 1] - NODE_PRESSURE[node])/(NODE_HEIGHT[node + 1] - NODE_HEIGHT[node]));
+    }
+
+    // PRESSURE EQUATIONS
+
+    /**
+     * Calculates the pressure at an altitude using the gradient layer properties
+     * @param geoHeight Geopotential Height
+     * @param layer The gradient layer index
+     * @return Pressure at the specified altitude
+     */
+    private static double pressure(double geoHeight, int layer){
+
+        double pres; // Placeholder variable for the calculated pressure
+        double heightBase = GRADIENT_HEIGHT[layer];
+        double tempBase = GRADIENT_TEMP[layer];
+        double lapseRate = GRADIENT_LAPSE[layer];
+
+        // Different equations for lapseRate = 0 and lapseRate != 0
+        if (lapseRate == 0){
+            pres = GRADIENT_PRESSURE[layer] * Math.exp(GRADIENT_EXPONENT[layer]*(geoHeight - heightBase));
+        }
+
+        else {
+            double value = tempBase / (tempBase + lapseRate*(geoHeight - heightBase));
+            pres = GRADIENT_PRESSURE[layer] * Math.pow(value, GRADIENT_EXPONENT[layer]);
+        }
+
+        return(pres);
+    }
+
+}
@@ -0,0 +1,651 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Annotates trajectory files with the atmosphere and gravity along the trajectory.
+ * Every input record holds the time (s), geometric altitude (km) and ECI position x, y
+ * and z (m), and the temperature (K), pressure (Pa), density (kg/m^3), speed of sound (m/s)
+ * and acceleration due to gravity x, y and z (m/s^2) are appended to it.
+ *
+ * Two formats are read:
+ * <ul>
+ *  <li>CSV, one record per line. Extra columns after the first five are kept, and a first
+ *  line that is not numeric is taken as a header and gets the new column names.</li>
+ *  <li>Binary, records of five little endian doubles. Output records hold twelve.</li>
+ * </ul>
+ * Output is written in the same format as the input.
+ *
+ * One bad telemetry row must not stop a long file, so heights outside the model are not
+ * errors. Heights below 0km, such as pad rows, are evaluated at 0km, and above 1000km there
+ * is no atmosphere in the model, so, as in {@link Environment}, temperature, pressure,
+ * density and speed of sound are 0. A height that is NaN gives NaN. Runs of heights in range
+ * are evaluated together with the batch functions.
+ *
+ * The file is streamed as a pipeline: the calling thread reads fixed size chunks cut on
+ * record boundaries, worker threads parse and evaluate chunks in parallel with the batch
+ * functions, and a writer thread writes the results back in input order. A fixed set of
+ * chunk buffers is passed around the pipeline and reused, so the reader waits when the
+ * workers or the disk fall behind and memory use does not grow with the file size.
+ * @author eib15ns
+ */
+public class TrajectoryAnnotator {
+
+    /**
+     * The record format of a trajectory file
+     */
+    public enum Format {
+        CSV,
+        BINARY
+    }
+
+    public static final int INPUT_FIELDS = 5;
+    public static final int OUTPUT_FIELDS = 12;
+    private static final String HEADER_COLUMNS = ",temperature,pressure,density,speed_of_sound,ax,ay,az";
+    private static final Chunk END = new Chunk(0);
+
+    //Instance Variables
+    private AtmosphereModel atmosphere = StandardAtmosphere.INSTANCE;
+    private GravityModel gravity = GravityModel.J2;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 1 << 20; // bytes
+    private int chunks = 2*workers; // buffers in flight
+
+    /**
+     * Sets the atmosphere model, such as a mapped {@link AtmosphereTable}
+     * @param atmosphere The atmosphere model
+     */
+    public void setAtmosphere(AtmosphereModel atmosphere){this.atmosphere = atmosphere;}
+
+    /**
+     * Sets the gravity model
+     * @param gravity The gravity model
+     */
+    public void setGravity(GravityModel gravity){this.gravity = gravity;}
+
+    /**
+     * Sets the number of worker threads and the number of chunk buffers in flight.
+     * Memory use is about twice the chunk size for every buffer.
+     * @param workers Number of threads evaluating chunks
+     * @param chunks Number of chunk buffers, at least one per worker
+     */
+    public void setThreads(int workers, int chunks){
+        if (workers < 1 || chunks < workers) throw new RuntimeException("There must be at least one worker and one chunk buffer per worker.");
+        this.workers = workers;
+        this.chunks = chunks;
+    }
+
+    /**
+     * Sets the size of the chunks the input is read in. A CSV line must fit in a chunk.
+     * @param chunkSize Size of a chunk (bytes)
+     */
+    public void setChunkSize(int chunkSize){
+        if (chunkSize < 8*INPUT_FIELDS) throw new RuntimeException("The chunk size must hold at least one binary record.");
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Annotates a trajectory file
+     * @param input The file to read
+     * @param output The file to write, replaced if it exists
+     * @param format The format of both files
+     * @return The number of records written
+     * @throws IOException If a file can not be read or written
+     */
+    public long annotate(Path input, Path output, Format format) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            return(new Run(in, out, format).execute());
+        }
+    }
+
+    /**
+     * A buffer passed around the pipeline, holding a piece of input cut on a record
+     * boundary and the annotated output for it
+     */
+    private static final class Chunk {
+        final byte[] input;
+        int inputLength;
+        byte[] output;
+        int outputLength;
+        long sequence;
+        long records;
+
+        Chunk(int size){
+            this.input = new byte[size];
+            this.output = new byte[size];
+        }
+
+        void ensureOutput(int extra){
+            if (this.outputLength + extra > this.output.length){
+                byte[] grown = new byte[Math.max(this.output.length*2, this.outputLength + extra)];
+                System.arraycopy(this.output, 0, grown, 0, this.outputLength);
+                this.output = grown;
+            }
+        }
+    }
+
+    /**
+     * The threads and queues of a single file
+     */
+    private final class Run {
+        private final FileChannel in;
+        private final FileChannel out;
+        private final Format format;
+        private final BlockingQueue<Chunk> free;
+        private final BlockingQueue<Chunk> work;
+        private final Chunk[] done; // finished chunks waiting to be written, by sequence
+        private final Thread[] threads;
+        private volatile Throwable failure;
+        private long total = -1; // chunks read, set when the input is finished
+        private long written;
+        private long records;
+
+        Run(FileChannel in, FileChannel out, Format format){
+            this.in = in;
+            this.out = out;
+            this.format = format;
+            this.free = new ArrayBlockingQueue<>(chunks);
+            this.work = new ArrayBlockingQueue<>(chunks + workers);
+            this.done = new Chunk[chunks];
+            this.threads = new Thread[workers + 1];
+            int size = format == Format.BINARY ? chunkSize - chunkSize % (8*INPUT_FIELDS) : chunkSize;
+            for (int i = 0; i < chunks; i++) this.free.add(new Chunk(size));
+        }
+
+        long execute() throws IOException {
+            for (int i = 0; i < workers; i++){
+                this.threads[i] = new Thread(this::evaluate, "TrajectoryAnnotator worker "+i);
+            }
+            this.threads[workers] = new Thread(this::write, "TrajectoryAnnotator writer");
+            for (Thread thread : this.threads) thread.start();
+
+            boolean interrupted = false;
+            try {
+                read();
+            }
+            catch (IOException | RuntimeException | Error e){
+                fail(e);
+            }
+            catch (InterruptedException e){
+                interrupted = true;
+                fail(e);
+            }
+            for (int i = 0; i < workers; i++) this.work.offer(END);
+
+            for (Thread thread : this.threads){
+                while (thread.isAlive()){
+                    try {
+                        thread.join();
+                    }
+                    catch (InterruptedException e){
+                        interrupted = true;
+                        fail(e);
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+
+            Throwable cause = this.failure;
+            if (cause instanceof IOException) throw (IOException)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            if (cause != null) throw new RuntimeException("The trajectory annotation was interrupted.", cause);
+            return(this.records);
+        }
+
+        /**
+         * Records the first failure and stops every stage. The reader runs on the calling
+         * thread, so rather than interrupting it a spare chunk is handed to it to wake it up.
+         */
+        private void fail(Throwable cause){
+            synchronized (this){
+                if (this.failure == null) this.failure = cause;
+                notifyAll();
+            }
+            this.free.offer(END);
+            for (Thread thread : this.threads){
+                if (thread != Thread.currentThread()) thread.interrupt();
+            }
+        }
+
+        // READER
+
+        private void read() throws IOException, InterruptedException {
+            byte[] carry = new byte[0];
+            int carryLength = 0;
+            long sequence = 0;
+            boolean finished = false;
+
+            while (!finished && this.failure == null){
+                Chunk chunk = this.free.take();
+                if (chunk == END) break;
+                System.arraycopy(carry, 0, chunk.input, 0, carryLength);
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.input);
+                buffer.position(carryLength);
+                while (buffer.hasRemaining()){
+                    if (this.in.read(buffer) < 0){
+                        finished = true;
+                        break;
+                    }
+                }
+                int length = buffer.position();
+
+                int end;
+                if (this.format == Format.BINARY){
+                    end = length - length % (8*INPUT_FIELDS);
+                    if (finished && end != length) throw new RuntimeException("The binary trajectory ends part way through a record.");
+                }
+                else if (finished){
+                    end = length;
+                }
+                else {
+                    end = length;
+                    while (end > 0 && chunk.input[end - 1] != '\n') end--;
+                    if (end == 0) throw new RuntimeException("A line of the trajectory is longer than the chunk size of "+chunkSize+" bytes.");
+                }
+
+                carryLength = length - end;
+                if (carry.length < carryLength) carry = new byte[chunk.input.length];
+                System.arraycopy(chunk.input, end, carry, 0, carryLength);
+
+                chunk.inputLength = end;
+                chunk.sequence = sequence++;
+                this.work.put(chunk);
+            }
+
+            synchronized (this){
+                this.total = sequence;
+                notifyAll();
+            }
+        }
+
+        // WORKERS
+
+        private void evaluate(){
+            Evaluator evaluator = new Evaluator(this.format);
+            try {
+                while (true){
+                    Chunk chunk = this.work.take();
+                    if (chunk == END) return;
+                    evaluator.process(chunk);
+                    synchronized (this){
+                        this.done[(int)(chunk.sequence % chunks)] = chunk;
+                        notifyAll();
+                    }
+                }
+            }
+            catch (InterruptedException e){
+                // Stopped because another stage failed
+            }
+            catch (RuntimeException | Error e){
+                fail(e);
+            }
+        }
+
+        // WRITER
+
+        private void write(){
+            try {
+                while (true){
+                    Chunk chunk;
+                    synchronized (this){
+                        int slot = (int)(this.written % chunks);
+                        while (this.done[slot] == null && this.total != this.written && this.failure == null) wait();
+                        if (this.failure != null || this.total == this.written) return;
+                        chunk = this.done[slot];
+                        this.done[slot] = null;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk.output, 0, chunk.outputLength);
+                    while (buffer.hasRemaining()) this.out.write(buffer);
+                    this.records += chunk.records;
+                    this.written++;
+                    this.free.put(chunk);
+                }
+            }
+            catch (InterruptedException e){
+                // Stopped because another stage failed
+            }
+            catch (IOException | RuntimeException | Error e){
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Parses, evaluates and formats chunks on a worker thread. The record arrays grow to
+     * the largest chunk seen and are then reused.
+     */
+    private final class Evaluator {
+        private final Format format;
+        private final StringBuilder text = new StringBuilder(256);
+        private double[] height = new double[0];
+        private double[] x = new double[0];
+        private double[] y = new double[0];
+        private double[] z = new double[0];
+        private int[] lineStart = new int[0];
+        private int[] lineEnd = new int[0];
+        private double[] temperature = new double[0];
+        private double[] pressure = new double[0];
+        private double[] density = new double[0];
+        private double[] speedSound = new double[0];
+        private double[] ax = new double[0];
+        private double[] ay = new double[0];
+        private double[] az = new double[0];
+
+        Evaluator(Format format){
+            this.format = format;
+        }
+
+        void process(Chunk chunk){
+            chunk.outputLength = 0;
+            int count = this.format == Format.BINARY ? parseBinary(chunk) : parseCsv(chunk);
+            int first = this.format == Format.CSV && chunk.sequence == 0 && count > 0 && this.lineStart[0] < 0 ? 1 : 0;
+
+            evaluateAtmosphere(first, count);
+            gravity.accelerate(this.x, this.y, this.z, first, this.ax, this.ay, this.az, first, count - first);
+
+            if (this.format == Format.BINARY){
+                writeBinary(chunk, count);
+            }
+            else {
+                writeCsv(chunk, count, first);
+            }
+            chunk.records = count - first;
+        }
+
+        /**
+         * Evaluates the atmosphere with the batch function over every run of heights up to
+         * 1000km, clamping heights below 0km, and fills in the heights above or NaN
+         */
+        private void evaluateAtmosphere(int first, int count){
+            int i = first;
+            while (i < count){
+                if (!(this.height[i] <= 1000.0)){
+                    double value = this.height[i] > 1000.0 ? 0.0 : Double.NaN;
+                    this.temperature[i] = value;
+                    this.pressure[i] = value;
+                    this.density[i] = value;
+                    this.speedSound[i] = value;
+                    i++;
+                    continue;
+                }
+                int start = i;
+                for (; i < count && this.height[i] <= 1000.0; i++){
+                    if (this.height[i] < 0.0) this.height[i] = 0.0;
+                }
+                atmosphere.evaluate(this.height, start, this.temperature, this.pressure, this.density, this.speedSound, start, i - start);
+            }
+        }
+
+        /**
+         * Grows the record arrays, keeping the records already parsed
+         */
+        private void ensureCapacity(int count){
+            if (this.height.length >= count) return;
+            this.height = Arrays.copyOf(this.height, count);
+            this.x = Arrays.copyOf(this.x, count);
+            this.y = Arrays.copyOf(this.y, count);
+            this.z = Arrays.copyOf(this.z, count);
+            this.lineStart = Arrays.copyOf(this.lineStart, count);
+            this.lineEnd = Arrays.copyOf(this.lineEnd, count);
+            this.temperature = new double[count];
+            this.pressure = new double[count];
+            this.density = new double[count];
+            this.speedSound = new double[count];
+            this.ax = new double[count];
+            this.ay = new double[count];
+            this.az = new double[count];
+        }
+
+        private int parseBinary(Chunk chunk){
+            int count = chunk.inputLength/(8*INPUT_FIELDS);
+            ensureCapacity(count);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk.input, 0, chunk.inputLength).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < count; i++){
+                int base = 8*INPUT_FIELDS*i;
+                this.height[i] = buffer.getDouble(base + 8);
+                this.x[i] = buffer.getDouble(base + 16);
+                this.y[i] = buffer.getDouble(base + 24);
+                this.z[i] = buffer.getDouble(base + 32);
+            }
+            return(count);
+        }
+
+        private void writeBinary(Chunk chunk, int count){
+            chunk.ensureOutput(8*OUTPUT_FIELDS*count);
+            ByteBuffer in = ByteBuffer.wrap(chunk.input).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer out = ByteBuffer.wrap(chunk.output).order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i < count; i++){
+                int source = 8*INPUT_FIELDS*i;
+                int target = 8*OUTPUT_FIELDS*i;
+                for (int f = 0; f < INPUT_FIELDS; f++) out.putLong(target + 8*f, in.getLong(source + 8*f));
+                out.putDouble(target + 40, this.temperature[i]);
+                out.putDouble(target + 48, this.pressure[i]);
+                out.putDouble(target + 56, this.density[i]);
+                out.putDouble(target + 64, this.speedSound[i]);
+                out.putDouble(target + 72, this.ax[i]);
+                out.putDouble(target + 80, this.ay[i]);
+                out.putDouble(target + 88, this.az[i]);
+            }
+            chunk.outputLength = 8*OUTPUT_FIELDS*count;
+        }
+
+        /**
+         * Splits a chunk into lines and parses the first five columns of each. A header
+         * line is marked with a negative start.
+         */
+        private int parseCsv(Chunk chunk){
+            byte[] b = chunk.input;
+            int count = 0;
+            int start = 0;
+            while (start < chunk.inputLength){
+                int end = start;
+                while (end < chunk.inputLength && b[end] != '\n') end++;
+                int next = end + 1;
+                if (end > start && b[end - 1] == '\r') end--;
+                if (end > start){
+                    if (count == this.height.length) ensureCapacity(Math.max(16, 2*count));
+                    this.lineStart[count] = start;
+                    this.lineEnd[count] = end;
+                    if (!parseLine(b, start, end, count)){
+                        if (chunk.sequence != 0 || count != 0) throw new RuntimeException("The trajectory line \""+new String(b, start, end - start, StandardCharsets.ISO_8859_1)+"\" does not start with five numbers.");
+                        this.lineStart[count] = -1 - start;
+                    }
+                    count++;
+                }
+                start = next;
+            }
+            return(count);
+        }
+
+        private boolean parseLine(byte[] b, int start, int end, int i){
+            int field = 0;
+            int fieldStart = start;
+            for (int c = start; c <= end && field < INPUT_FIELDS; c++){
+                if (c == end || b[c] == ','){
+                    double value = parseDouble(b, fieldStart, c);
+                    if (Double.isNaN(value)) return(false);
+                    switch (field){
+                        case 1: this.height[i] = value; break;
+                        case 2: this.x[i] = value; break;
+                        case 3: this.y[i] = value; break;
+                        case 4: this.z[i] = value; break;
+                        default: break;
+                    }
+                    field++;
+                    fieldStart = c + 1;
+                }
+            }
+            return(field == INPUT_FIELDS);
+        }
+
+        private void writeCsv(Chunk chunk, int count, int first){
+            if (first == 1){
+                int start = -1 - this.lineStart[0];
+                appendLine(chunk, start, this.lineEnd[0]);
+                appendText(chunk, HEADER_COLUMNS);
+            }
+            for (int i = first; i < count; i++){
+                appendLine(chunk, this.lineStart[i], this.lineEnd[i]);
+                this.text.setLength(0);
+                this.text.append(',').append(this.temperature[i])
+                        .append(',').append(this.pressure[i])
+                        .append(',').append(this.density[i])
+                        .append(',').append(this.speedSound[i])
+                        .append(',').append(this.ax[i])
+                        .append(',').append(this.ay[i])
+                        .append(',').append(this.az[i]);
+                appendText(chunk, this.text);
+            }
+        }
+
+        private void appendLine(Chunk chunk, int start, int end){
+            chunk.ensureOutput(end - start);
+            System.arraycopy(chunk.input, start, chunk.output, chunk.outputLength, end - start);
+            chunk.outputLength += end - start;
+        }
+
+        private void appendText(Chunk chunk, CharSequence text){
+            chunk.ensureOutput(text.length() + 1);
+            for (int i = 0; i < text.length(); i++) chunk.output[chunk.outputLength++] = (byte)text.charAt(i);
+            chunk.output[chunk.outputLength++] = '\n';
+        }
+    }
+
+    // PARSING
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Parses a decimal number without creating a string. Numbers with at most 15 significant
+     * digits and a small exponent, which covers most telemetry, are converted with a single
+     * exact multiply or divide, which rounds correctly. Anything else falls back to
+     * {@link Double#parseDouble(String)}.
+     * @return The number, or NaN if the text is not a number
+     */
+    static double parseDouble(byte[] b, int start, int end){
+        while (start < end && b[start] == ' ') start++;
+        while (end > start && b[end - 1] == ' ') end--;
+        int c = start;
+        boolean negative = false;
+        if (c < end && (b[c] == '-' || b[c] == '+')){
+            negative = b[c] == '-';
+            c++;
+        }
+
+        long mantissa = 0;
+        int digits = 0; // significant digits in the mantissa
+        int scale = 0; // power of ten applied to the mantissa
+        boolean any = false;
+        boolean point = false;
+        for (; c < end; c++){
+            int d = b[c] - '0';
+            if (d >= 0 && d <= 9){
+                any = true;
+                if (digits < 18){
+                    if (mantissa != 0 || d != 0){
+                        mantissa = 10*mantissa + d;
+                        digits++;
+                    }
+                    if (point) scale--;
+                }
+                else {
+                    digits++;
+                    if (!point) scale++;
+                }
+            }
+            else if (b[c] == '.' && !point){
+                point = true;
+            }
+            else {
+                break;
+            }
+        }
+
+        if (c < end && (b[c] == 'e' || b[c] == 'E') && any){
+            int e = c + 1;
+            boolean negativeExponent = false;
+            if (e < end && (b[e] == '-' || b[e] == '+')){
+                negativeExponent = b[e] == '-';
+                e++;
+            }
+            int exponent = 0;
+            boolean exponentDigits = false;
+            for (; e < end && b[e] >= '0' && b[e] <= '9' && exponent < 100000; e++){
+                exponent = 10*exponent + (b[e] - '0');
+                exponentDigits = true;
+            }
+            if (exponentDigits){
+                scale += negativeExponent ? -exponent : exponent;
+                c = e;
+            }
+        }
+
+        if (any && c == end && digits <= 15){
+            double value = mantissa;
+            if (scale >= 0 && scale < POWERS_OF_TEN.length){
+                value *= POWERS_OF_TEN[scale];
+                return(negative ? -value : value);
+            }
+            if (scale < 0 && -scale < POWERS_OF_TEN.length){
+                value /= POWERS_OF_TEN[-scale];
+                return(negative ? -value : value);
+            }
+        }
+        if (start == end) return(Double.NaN);
+        try {
+            return(Double.parseDouble(new String(b, start, end - start, StandardCharsets.ISO_8859_1)));
+        }
+        catch (NumberFormatException e){
+            return(Double.NaN);
+        }
+    }
+
+    // GET FUNCTIONS
+
+    /**
+     * Get the number of worker threads
+     * @return The number of workers
+     */
+    public int getWorkers(){return(this.workers);}
+    /**
+     * Get the number of chunk buffers in flight
+     * @return The number of chunks
+     */
+    public int getChunks(){return(this.chunks);}
+    /**
+     * Get the size of the chunks the input is read in
+     * @return The chunk size (bytes)
+     */
+    public int getChunkSize(){return(this.chunkSize);}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Starts a server on a free port and checks the answers and status codes of every endpoint
+ * @author eib15ns
+ */
+public class EarthServerTest {
+
+    private static EarthServer server;
+    private static HttpClient client;
+    private static String base;
+
+    @BeforeAll
+    public static void start() throws IOException {
+        server = new EarthServer();
+        server.start(0);
+        client = HttpClient.newHttpClient();
+        base = "http://localhost:"+server.getPort();
+    }
+
+    @AfterAll
+    public static void stop(){
+        server.close();
+    }
+
+    private static HttpResponse<byte[]> get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path)).GET().build();
+        return(client.send(request, HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    private static HttpResponse<byte[]> post(String path, double... values) throws IOException, InterruptedException {
+        ByteBuffer body = ByteBuffer.allocate(8*values.length).order(ByteOrder.LITTLE_ENDIAN);
+        for (double value : values) body.putDouble(value);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(base + path))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.array())).build();
+        return(client.send(request, HttpResponse.BodyHandlers.ofByteArray()));
+    }
+
+    private static double[] text(HttpResponse<byte[]> response){
+        String[] fields = new String(response.body()).trim().split(",");
+        double[] values = new double[fields.length];
+        for (int i = 0; i < fields.length; i++) values[i] = Double.parseDouble(fields[i]);
+        return(values);
+    }
+
+    private static double[] binary(HttpResponse<byte[]> response){
+        ByteBuffer body = ByteBuffer.wrap(response.body()).order(ByteOrder.LITTLE_ENDIAN);
+        double[] values = new double[body.limit()/8];
+        for (int i = 0; i < values.length; i++) values[i] = body.getDouble();
+        return(values);
+    }
+
+    private static double[] atmosphere(double height){
+        AtmosphereState state = new AtmosphereState();
+        StandardAtmosphere.INSTANCE.evaluate(height, state);
+        return(new double[]{state.getTemperature(), state.getPressure(), state.getDensity(), state.getSpeedSound()});
+    }
+
+    private static double[] gravity(double x, double y, double z){
+        double[] result = new double[3];
+        GravityKernel.accelerate(x, y, z, result, 0);
+        return(result);
+    }
+
+    @Test
+    public void singlePoints() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = get("/atmosphere?height=11");
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(atmosphere(11), text(response));
+
+        response = get("/gravity?x=7000000&y=1000&z=-2000000");
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(gravity(7000000, 1000, -2000000), text(response));
+    }
+
+    @Test
+    public void batches() throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = post("/atmosphere/batch", 0, 50.5, 500);
+        assertEquals(200, response.statusCode());
+        double[] expected = new double[12];
+        System.arraycopy(atmosphere(0), 0, expected, 0, 4);
+        System.arraycopy(atmosphere(50.5), 0, expected, 4, 4);
+        System.arraycopy(atmosphere(500), 0, expected, 8, 4);
+        assertArrayEquals(expected, binary(response));
+
+        response = post("/gravity/batch", 7000000, 0, 0, 0, 0, 42164137);
+        assertEquals(200, response.statusCode());
+        expected = new double[6];
+        System.arraycopy(gravity(7000000, 0, 0), 0, expected, 0, 3);
+        System.arraycopy(gravity(0, 0, 42164137), 0, expected, 3, 3);
+        assertArrayEquals(expected, binary(response));
+    }
+
+    @Test
+    public void errors() throws IOException, InterruptedException {
+        assertEquals(404, get("/atmospherex?height=10").statusCode());
+        assertEquals(404, get("/atmosphere/").statusCode());
+        assertEquals(404, get("/gravity/batchx").statusCode());
+        assertEquals(405, post("/atmosphere", 10).statusCode());
+        assertEquals(405, get("/atmosphere/batch").statusCode());
+        assertEquals(400, get("/atmosphere").statusCode());
+        assertEquals(400, get("/atmosphere?height=abc").statusCode());
+        assertEquals(400, get("/atmosphere?height=-5").statusCode());
+        assertEquals(400, post("/gravity/batch", 1, 2).statusCode());
+        assertEquals(200, get("/metrics").statusCode());
+    }
+}
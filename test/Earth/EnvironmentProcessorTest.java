@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that an error found in the last batch reaches the subscribers
+ * @author eib15ns
+ */
+public class EnvironmentProcessorTest {
+
+    private static final double LEO_RADIUS = 6778137; // m
+
+    /**
+     * A subscriber that only asks for records when told to
+     */
+    private static final class Collector implements Flow.Subscriber<EnvironmentState> {
+        Flow.Subscription subscription;
+        final List<EnvironmentState> records = new ArrayList<>();
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription){this.subscription = subscription;}
+        @Override
+        public void onNext(EnvironmentState item){this.records.add(item);}
+        @Override
+        public void onError(Throwable throwable){this.error = throwable;}
+        @Override
+        public void onComplete(){this.completed = true;}
+    }
+
+    private static final Flow.Subscription UPSTREAM = new Flow.Subscription(){
+        @Override
+        public void request(long n){}
+        @Override
+        public void cancel(){}
+    };
+
+    private static EnvironmentProcessor processor(Collector collector){
+        EnvironmentProcessor processor = new EnvironmentProcessor();
+        processor.setExecutor(Runnable::run);
+        processor.subscribe(collector);
+        processor.onSubscribe(UPSTREAM);
+        // Two good samples and one below the ellipsoid wait in the part filled batch
+        processor.onNext(new double[]{LEO_RADIUS, 0, 0});
+        processor.onNext(new double[]{0, LEO_RADIUS, 0});
+        processor.onNext(new double[]{1e6, 0, 0});
+        return(processor);
+    }
+
+    @Test
+    public void completionKeepsErrorFromLastBatch(){
+        Collector collector = new Collector();
+        EnvironmentProcessor processor = processor(collector);
+        processor.onComplete();
+        collector.subscription.request(10);
+
+        assertEquals(2, collector.records.size());
+        assertFalse(collector.completed);
+        assertNotNull(collector.error);
+        assertTrue(collector.error.getMessage().contains("below"), collector.error.getMessage());
+    }
+
+    @Test
+    public void upstreamErrorKeepsErrorFromLastBatch(){
+        Collector collector = new Collector();
+        EnvironmentProcessor processor = processor(collector);
+        processor.onError(new IllegalStateException("upstream failed"));
+        collector.subscription.request(10);
+
+        assertEquals(2, collector.records.size());
+        assertFalse(collector.completed);
+        assertNotNull(collector.error);
+        assertTrue(collector.error.getMessage().contains("below"), collector.error.getMessage());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that cells the cache can not refine to its tolerance are answered by the model
+ * @author eib15ns
+ */
+public class GravityCacheTest {
+
+    private static final double MU = 6.67408e-11*5.9722e24; // m^3/s^2
+    private static final double TOLERANCE = 1e-6; // m/s^2
+    private static final double STEP = 1e-3; // m/s^2
+
+    /**
+     * The J2 field with a step in the x acceleration across the plane y = 1000m, which no
+     * amount of refining makes trilinear
+     */
+    private static final GravityModel STEPPED = (x, y, z, out, offset) -> {
+        GravityKernel.accelerate(x, y, z, out, offset);
+        if (y > 1000) out[offset] += STEP;
+    };
+
+    @Test
+    public void unresolvedCellsGoToTheModel(){
+        GravityCache cache = new GravityCache(STEPPED, MU, 6478e3, 7278e3, 100e3, TOLERANCE, 256L << 20);
+        Random random = new Random(3);
+        double[] cached = new double[3];
+        double[] exact = new double[3];
+        double worst = 0;
+        for (int i = 0; i < 2000; i++){
+            // Positions within 20km of the step
+            double r = 6578e3 + 600e3*random.nextDouble();
+            double y = 40e3*random.nextDouble() - 20e3;
+            double angle = 2*Math.PI*random.nextDouble();
+            double reach = Math.sqrt(r*r - y*y);
+            double x = reach*Math.cos(angle);
+            double z = reach*Math.sin(angle);
+            cache.accelerate(x, y, z, cached, 0);
+            STEPPED.accelerate(x, y, z, exact, 0);
+            double dx = cached[0] - exact[0];
+            double dy = cached[1] - exact[1];
+            double dz = cached[2] - exact[2];
+            worst = Math.max(worst, Math.sqrt(dx*dx + dy*dy + dz*dz));
+        }
+        assertTrue(cache.getUnresolved() > 0, "no cell was left to the model");
+        assertTrue(cache.getMaxError() <= TOLERANCE, "max error "+cache.getMaxError());
+        // The tolerance holds at the points checked, a little more is allowed between them
+        assertTrue(worst <= 1.1*TOLERANCE, "worst error "+worst);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2019 eib15ns
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package Earth;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The double precision batch of {@link GravityKernel} written with the incubating Vector
+ * API, so the loop is packed into SIMD registers whether or not the JIT would have
+ * vectorised the scalar loop itself. It is compiled separately with
+ * --add-modules jdk.incubator.vector and only loaded by {@link GravityKernel} when that
+ * module is present at run time.
+ *
+ * Every lane performs the same correctly rounded operations in the same order as the
+ * scalar loop, with no fused multiply-adds, so results are bit-identical to it and to
+ * {@link Gravity}. Positions left over after the last full vector go through the scalar loop.
+ * @author eib15ns
+ */
+final class VectorGravityKernel implements GravityKernel.Batch {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int range(double[] x, double[] y, double[] z, int offset,
+            double[] ax, double[] ay, double[] az, int outOffset, int length){
+        DoubleVector one = DoubleVector.broadcast(SPECIES, 1.0);
+        int step = SPECIES.length();
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += step){
+            DoubleVector px = DoubleVector.fromArray(SPECIES, x, offset + i);
+            DoubleVector py = DoubleVector.fromArray(SPECIES, y, offset + i);
+            DoubleVector pz = DoubleVector.fromArray(SPECIES, z, offset + i);
+
+            DoubleVector r2 = px.mul(px).add(py.mul(py)).add(pz.mul(pz));
+            DoubleVector invR2 = one.div(r2);
+            DoubleVector r = r2.sqrt();
+
+            DoubleVector sub1 = invR2.broadcast(GravityKernel.J2_FACTOR).mul(invR2);
+            DoubleVector sub2 = pz.broadcast(5).mul(pz).mul(pz).mul(invR2);
+            DoubleVector sub3 = invR2.broadcast(-1 * GravityKernel.MU).mul(invR2).div(r);
+            DoubleVector sub4 = sub3.mul(one.sub(sub1.mul(sub2.sub(1))));
+
+            px.mul(sub4).intoArray(ax, outOffset + i);
+            py.mul(sub4).intoArray(ay, outOffset + i);
+            pz.mul(sub3).mul(one.sub(sub1.mul(sub2.sub(3)))).intoArray(az, outOffset + i);
+        }
+        return(bound);
+    }
+}